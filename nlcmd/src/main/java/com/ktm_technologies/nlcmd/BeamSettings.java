@@ -0,0 +1,78 @@
+/*
+ * Copyright 2019 Robert Staudinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ktm_technologies.nlcmd;
+
+/**
+ * Parameters for {@link ScanMode#BEAM}.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class BeamSettings {
+
+    private final int       _width;
+    private final double    _insertionPenalty;
+    private final double    _deletionPenalty;
+
+    /**
+     * Create BeamSettings object with default parameters.
+     */
+    public BeamSettings() {
+        this(16, 0.5, 0.5);
+    }
+
+    /**
+     * Create BeamSettings object.
+     * @param width Maximum number of live matches kept per input word
+     * @param insertionPenalty Score deducted per input word that is skipped inside a match
+     * @param deletionPenalty Score deducted per chain word that is missing from the input
+     * @throws IllegalArgumentException If width < 1 or a penalty is negative
+     */
+    public BeamSettings(int     width,
+                        double  insertionPenalty,
+                        double  deletionPenalty) throws IllegalArgumentException {
+
+        if (width < 1) {
+            throw new IllegalArgumentException("Beam width can not be < 1");
+        }
+        if (insertionPenalty < 0 || deletionPenalty < 0) {
+            throw new IllegalArgumentException("Penalty can not be < 0");
+        }
+        _width = width;
+        _insertionPenalty = insertionPenalty;
+        _deletionPenalty = deletionPenalty;
+    }
+
+    /**
+     * @return Maximum number of live matches kept per input word
+     */
+    public int getWidth() {
+        return _width;
+    }
+
+    /**
+     * @return Score deducted per input word that is skipped inside a match
+     */
+    public double getInsertionPenalty() {
+        return _insertionPenalty;
+    }
+
+    /**
+     * @return Score deducted per chain word that is missing from the input
+     */
+    public double getDeletionPenalty() {
+        return _deletionPenalty;
+    }
+}
@@ -18,12 +18,26 @@ package com.ktm_technologies.nlcmd;
 
 import android.annotation.SuppressLint;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static com.ktm_technologies.nlcmd.Nlcmd.d;
-import static com.ktm_technologies.nlcmd.Nlcmd.v;
 
 /**
  * Represents a set of commands, with each command being represented by a
@@ -32,9 +46,88 @@ import static com.ktm_technologies.nlcmd.Nlcmd.v;
 @SuppressWarnings("WeakerAccess")
 public class CommandSet extends HashMap<Object, MarkovChain> {
 
-    private ScoreMode   _scoreMode;
-    private int         _order;
-    private Locale      _locale;
+    private ScoreMode       _scoreMode;
+    private Scorer          _scorer;
+    private ScanMode        _scanMode = ScanMode.GREEDY;
+    private BeamSettings    _beamSettings = new BeamSettings();
+    private PhraseRetention _retention = PhraseRetention.PACKED;
+    private int             _trainingThreads = Runtime.getRuntime().availableProcessors();
+    private int             _order;
+    private Locale          _locale;
+    private long            _memoryBudget = 0;
+    private File            _pageDirectory = null;
+    // Held for reading while scoring with a memory budget, and for writing while paging out
+    private final ReentrantReadWriteLock _paging = new ReentrantReadWriteLock();
+
+    private final Tokenizer                 _tokenizer;
+    private final Vocabulary                _vocabulary = new Vocabulary();
+    private final Preprocessor              _preprocessor = new Preprocessor();
+    // Sub-rules for grammars by name
+    private final HashMap<String, Grammar>  _rules = new HashMap<>();
+
+    // Training phrases are only split up into batches of at least this size
+    private static final int MIN_PHRASES_PER_THREAD = 256;
+    // Number of queries after which a match counts half as much for the visit order
+    private static final double USAGE_HALF_LIFE = 1000;
+    // Number of queries between updates of the visit order
+    private static final int REORDER_INTERVAL = 64;
+
+    private static final ThreadLocal<TokenBuffer> BUFFERS = new ThreadLocal<TokenBuffer>() {
+        @Override
+        protected TokenBuffer initialValue() {
+            return new TokenBuffer();
+        }
+    };
+
+    private static final ThreadLocal<ArrayList<String>> WORDS = new ThreadLocal<ArrayList<String>>() {
+        @Override
+        protected ArrayList<String> initialValue() {
+            return new ArrayList<>();
+        }
+    };
+
+    private static final ThreadLocal<Result> RESULTS = new ThreadLocal<Result>() {
+        @Override
+        protected Result initialValue() {
+            return new Result();
+        }
+    };
+
+    private static final ThreadLocal<Resolution> RESOLUTIONS = new ThreadLocal<Resolution>() {
+        @Override
+        protected Resolution initialValue() {
+            return new Resolution();
+        }
+    };
+
+    private final ThreadLocal<Preprocessor.Cursor> _cursors = new ThreadLocal<Preprocessor.Cursor>() {
+        @Override
+        protected Preprocessor.Cursor initialValue() {
+            return _preprocessor.new Cursor();
+        }
+    };
+
+    // Commands in iteration order, rebuilt when the map has been modified
+    private Object[]        _keys = new Object[0];
+    private volatile MarkovChain[] _chains = new MarkovChain[0];
+    // Guards snapshot updates and the usage of commands below, which queries on any thread update
+    private final Object    _usageLock = new Object();
+    // Per command in snapshot order, query of last match and estimated size or -1
+    private long[]          _lastUse = new long[0];
+    private long[]          _sizes = new long[0];
+    // Per command in snapshot order, file it is paged out to, created on first use
+    private File[]          _pageFiles = new File[0];
+    // Number of queries, for paging out the least recently matched commands
+    private long            _clock = 0;
+    // Per command in snapshot order, decaying number of matches
+    private double[]        _hits = new double[0];
+    // Snapshot indices, most matched command first
+    private volatile int[]  _hotOrder = new int[0];
+    // Smallest order of all chains in the snapshot
+    private int             _minOrder = 1;
+    private final Decay     _usage = new Decay(USAGE_HALF_LIFE);
+    private double          _usageEpoch = 0.0;
+    private int             _queries = 0;
 
     /**
      * Create CommandSet object
@@ -52,7 +145,12 @@ public class CommandSet extends HashMap<Object, MarkovChain> {
         }
         _order = order;
         _scoreMode = scoreMode;
+        _scorer = scoreMode;
         _locale = locale;
+        _tokenizer = new Tokenizer(locale);
+        if (scoreMode == ScoreMode.LONGEST_AVG_REL_MOR) {
+            _vocabulary.setMorphology(Morphology.forLocale(locale));
+        }
     }
 
     /**
@@ -62,25 +160,428 @@ public class CommandSet extends HashMap<Object, MarkovChain> {
         return _scoreMode;
     }
 
+    /**
+     * @return Strategy for scoring matches, the score mode unless a custom one has been set
+     */
+    public Scorer getScorer() {
+        return _scorer;
+    }
+
+    /**
+     * Score matches with a custom strategy instead of the score mode. The score mode still
+     * decides on morphology.
+     *
+     * @param scorer See {@link Scorer}, null to reset to the score mode
+     */
+    public void setScorer(Scorer scorer) {
+        _scorer = scorer == null ? _scoreMode : scorer;
+    }
+
+    /**
+     * @return Strategy for finding sub-phrases when scanning, see {@link ScanMode}
+     */
+    public ScanMode getScanMode() {
+        return _scanMode;
+    }
+
+    /**
+     * Select strategy for finding sub-phrases when scanning, this applies to all commands
+     * regardless of the scan mode set on individual chains.
+     *
+     * @param scanMode See {@link ScanMode}
+     */
+    public void setScanMode(ScanMode scanMode) {
+        _scanMode = scanMode;
+    }
+
+    /**
+     * @return Parameters for {@link ScanMode#BEAM}
+     */
+    public BeamSettings getBeamSettings() {
+        return _beamSettings;
+    }
+
+    /**
+     * @param beamSettings Parameters for {@link ScanMode#BEAM}, applies to all commands
+     */
+    public void setBeamSettings(BeamSettings beamSettings) {
+        _beamSettings = beamSettings;
+    }
+
+    /**
+     * @return What chains keep of their training phrases, see {@link PhraseRetention}
+     */
+    public PhraseRetention getPhraseRetention() {
+        return _retention;
+    }
+
+    /**
+     * Select what chains created via {@link CommandSet#put(Object, String[])} keep of
+     * their training phrases.
+     *
+     * @param retention See {@link PhraseRetention}
+     * @throws IllegalStateException If commands have already been added
+     */
+    public void setPhraseRetention(PhraseRetention retention) throws IllegalStateException {
+
+        if (!this.isEmpty()) {
+            throw new IllegalStateException("Can not change phrase retention after commands have been added");
+        }
+        _retention = retention;
+    }
+
+    /**
+     * Enable case folding of input words, such that matching is case insensitive.
+     *
+     * @param foldCase {@code true} to fold case
+     * @throws IllegalStateException If rules or commands have already been added
+     */
+    public void setCaseFolding(boolean foldCase) throws IllegalStateException {
+
+        checkTokenizerSettings();
+        _tokenizer.setFoldCase(foldCase);
+    }
+
+    /**
+     * Enable unicode normalization (NFC) of input words, such that for example
+     * decomposed umlauts match precomposed ones.
+     *
+     * @param normalize {@code true} to normalize
+     * @throws IllegalStateException If rules or commands have already been added
+     */
+    public void setNormalization(boolean normalize) throws IllegalStateException {
+
+        checkTokenizerSettings();
+        _tokenizer.setNormalize(normalize);
+    }
+
+    /**
+     * Declare an equivalence class of tokens, such as articles or spelling variants.
+     *
+     * All members are mapped to the first one when training and matching, so they
+     * share nodes in the markov chains.
+     *
+     * @param tokens Class members, the first one being the canonical token
+     * @throws IllegalStateException If commands have already been added
+     * @throws IllegalArgumentException If a member is already part of another class
+     */
+    public void addEquivalence(String... tokens) throws IllegalStateException {
+
+        if (!this.isEmpty()) {
+            throw new IllegalStateException("Can not add equivalence classes after commands have been added");
+        }
+        String[] words = new String[tokens.length];
+        for (int i = 0; i < tokens.length; i++) {
+            words[i] = _tokenizer.transform(tokens[i]);
+        }
+        _vocabulary.addEquivalence(words);
+    }
+
+    /**
+     * Declare stopwords, which are removed from input before training and matching.
+     *
+     * @param stopwords Words or phrases to remove
+     * @throws IllegalStateException If commands have already been added
+     */
+    public void addStopwords(String... stopwords) throws IllegalStateException {
+
+        if (!this.isEmpty()) {
+            throw new IllegalStateException("Can not add stopwords after commands have been added");
+        }
+        for (String stopword : stopwords) {
+            List<String> pattern = _tokenizer.words(stopword);
+            learnPattern(pattern);
+            _preprocessor.addStopword(pattern);
+        }
+    }
+
+    /**
+     * Declare rewrite rule, which is applied to input before training and matching.
+     *
+     * All rules and stopwords are applied in a single pass. Where rules overlap,
+     * the one starting first wins, and among those the longest one.
+     *
+     * @param pattern Word or phrase to replace, such as a common misspelling
+     * @param replacement Replacement word or phrase, may be empty
+     * @throws IllegalStateException If commands have already been added
+     */
+    public void addRewrite(String pattern,
+                           String replacement) throws IllegalStateException {
+
+        if (!this.isEmpty()) {
+            throw new IllegalStateException("Can not add rewrite rules after commands have been added");
+        }
+        List<String> words = _tokenizer.words(pattern);
+        learnPattern(words);
+        _preprocessor.addRewrite(words, _tokenizer.words(replacement));
+    }
+
+    /**
+     * Declare sub-rule for grammars, see {@link CommandSet#putGrammar}.
+     *
+     * @param name Rule name, referred to as {@code $name} in grammars
+     * @param grammar Grammar of the rule, it may refer to other rules
+     * @throws IllegalArgumentException If the name is empty or contains other characters
+     *                                  than letters, digits and '_', or the grammar is malformed
+     */
+    public void addRule(String  name,
+                        String  grammar) throws IllegalArgumentException {
+
+        if (name.isEmpty()) {
+            throw new IllegalArgumentException("Rule name can not be empty");
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (!Grammar.isNameChar(name.charAt(i))) {
+                throw new IllegalArgumentException("Invalid rule name: " + name);
+            }
+        }
+        _rules.put(name, new Grammar(grammar));
+    }
+
+    /**
+     * Add markov chain for a command from a grammar, which gives the same chain as adding
+     * all phrases of the grammar but doesn't list them.
+     *
+     * Grammars are written as {@code (open | start) the $target [menu]}, with
+     * {@code (a | b)} for alternatives, {@code [a]} for optional parts, {@code $name} for
+     * sub-rules declared with {@link CommandSet#addRule} and words, including
+     * {@code <placeholder>} slots. Rewrite rules only apply within runs of words.
+     *
+     * Phrases of the grammar are not retained, see {@link PhraseRetention}.
+     *
+     * @param key Identifier for this command
+     * @param grammar Grammar of the training phrases
+     * @throws IllegalArgumentException If the grammar is malformed, or refers to unknown
+     *                                  or recursive rules
+     */
+    public void putGrammar(Object   key,
+                           String   grammar) throws IllegalArgumentException {
+
+        Grammar g = new Grammar(grammar);
+        TransitionCounts counts = g.count(_order, _rules, new Grammar.Words() {
+            @Override
+            public List<String> words(String text) {
+
+                List<String> phrase = preprocess(_tokenizer.words(text));
+                _vocabulary.train(phrase);
+                return phrase;
+            }
+        });
+
+        MarkovChain mc = createChain();
+        mc.train(counts);
+
+        Nlcmd.v(this.getClass(), "putGrammar()", key + " : " + mc);
+        this.put(key, mc);
+    }
+
+    /**
+     * @return Maximum number of threads for training, see {@link CommandSet#setTrainingThreads(int)}
+     */
+    public int getTrainingThreads() {
+        return _trainingThreads;
+    }
+
+    /**
+     * Set maximum number of threads for training a command in {@link CommandSet#put(Object, String[])}.
+     * Only large sets of training phrases are split up, defaults to the number of processors.
+     *
+     * @param threads Maximum number of threads, 1 to train on the calling thread only
+     * @throws IllegalArgumentException If threads < 1
+     */
+    public void setTrainingThreads(int threads) throws IllegalArgumentException {
+
+        if (threads < 1) {
+            throw new IllegalArgumentException("Number of training threads can not be < 1");
+        }
+        _trainingThreads = threads;
+    }
+
+    /**
+     * @return Maximum edit distance for resolving unknown tokens, see {@link CommandSet#setFuzzyDistance(int)}
+     */
+    public int getFuzzyDistance() {
+        return _vocabulary.getFuzzyDistance();
+    }
+
+    /**
+     * Resolve unknown input tokens to the closest known token within an edit distance,
+     * such as near-miss spellings from speech recognition. Tokens get one edit per three
+     * characters, up to {@code maxDistance}, so short words are never changed.
+     * Placeholders are never resolved to.
+     *
+     * @param maxDistance Maximum number of edits, 0 to disable, which is the default
+     * @throws IllegalArgumentException If maxDistance < 0
+     */
+    public void setFuzzyDistance(int maxDistance) throws IllegalArgumentException {
+        _vocabulary.setFuzzyDistance(maxDistance);
+    }
+
+    /**
+     * @return {@code true} if unknown tokens are resolved to known ones that sound alike,
+     *         see {@link CommandSet#setPhoneticMatching(boolean)}
+     */
+    public boolean isPhoneticMatching() {
+        return _vocabulary.isPhonetic();
+    }
+
+    /**
+     * Resolve unknown input tokens to known tokens that sound alike, such as homophones
+     * from speech recognition. Tokens are compared by "Koelner Phonetik" for German and
+     * Metaphone for other languages, see the locale passed to the constructor. Two unknown
+     * tokens that sound like a known one when joined, such as a compound word that has
+     * been split up, are replaced by it. Phonetic resolution is tried before
+     * {@link CommandSet#setFuzzyDistance(int)}.
+     *
+     * @param phonetic {@code true} to enable, disabled by default
+     */
+    public void setPhoneticMatching(boolean phonetic) {
+        _vocabulary.setPhonetic(phonetic ? _locale : null);
+    }
+
+    /**
+     * @return Memory budget for nodes and edges of all commands in bytes, 0 for none
+     */
+    public long getMemoryBudget() {
+        return _memoryBudget;
+    }
+
+    /**
+     * Keep commands within a memory budget, by paging out chains that haven't matched for
+     * the longest time, see {@link MarkovChain#estimateSize}.
+     *
+     * Paged out chains keep an index of their node labels. They are only paged in again
+     * when a window of a query phrase is one of their labels, or they have placeholders,
+     * so the results are the same as without budget. Sizes are estimated when chains are
+     * added or paged in. Chains are paged out after a query, unless commands are being
+     * matched on other threads at the same time, then by a later query. Each command
+     * reuses a single page file, which is deleted when it is paged in.
+     *
+     * @param budget Memory budget in bytes, 0 to keep all chains in memory
+     * @param directory Directory for page files, null for the default temporary directory
+     * @throws IllegalArgumentException If budget < 0
+     */
+    public void setMemoryBudget(long    budget,
+                                File    directory) throws IllegalArgumentException {
+
+        if (budget < 0) {
+            throw new IllegalArgumentException("Memory budget can not be < 0");
+        }
+        _memoryBudget = budget;
+        _pageDirectory = directory;
+    }
+
+    /**
+     * @return Estimated footprint of nodes and edges of all commands in bytes, see
+     *         {@link MarkovChain#estimateSize}
+     */
+    public long estimateSize() {
+
+        long size = 0;
+        for (MarkovChain mc : this.values()) {
+            size += mc.estimateSize();
+        }
+        return size;
+    }
+
     /**
      * Shortcut for adding markov chains
      *
+     * Large sets of training phrases are tokenized and counted on several threads, the
+     * resulting chain is the same as when training on the calling thread.
+     *
      * @param key Identifier for this command
      * @param commands Training phrases for the markov chain
      */
     public void put(Object      key,
                     String[]    commands) {
 
+        double[] weights = new double[commands.length];
+        Arrays.fill(weights, 1.0);
+        put(key, commands, weights);
+    }
+
+    /**
+     * Shortcut for adding markov chains from a frequency table of training phrases, see
+     * {@link MarkovChain#train(List, double)}. Training cost depends on the number of
+     * distinct phrases only.
+     *
+     * @param key Identifier for this command
+     * @param commands Map of training phrase : number of occurrences
+     * @throws IllegalArgumentException If a number of occurrences is <= 0
+     */
+    public void put(Object                          key,
+                    Map<String, ? extends Number>   commands) throws IllegalArgumentException {
+
+        String[] phrases = new String[commands.size()];
+        double[] weights = new double[commands.size()];
+        int i = 0;
+        for (Map.Entry<String, ? extends Number> entry : commands.entrySet()) {
+            phrases[i] = entry.getKey();
+            weights[i] = entry.getValue().doubleValue();
+            if (weights[i] <= 0.0) {
+                throw new IllegalArgumentException("Training weight can not be <= 0");
+            }
+            i++;
+        }
+        put(key, phrases, weights);
+    }
+
+    private void put(Object     key,
+                     String[]   commands,
+                     double[]   weights) {
+
         MarkovChain mc = createChain();
-        for (String command : commands) {
-            List<String> phrase = Utils.words(command, _locale);
-            mc.train(phrase);
+        int nThreads = Math.min(_trainingThreads, commands.length / MIN_PHRASES_PER_THREAD);
+        if (nThreads > 1) {
+            trainParallel(mc, commands, weights, nThreads);
+        } else {
+            for (int i = 0; i < commands.length; i++) {
+                List<String> phrase = preprocess(_tokenizer.words(commands[i]));
+                _vocabulary.train(phrase);
+                mc.train(phrase, weights[i]);
+            }
         }
 
         Nlcmd.v(this.getClass(), "put()", key + " : " + mc);
         this.put(key, mc);
     }
 
+    /**
+     * Remove a training phrase from a command, see {@link MarkovChain#untrain(List)}.
+     *
+     * @param key Identifier for the command
+     * @param command Training phrase to remove
+     * @return {@code false} if there is no such command or the phrase hasn't been trained
+     */
+    public boolean untrain(Object   key,
+                           String   command) {
+
+        MarkovChain mc = this.get(key);
+        if (mc == null) {
+            return false;
+        }
+
+        // Only exact matches, so similar phrases are never removed instead
+        List<String> phrase = preprocess(_tokenizer.words(command));
+        _vocabulary.canonicalize(phrase);
+        return mc.untrain(phrase);
+    }
+
+    /**
+     * Match phrase against all commands and return key for best matching command markov chain.
+     *
+     * @see MarkovChain#match
+     * @param phrase Match phrase
+     * @return Key for best matching command or null
+     */
+    public Object match(String phrase) {
+
+        TokenBuffer buffer = BUFFERS.get();
+        _tokenizer.tokenize(phrase, _vocabulary, buffer);
+        return matchWords(buffer, null, null);
+    }
+
     /**
      * Match phrase against all commands and return key for best matching command markov chain.
      *
@@ -88,28 +589,152 @@ public class CommandSet extends HashMap<Object, MarkovChain> {
      * @param phrase Match phrase
      * @return Key for best matching command or null
      */
-    @SuppressLint("DefaultLocale")
     public Object match(List<String> phrase) {
 
+        return matchWords(transform(phrase), null, null);
+    }
+
+    /**
+     * Match phrase against commands until the deadline expires.
+     *
+     * Commands are visited in order of how many windows of the phrase they know, such that
+     * likely winners are scored early. The result is the same as without deadline if it
+     * is complete.
+     *
+     * @see CommandSet#match(String)
+     * @param phrase Match phrase
+     * @param deadline Time limit or cancellation token, null for none
+     * @return Best matching command so far
+     */
+    public MatchResult match(String     phrase,
+                             Deadline   deadline) {
+
+        TokenBuffer buffer = BUFFERS.get();
+        _tokenizer.tokenize(phrase, _vocabulary, buffer);
+        MatchResult result = new MatchResult();
+        matchWords(buffer, deadline, result);
+        return result;
+    }
+
+    /**
+     * Match phrase against commands until the deadline expires.
+     *
+     * @see CommandSet#match(String, Deadline)
+     * @param phrase Match phrase
+     * @param deadline Time limit or cancellation token, null for none
+     * @return Best matching command so far
+     */
+    public MatchResult match(List<String>   phrase,
+                             Deadline       deadline) {
+
+        MatchResult result = new MatchResult();
+        matchWords(transform(phrase), deadline, result);
+        return result;
+    }
+
+    /**
+     * @param deadline Time limit or null
+     * @param result Receives score and completeness if not null
+     */
+    @SuppressLint("DefaultLocale")
+    private Object matchWords(List<String>  phrase,
+                              Deadline      deadline,
+                              MatchResult   result) {
+
+        phrase = prepare(phrase);
+
+        // Keys are published before chains
+        MarkovChain[] chains = _chains;
+        Object[] keys = _keys;
+        if (!isSnapshotValid(keys, chains)) {
+            takeSnapshot();
+            chains = _chains;
+            keys = _keys;
+        }
+
+        Scorer scorer = _scorer;
+        Resolution resolution = resolve(phrase);
+        int[] visit = deadline == null ? hotOrder(chains) : visitOrder(phrase, chains, deadline);
+        // Joining tokens makes phrases shorter, which may score higher
+        double bound = resolution != null && resolution.isJoining() ?
+                       Double.POSITIVE_INFINITY :
+                       upperBound(scorer, phrase.size());
+        int[] hashes = _memoryBudget > 0 ? windowHashes(phrase, _order) : null;
+        boolean complete = true;
         double maxAvgProbability = 0.0;
         Object key = null;
+        int best = -1;
         double avgProbability;
-        for (Entry<Object, MarkovChain> entry : this.entrySet()) {
+        Lock lock = hashes != null ? _paging.readLock() : null;
+        if (lock != null) {
+            lock.lock();
+        }
+        try {
+            for (int j = 0; j < chains.length; j++) {
+
+                if (deadline != null && deadline.isExpired()) {
+                    complete = false;
+                    break;
+                }
 
-            MarkovChain mc = entry.getValue();
-            avgProbability = mc.match(phrase);
-            avgProbability = scoreAndClear(mc, avgProbability);
-            if (avgProbability > maxAvgProbability) {
-                maxAvgProbability = avgProbability;
-                key = entry.getKey();
+                int i = visit == null ? j : visit[j];
+                // Nothing beats the best possible score, only earlier commands tie with it
+                if (i > best && best >= 0 && maxAvgProbability >= bound) {
+                    continue;
+                }
+                MarkovChain mc = chains[i];
+                List<String> words = resolution == null ? phrase : resolution.apply(mc);
+                boolean pagedOut = hashes != null && mc.isPagedOut();
+                if (pagedOut && !isCandidate(mc, words, words == phrase ? hashes : null)) {
+                    continue;
+                }
+                // Highest average needs the entire phrase to match
+                avgProbability = scorer == ScoreMode.HIGHEST_AVG ? mc.match(words) : mc.match(words, scorer);
+                if (hashes != null) {
+                    used(chains, i, pagedOut, avgProbability);
+                }
+                if (isBetter(avgProbability, i, maxAvgProbability, best)) {
+                    maxAvgProbability = avgProbability;
+                    key = keys[i];
+                    best = i;
+                }
+            }
+        } finally {
+            if (lock != null) {
+                lock.unlock();
             }
         }
 
         d(this.getClass(), ".match()", maxAvgProbability);
 
+        countHit(chains, best);
+        if (hashes != null) {
+            trim(chains);
+        }
+        if (result != null) {
+            result.set(key, maxAvgProbability, complete);
+        }
         return key;
     }
 
+    /**
+     * Scan phrase against all commands and return key for best matching command markov chain.
+     *
+     * @see MarkovChain#scan
+     * @param phrase Match phrase
+     * @param matches Map of sub-phrase matches and average probabilities
+     * @param placeholders Map of matches placeholders and their actual input
+     * @return Key for best matching command or null
+     */
+    public Object scan(String                           phrase,
+                       HashMap<List<String>, Double>    matches,
+                       HashMap<String, List<String>>    placeholders) {
+
+        TokenBuffer buffer = BUFFERS.get();
+        _tokenizer.tokenize(phrase, _vocabulary, buffer);
+        return scanWords(buffer, matches, placeholders, null, null);
+    }
+
     /**
      * Scan phrase against all commands and return key for best matching command markov chain.
      *
@@ -123,148 +748,717 @@ public class CommandSet extends HashMap<Object, MarkovChain> {
                        HashMap<List<String>, Double>    matches,
                        HashMap<String, List<String>>    placeholders) {
 
+        return scanWords(transform(phrase), matches, placeholders, null, null);
+    }
+
+    /**
+     * Scan phrase against commands until the deadline expires, see
+     * {@link CommandSet#match(String, Deadline)}.
+     *
+     * @see CommandSet#scan(String, HashMap, HashMap)
+     * @param phrase Match phrase
+     * @param deadline Time limit or cancellation token, null for none
+     * @param matches Map of sub-phrase matches and average probabilities
+     * @param placeholders Map of matches placeholders and their actual input
+     * @return Best matching command so far
+     */
+    public MatchResult scan(String                          phrase,
+                            Deadline                        deadline,
+                            HashMap<List<String>, Double>   matches,
+                            HashMap<String, List<String>>   placeholders) {
+
+        TokenBuffer buffer = BUFFERS.get();
+        _tokenizer.tokenize(phrase, _vocabulary, buffer);
+        MatchResult result = new MatchResult();
+        scanWords(buffer, matches, placeholders, deadline, result);
+        return result;
+    }
+
+    /**
+     * Scan phrase against commands until the deadline expires.
+     *
+     * @see CommandSet#scan(String, Deadline, HashMap, HashMap)
+     * @param phrase Match phrase
+     * @param deadline Time limit or cancellation token, null for none
+     * @param matches Map of sub-phrase matches and average probabilities
+     * @param placeholders Map of matches placeholders and their actual input
+     * @return Best matching command so far
+     */
+    public MatchResult scan(List<String>                    phrase,
+                            Deadline                        deadline,
+                            HashMap<List<String>, Double>   matches,
+                            HashMap<String, List<String>>   placeholders) {
+
+        MatchResult result = new MatchResult();
+        scanWords(transform(phrase), matches, placeholders, deadline, result);
+        return result;
+    }
+
+    /**
+     * @param deadline Time limit or null
+     * @param result Receives score and completeness if not null
+     */
+    private Object scanWords(List<String>                   phrase,
+                             HashMap<List<String>, Double>  matches,
+                             HashMap<String, List<String>>  placeholders,
+                             Deadline                       deadline,
+                             MatchResult                    result) {
+
+        phrase = prepare(phrase);
+
+        // Keys are published before chains
+        MarkovChain[] chains = _chains;
+        Object[] keys = _keys;
+        if (!isSnapshotValid(keys, chains)) {
+            takeSnapshot();
+            chains = _chains;
+            keys = _keys;
+        }
+
+        Scorer scorer = _scorer;
+        Resolution resolution = resolve(phrase);
+        int[] visit = deadline == null ? hotOrder(chains) : visitOrder(phrase, chains, deadline);
+        // Joining tokens makes phrases shorter, which may score higher
+        double bound = resolution != null && resolution.isJoining() ?
+                       Double.POSITIVE_INFINITY :
+                       upperBound(scorer, phrase.size());
+        int[] hashes = _memoryBudget > 0 ? windowHashes(phrase, _order) : null;
+        boolean complete = true;
         double maxAvgProbability = 0.0;
         Object key = null;
-        for (Entry<Object, MarkovChain> entry : this.entrySet()) {
-
-            HashMap<List<String>, Double> matches_ = new HashMap<>();
-            HashMap<String, List<String>> placeholders_ = new HashMap<>();
-            MarkovChain mc = entry.getValue();
-            double avgProbability = mc.scan(phrase, matches_, placeholders_);
-            avgProbability = scoreAndClear(mc, avgProbability);
-            if (avgProbability > maxAvgProbability) {
-                maxAvgProbability = avgProbability;
-                key = entry.getKey();
-
-                if (matches != null) {
-                    matches.clear();
-                    matches.putAll(matches_);
+        int best = -1;
+        Result details = RESULTS.get();
+        Lock lock = hashes != null ? _paging.readLock() : null;
+        if (lock != null) {
+            lock.lock();
+        }
+        try {
+            for (int j = 0; j < chains.length; j++) {
+
+                if (deadline != null && deadline.isExpired()) {
+                    complete = false;
+                    break;
                 }
 
-                if (placeholders != null) {
-                    placeholders.clear();
-                    placeholders.putAll(placeholders_);
+                int i = visit == null ? j : visit[j];
+                // Nothing beats the best possible score, only earlier commands tie with it
+                if (i > best && best >= 0 && maxAvgProbability >= bound) {
+                    continue;
+                }
+                MarkovChain mc = chains[i];
+                List<String> words = resolution == null ? phrase : resolution.apply(mc);
+                boolean pagedOut = hashes != null && mc.isPagedOut();
+                if (pagedOut && !isCandidate(mc, words, words == phrase ? hashes : null)) {
+                    continue;
+                }
+                details.clear();
+                double avgProbability = mc.scanWith(words, details, _scanMode, _beamSettings, scorer);
+                if (hashes != null) {
+                    used(chains, i, pagedOut, avgProbability);
+                }
+                if (isBetter(avgProbability, i, maxAvgProbability, best)) {
+                    maxAvgProbability = avgProbability;
+                    key = keys[i];
+                    best = i;
+
+                    if (matches != null) {
+                        matches.clear();
+                    }
+                    if (placeholders != null) {
+                        placeholders.clear();
+                    }
+                    if (words == phrase) {
+                        details.extractMatches(matches, placeholders);
+                    } else {
+                        resolution.extractMatches(details, matches, placeholders);
+                    }
                 }
             }
+        } finally {
+            if (lock != null) {
+                lock.unlock();
+            }
         }
+        details.clear();
 
         d(this.getClass(), ".match()", maxAvgProbability);
 
+        countHit(chains, best);
+        if (hashes != null) {
+            trim(chains);
+        }
+        if (result != null) {
+            result.set(key, maxAvgProbability, complete);
+        }
         return key;
     }
 
-    private MarkovChain createChain() {
+    /**
+     * The first command in snapshot order wins among equally scored ones, regardless of the
+     * order they are visited in.
+     * @return {@code true} if the score of command {@code i} beats the best one so far
+     */
+    private static boolean isBetter(double  score,
+                                    int     i,
+                                    double  bestScore,
+                                    int     best) {
 
-        MarkovChain mc = new MarkovChain(_order);
-        //noinspection StatementWithEmptyBody
-        if (_scoreMode == ScoreMode.HIGHEST_AVG) {
-            // Nothing to do
-        } else  if (_scoreMode == ScoreMode.LONGEST_AVG_REL) {
-            Mixin mixin = new Mixin();
-            mc.setMixin(mixin);
-        } else if (_scoreMode == ScoreMode.LONGEST_AVG_REL_MOR) {
-            // TODO implement, fail for now
-            return null;
+        return score > bestScore ||
+               (best >= 0 && score == bestScore && i < best);
+    }
+
+    /**
+     * @return Highest score of a command for a phrase of {@code length} words, infinity
+     *         if unknown for the scorer
+     */
+    private double upperBound(Scorer    scorer,
+                              int       length) {
+
+        int nEdges = length - _minOrder;
+        if (!(scorer instanceof ScoreMode) || nEdges < 1) {
+            return Double.POSITIVE_INFINITY;
         }
+        return scorer.score(nEdges, nEdges, length);
+    }
 
-        return mc;
+    /**
+     * @return Snapshot indices in order of matches, most frequently matched command first,
+     *         or null if the order is of another snapshot
+     */
+    private int[] hotOrder(MarkovChain[] chains) {
+
+        int[] order = _hotOrder;
+        return order.length == chains.length ? order : null;
     }
 
-    private double scoreAndClear(MarkovChain mc, double defaultScore) throws RuntimeException {
+    /**
+     * Count a match of command {@code best}, and once in a while move frequently matched
+     * commands to the front of the visit order. Counts decay with every query, see
+     * {@link Decay}.
+     * @param chains Snapshot the query has been scored against
+     * @param best Snapshot index of the matching command, or -1
+     */
+    private void countHit(MarkovChain[]  chains,
+                          int            best) {
+
+        synchronized (_usageLock) {
+            // Indices of an older snapshot don't count
+            if (chains != _chains) {
+                best = -1;
+            }
+            _usage.advance(1.0);
+            double[] hits = _hits;
+            if (best >= 0) {
+                double scale = _usage.scale();
+                if (_usage.getEpoch() != _usageEpoch) {
+                    double factor = _usage.rebase(_usageEpoch);
+                    for (int i = 0; i < hits.length; i++) {
+                        hits[i] *= factor;
+                    }
+                    _usageEpoch = _usage.getEpoch();
+                }
+                hits[best] += scale;
+            }
 
-        if (_scoreMode == ScoreMode.HIGHEST_AVG) {
-            return defaultScore;
-        } else if (_scoreMode == ScoreMode.LONGEST_AVG_REL) {
-            Mixin mixin = mc.getMixin() instanceof Mixin ? (Mixin)mc.getMixin() : null;
-            double score = mixin.getScore();
-            mixin.clear();
-            return score;
-        } else if (_scoreMode == ScoreMode.LONGEST_AVG_REL_MOR) {
-            throw new RuntimeException("Not implemented");
-        } else {
-            throw new RuntimeException("Unknown score mode " + _scoreMode);
+            if (++_queries % REORDER_INTERVAL == 0) {
+                int[] order = _hotOrder;
+                if (order.length == hits.length && !isSorted(order, hits)) {
+                    // Visiting threads keep the previous order
+                    order = order.clone();
+                    sort(order, hits);
+                    _hotOrder = order;
+                }
+            }
         }
     }
 
     /**
-     * Custom scoring relative to phrase length
+     * @return {@code true} if commands are in order of decreasing hits
      */
-    class Mixin extends MarkovChainMixin {
+    private static boolean isSorted(int[]       order,
+                                    double[]    hits) {
 
-        private int                             _phraseLen;
-        private HashMap<Integer, Accumulator>   _accumulators = new HashMap<>();
+        for (int k = 1; k < order.length; k++) {
+            if (hits[order[k]] > hits[order[k - 1]]) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        @Override
-        int initQuery(List<String> phrase) {
+    /**
+     * Sort commands by decreasing hits, by insertion as the order changes little between
+     * updates. Commands with equal hits keep their order.
+     */
+    private static void sort(int[]      order,
+                             double[]   hits) {
 
-            _phraseLen = phrase.size();
-            int id = super.initQuery(phrase);
+        for (int k = 1; k < order.length; k++) {
+            int i = order[k];
+            int m = k - 1;
+            while (m >= 0 && hits[order[m]] < hits[i]) {
+                order[m + 1] = order[m];
+                m--;
+            }
+            order[m + 1] = i;
+        }
+    }
 
-            v(this.getClass(), ".initQuery() _phraseLen", _phraseLen);
+    /**
+     * Keys of commands in the order they are visited without deadline.
+     */
+    List<Object> getVisitOrder() {
+
+        Object[] keys = _keys;
+        int[] order = _hotOrder;
+        List<Object> l = new ArrayList<>(order.length);
+        for (int i : order) {
+            l.add(keys[i]);
+        }
+        return l;
+    }
 
-            _accumulators.put(id, new Accumulator());
+    /**
+     * Order commands by the number of windows of {@code phrase} that are node labels in
+     * their chain, see {@link MarkovChain#countLabels}, then by how often they matched.
+     * @param deadline Time limit, ordering stops when it expires
+     * @return Snapshot indices, most likely match first, or null if the deadline has expired
+     */
+    private int[] visitOrder(List<String>   phrase,
+                             MarkovChain[]  chains,
+                             Deadline       deadline) {
 
-            return id;
+        if (deadline.isExpired()) {
+            return null;
+        }
+        int[] hashes = windowHashes(phrase, _order);
+        // Read without locking, as hits only affect the order commands are visited in
+        final double[] usage = _hits.length == chains.length ? _hits : new double[chains.length];
+        final int[] hits = new int[chains.length];
+        Integer[] order = new Integer[chains.length];
+        for (int i = 0; i < chains.length; i++) {
+            if (deadline.isExpired()) {
+                return null;
+            }
+            int chainOrder = chains[i].getOrder();
+            hits[i] = chains[i].countLabels(chainOrder == _order ? hashes : windowHashes(phrase, chainOrder));
+            order[i] = i;
         }
 
-        @Override
-        void updateQuery(int id, Node node, Edge edge) {
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                if (hits[a] != hits[b]) {
+                    return hits[b] - hits[a];
+                }
+                return usage[a] != usage[b] ? Double.compare(usage[b], usage[a]) : a - b;
+            }
+        });
 
-            Accumulator accumulator = _accumulators.get(id);
-            accumulator.add(edge.getProbability());
+        int[] visit = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            visit[i] = order[i];
         }
+        return visit;
+    }
 
-        @Override
-        void finishQuery(int id, boolean success) {
+    /**
+     * @param hashes Window hashes of {@code phrase} for the order of the set, or null
+     * @return {@code false} if the chain is paged out and can't match {@code phrase}
+     */
+    private boolean isCandidate(MarkovChain     mc,
+                                List<String>    phrase,
+                                int[]           hashes) {
+
+        int order = mc.getOrder();
+        return mc.isCandidate(order == _order && hashes != null ? hashes : windowHashes(phrase, order));
+    }
+
+    /**
+     * Note that command {@code i} has been scored, it is used if it matched.
+     * @param chains Snapshot the query is scored against
+     * @param pagedIn Whether scoring has paged the chain in
+     * @param score Score of the command for the current query
+     */
+    private void used(MarkovChain[] chains,
+                      int           i,
+                      boolean       pagedIn,
+                      double        score) {
+
+        synchronized (_usageLock) {
+            if (chains != _chains) {
+                return;
+            }
+            if (pagedIn) {
+                _sizes[i] = -1;
+            }
+            if (score > 0.0) {
+                _lastUse[i] = _clock;
+            }
+        }
+    }
+
+    /**
+     * Page out the least recently matched commands until the rest fits into the memory
+     * budget. Commands that can't be paged out stay in memory.
+     * @param chains Snapshot of commands
+     */
+    private void trim(MarkovChain[] chains) {
+
+        synchronized (_usageLock) {
+            _clock++;
+        }
+        // Queries on other threads are still scoring, page out after a later one
+        if (!_paging.writeLock().tryLock()) {
+            return;
+        }
+        try {
+            synchronized (_usageLock) {
+                if (chains == _chains) {
+                    pageOutLeastRecent(chains);
+                }
+            }
+        } finally {
+            _paging.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Must be called with the usage lock held.
+     * @see #trim
+     */
+    private void pageOutLeastRecent(MarkovChain[] chains) {
 
-            if (!success) {
-                _accumulators.remove(id);
+        long total = 0;
+        for (int i = 0; i < chains.length; i++) {
+            if (_sizes[i] < 0) {
+                _sizes[i] = chains[i].estimateSize();
             }
+            total += _sizes[i];
         }
 
-        double getScore() {
+        while (total > _memoryBudget) {
+            int lru = -1;
+            for (int i = 0; i < chains.length; i++) {
+                if (!chains[i].isPagedOut() && (lru < 0 || _lastUse[i] < _lastUse[lru])) {
+                    lru = i;
+                }
+            }
+            if (lru < 0) {
+                break;
+            }
 
-            // Find longest sub-match
-            int maxLength = 0;
-            Accumulator longest = null;
-            for (Entry<Integer, Accumulator> entry : _accumulators.entrySet()) {
-                if (entry.getValue().getLength() > maxLength) {
-                    longest = entry.getValue();
-                    maxLength = entry.getValue().getLength();
+            try {
+                if (_pageFiles[lru] == null) {
+                    _pageFiles[lru] = File.createTempFile("nlcmd", ".chain", _pageDirectory);
                 }
+                chains[lru].pageOut(_pageFiles[lru]);
+            } catch (IOException e) {
+                Nlcmd.w(this.getClass(), "trim()", "Can not page out command: " + e.getMessage());
+                break;
+            }
+            total -= _sizes[lru];
+            _sizes[lru] = chains[lru].estimateSize();
+            total += _sizes[lru];
+        }
+    }
+
+    /**
+     * @return Label hashes of all windows of {@code order} words, see {@link Label#hashCode}
+     */
+    private static int[] windowHashes(List<String>  phrase,
+                                      int           order) {
+
+        int[] hashes = new int[Math.max(0, phrase.size() - order + 1)];
+        for (int w = 0; w < hashes.length; w++) {
+            int h = 1;
+            for (int k = 0; k < order; k++) {
+                h = 31 * h + phrase.get(w + k).hashCode();
             }
+            hashes[w] = h;
+        }
+        return hashes;
+    }
+
+    /**
+     * Start incremental matching, see {@link MatchSession}.
+     *
+     * Only commands that have been added before are matched by the session.
+     *
+     * @param threshold Minimum score for committing a match early
+     * @return New session object
+     */
+    public MatchSession createSession(double threshold) {
+
+        return new MatchSession(this, threshold);
+    }
+
+    Tokenizer getTokenizer() {
+        return _tokenizer;
+    }
+
+    Preprocessor getPreprocessor() {
+        return _preprocessor;
+    }
+
+    Vocabulary getVocabulary() {
+        return _vocabulary;
+    }
+
+    /**
+     * Apply case folding and normalization to pre-tokenized input.
+     * @param phrase Input phrase
+     * @return Transformed copy of {@code phrase}, or {@code phrase} if nothing to do
+     */
+    private List<String> transform(List<String> phrase) {
+
+        if (!_tokenizer.isTransforming()) {
+            return phrase;
+        }
+
+        List<String> l = new ArrayList<>(phrase.size());
+        for (String word : phrase) {
+            l.add(_tokenizer.transform(word));
+        }
+        return l;
+    }
+
+    /**
+     * @throws IllegalStateException If tokens have already been processed with current settings
+     */
+    private void checkTokenizerSettings() throws IllegalStateException {
+
+        if (!this.isEmpty() ||
+            !_preprocessor.isEmpty() ||
+            _vocabulary.size() > 0) {
+            throw new IllegalStateException("Can not change tokenizer settings after rules or commands have been added");
+        }
+    }
+
+    /**
+     * @param phrase Prepared query phrase
+     * @return Alternatives for unknown tokens of {@code phrase}, or null if there are none
+     */
+    private Resolution resolve(List<String> phrase) {
+
+        if (!_vocabulary.isResolving()) {
+            return null;
+        }
+        Resolution resolution = RESOLUTIONS.get();
+        return resolution.set(phrase, _vocabulary) ? resolution : null;
+    }
+
+    /**
+     * Apply stopwords, rewrite rules and equivalence classes to a query phrase. Unknown
+     * tokens are resolved per command, see {@link Resolution}.
+     * @param phrase Input phrase
+     * @return Processed copy of {@code phrase}, only valid until the next query on this thread
+     */
+    private List<String> prepare(List<String> phrase) {
 
-            if (longest != null) {
-                return longest.getProbability() * longest.getLength() / _phraseLen;
+        ArrayList<String> words = WORDS.get();
+        words.clear();
+        if (_preprocessor.isEmpty()) {
+            if (phrase instanceof RandomAccess) {
+                for (int i = 0; i < phrase.size(); i++) {
+                    words.add(phrase.get(i));
+                }
+            } else {
+                words.addAll(phrase);
             }
+        } else {
+            _cursors.get().process(phrase, words);
+        }
+        _vocabulary.canonicalize(words);
+        return words;
+    }
+
+    /**
+     * Add words of a rule pattern to the vocabulary, such that they are tokenized without
+     * creating substrings.
+     * @param pattern Tokenized rule pattern
+     */
+    private void learnPattern(List<String> pattern) {
+
+        for (String word : pattern) {
+            _vocabulary.add(word);
+        }
+    }
+
+    /**
+     * @return {@code true} if the snapshot of commands reflects the current content of the map
+     */
+    private boolean isSnapshotValid(Object[]        keys,
+                                    MarkovChain[]   chains) {
 
-            return 0;
+        if (chains.length != this.size()) {
+            return false;
+        }
+        for (int i = 0; i < chains.length; i++) {
+            if (this.get(keys[i]) != chains[i]) {
+                return false;
+            }
         }
+        return true;
+    }
+
+    /**
+     * Copy commands into arrays, such that they can be iterated without allocating.
+     */
+    private void takeSnapshot() {
 
-        void clear() {
-            _phraseLen = 0;
-            _accumulators.clear();
+        synchronized (_usageLock) {
+            Object[] keys = new Object[this.size()];
+            MarkovChain[] chains = new MarkovChain[this.size()];
+            long[] lastUse = new long[this.size()];
+            long[] sizes = new long[this.size()];
+            File[] pageFiles = new File[this.size()];
+            double[] hits = new double[this.size()];
+            int[] order = new int[this.size()];
+            int minOrder = _order;
+            IdentityHashMap<MarkovChain, Integer> previous = new IdentityHashMap<>();
+            for (int i = 0; i < _chains.length; i++) {
+                previous.put(_chains[i], i);
+            }
+            int i = 0;
+            for (Entry<Object, MarkovChain> entry : this.entrySet()) {
+                keys[i] = entry.getKey();
+                chains[i] = entry.getValue();
+                // Commands keep their usage, sizes are estimated again
+                Integer index = previous.get(chains[i]);
+                lastUse[i] = index == null ? _clock : _lastUse[index];
+                sizes[i] = -1;
+                pageFiles[i] = index == null ? null : _pageFiles[index];
+                hits[i] = index == null ? 0.0 : _hits[index];
+                order[i] = i;
+                minOrder = Math.min(minOrder, chains[i].getOrder());
+                i++;
+            }
+            sort(order, hits);
+            _lastUse = lastUse;
+            _sizes = sizes;
+            _pageFiles = pageFiles;
+            _hits = hits;
+            _minOrder = minOrder;
+            _hotOrder = order;
+            _keys = keys;
+            _chains = chains;
         }
     }
 
-    class Accumulator {
+    /**
+     * Apply stopwords and rewrite rules.
+     * @param phrase Input phrase
+     * @return Processed copy of {@code phrase}
+     */
+    private List<String> preprocess(List<String> phrase) {
+
+        List<String> l = new ArrayList<>(phrase.size());
+        _preprocessor.process(phrase, l);
+        return l;
+    }
+
+    /**
+     * Train chain with batches of phrases on separate threads.
+     *
+     * Tokenization and transition counting run in parallel, vocabulary IDs are assigned in
+     * between on the calling thread since they depend on the order of phrases. Partial counts
+     * are merged in batch order.
+     *
+     * @param mc Chain to train
+     * @param commands Training phrases
+     * @param weights Number of occurrences per phrase
+     * @param nThreads Number of threads
+     */
+    private void trainParallel(final MarkovChain    mc,
+                               final String[]       commands,
+                               final double[]       weights,
+                               int                  nThreads) {
+
+        final List<List<String>> phrases = new ArrayList<>(Collections.<List<String>>nCopies(commands.length, null));
+        final TransitionCounts[] counts = new TransitionCounts[nThreads];
+        // Cursors compile the rules, so create them here
+        final Preprocessor.Cursor[] cursors = new Preprocessor.Cursor[nThreads];
+        for (int t = 0; t < nThreads; t++) {
+            counts[t] = new TransitionCounts(mc.getOrder());
+            cursors[t] = _preprocessor.new Cursor();
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        try {
+            // Tokenize and apply rules
+            ArrayList<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < nThreads; t++) {
+                final int from = commands.length * t / nThreads;
+                final int to = commands.length * (t + 1) / nThreads;
+                final Preprocessor.Cursor cursor = cursors[t];
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = from; i < to; i++) {
+                            List<String> phrase = new ArrayList<>();
+                            cursor.process(_tokenizer.words(commands[i]), phrase);
+                            phrases.set(i, phrase);
+                        }
+                    }
+                }));
+            }
+            await(futures);
+
+            for (List<String> phrase : phrases) {
+                _vocabulary.train(phrase);
+            }
 
-        private int     _length;
-        private double  _avgP;
+            // Count transitions
+            futures.clear();
+            for (int t = 0; t < nThreads; t++) {
+                final int from = commands.length * t / nThreads;
+                final int to = commands.length * (t + 1) / nThreads;
+                final TransitionCounts batch = counts[t];
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = from; i < to; i++) {
+                            batch.add(phrases.get(i), weights[i]);
+                        }
+                    }
+                }));
+            }
+            await(futures);
 
-        void add(double p) {
-            double sum = _avgP * _length;
-            sum += p;
-            _length++;
-            _avgP = sum / _length;
+        } finally {
+            executor.shutdown();
         }
 
-        int getLength() {
-            return _length;
+        for (int t = 1; t < nThreads; t++) {
+            counts[0].merge(counts[t]);
         }
+        mc.train(phrases, weights, counts[0]);
+    }
+
+    /**
+     * Wait for tasks, passing on their exceptions.
+     * @param futures Pending tasks
+     */
+    private static void await(List<Future<?>> futures) {
 
-        double getProbability() {
-            return _avgP;
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while training", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
         }
     }
+
+    private MarkovChain createChain() {
+
+        return new MarkovChain(_order, _retention);
+    }
 }
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2019 Robert Staudinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ktm_technologies.nlcmd;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time limit and cancellation token for matching, see {@link CommandSet#match(String, Deadline)}.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class Deadline {
+
+    private final long          _end;
+    private final boolean       _timed;
+    private volatile boolean    _cancelled = false;
+
+    /**
+     * Create Deadline object without time limit, which only expires when cancelled.
+     */
+    public Deadline() {
+
+        _end = 0;
+        _timed = false;
+    }
+
+    /**
+     * Create Deadline object.
+     * @param timeout Time from now until the deadline expires
+     * @param unit Unit of {@code timeout}
+     * @throws IllegalArgumentException If timeout < 0
+     */
+    public Deadline(long        timeout,
+                    TimeUnit    unit) throws IllegalArgumentException {
+
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Timeout can not be < 0");
+        }
+        _end = System.nanoTime() + unit.toNanos(timeout);
+        _timed = true;
+    }
+
+    /**
+     * Expire deadline right away, may be called from any thread.
+     */
+    public void cancel() {
+        _cancelled = true;
+    }
+
+    /**
+     * @return {@code true} if cancelled or the time limit has passed
+     */
+    public boolean isExpired() {
+        return _cancelled || (_timed && System.nanoTime() - _end >= 0);
+    }
+}
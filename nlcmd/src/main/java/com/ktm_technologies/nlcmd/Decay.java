@@ -0,0 +1,116 @@
+/*
+ * Copyright 2019 Robert Staudinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ktm_technologies.nlcmd;
+
+/**
+ * Clock for exponential decay of transition counts.
+ *
+ * Instead of scaling down all counts as time passes, counts are added scaled up by a
+ * global factor that grows with time. Nodes store counts relative to an epoch, the time at
+ * which the factor was 1. Once the factor gets too large a new epoch starts, and nodes are
+ * moved to it lazily, the next time their counts change.
+ */
+class Decay {
+
+    // Start new epoch beyond this factor, well before doubles overflow
+    private static final double MAX_SCALE = 1e100;
+
+    private final double    _halfLife;
+    private final double    _rate;
+    private double          _time = 0.0;
+    private double          _epoch = 0.0;
+
+    /**
+     * Create Decay object.
+     * @param halfLife Time after which a count has decayed to half its value
+     * @throws IllegalArgumentException If halfLife <= 0
+     */
+    Decay(double halfLife) throws IllegalArgumentException {
+
+        if (!(halfLife > 0.0)) {
+            throw new IllegalArgumentException("Half-life can not be <= 0");
+        }
+        _halfLife = halfLife;
+        _rate = Math.log(2.0) / halfLife;
+    }
+
+    /**
+     * @return Time after which a count has decayed to half its value
+     */
+    double getHalfLife() {
+        return _halfLife;
+    }
+
+    /**
+     * @return Current time
+     */
+    double getTime() {
+        return _time;
+    }
+
+    /**
+     * @param elapsed Time to move the clock forward
+     * @throws IllegalArgumentException If elapsed < 0
+     */
+    void advance(double elapsed) throws IllegalArgumentException {
+
+        if (elapsed < 0.0) {
+            throw new IllegalArgumentException("Elapsed time can not be < 0");
+        }
+        _time += elapsed;
+    }
+
+    /**
+     * @return Start of the current epoch
+     */
+    double getEpoch() {
+        return _epoch;
+    }
+
+    /**
+     * Scale for counts added now, relative to the current epoch. May start a new epoch, so
+     * nodes must be moved to the current epoch after calling this.
+     * @return Factor to multiply counts with before adding them
+     */
+    double scale() {
+
+        double scale = Math.exp(_rate * (_time - _epoch));
+        if (scale > MAX_SCALE) {
+            _epoch = _time;
+            scale = 1.0;
+        }
+        return scale;
+    }
+
+    /**
+     * @param epoch Epoch of stored counts
+     * @return Factor to move stored counts to the current epoch
+     */
+    double rebase(double epoch) {
+
+        return Math.exp(_rate * (epoch - _epoch));
+    }
+
+    /**
+     * @param epoch Epoch of stored counts
+     * @return Factor to get decayed counts at the current time from stored counts
+     */
+    double count(double epoch) {
+
+        return Math.exp(_rate * (epoch - _time));
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2019 Robert Staudinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ktm_technologies.nlcmd;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Run of a matched action, see {@link Nlcmd#setExecutor}.
+ *
+ * Actions that run on an executor may time out, in which case they are cancelled and their
+ * thread is interrupted. Timeouts are tracked by a single shared daemon thread.
+ */
+class Dispatch extends FutureTask<Void> {
+
+    private static ScheduledThreadPoolExecutor  _timer = null;
+
+    private final Object                _action;
+    private final DispatchListener      _listener;
+    private volatile boolean            _timedOut = false;
+    private volatile ScheduledFuture<?> _timeout = null;
+
+    /**
+     * Create Dispatch object.
+     * @param action Callback of the action
+     * @param run Invocation of the callback
+     * @param listener Completion listener or null
+     */
+    Dispatch(Object             action,
+             Runnable           run,
+             DispatchListener   listener) {
+
+        super(run, null);
+        _action = action;
+        _listener = listener;
+    }
+
+    /**
+     * Run the action.
+     * @param executor Executor or null to run on the calling thread, in which case
+     *                 exceptions are passed on to the caller
+     * @param timeout Milliseconds until the action is cancelled, 0 for none. Only applies
+     *                with an executor.
+     * @throws RuntimeException Thrown by the action when run on the calling thread, or by
+     *                          the executor if it doesn't accept the action
+     */
+    void start(Executor executor,
+               long     timeout) throws RuntimeException {
+
+        if (executor == null) {
+            run();
+            rethrow();
+            return;
+        }
+
+        if (timeout > 0) {
+            _timeout = timer().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    _timedOut = true;
+                    if (!cancel(true)) {
+                        _timedOut = false;
+                    }
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+        }
+        try {
+            executor.execute(this);
+        } catch (RuntimeException e) {
+            // Never runs, so it must not time out either
+            ScheduledFuture<?> scheduled = _timeout;
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    protected void done() {
+
+        ScheduledFuture<?> timeout = _timeout;
+        if (timeout != null) {
+            timeout.cancel(false);
+        }
+        if (_listener != null) {
+            _listener.finished(_action, getError());
+        }
+    }
+
+    /**
+     * @return Error of the finished action, see {@link DispatchListener#finished}
+     */
+    private Throwable getError() {
+
+        try {
+            get();
+            return null;
+        } catch (CancellationException e) {
+            return _timedOut ? new TimeoutException("Action timed out") : e;
+        } catch (ExecutionException e) {
+            return e.getCause();
+        } catch (InterruptedException e) {
+            // Not reached, the task is done
+            Thread.currentThread().interrupt();
+            return e;
+        }
+    }
+
+    private void rethrow() throws RuntimeException {
+
+        Throwable error = getError();
+        if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        } else if (error instanceof Error) {
+            throw (Error) error;
+        } else if (error != null) {
+            throw new IllegalStateException(error);
+        }
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor timer() {
+
+        if (_timer == null) {
+            _timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "nlcmd-timeout");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return _timer;
+    }
+}
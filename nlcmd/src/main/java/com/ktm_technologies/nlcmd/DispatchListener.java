@@ -0,0 +1,34 @@
+/*
+ * Copyright 2019 Robert Staudinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ktm_technologies.nlcmd;
+
+/**
+ * Interface for being notified when a dispatched action has finished, see
+ * {@link Nlcmd#setListener(DispatchListener)}.
+ */
+public interface DispatchListener {
+
+    /**
+     * Hook to run when an action has finished, on the thread that ran it or on the timeout
+     * thread if it has timed out.
+     *
+     * @param action Callback of the action, {@link MatchLambda} or {@link ScanLambda}
+     * @param error Null on success, {@link java.util.concurrent.TimeoutException} if the
+     *              action has timed out, otherwise what the action has thrown
+     */
+    void finished(Object action, Throwable error);
+}
@@ -16,57 +16,186 @@
 
 package com.ktm_technologies.nlcmd;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PrintStream;
-import java.util.Locale;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 
 /**
  * Used for writing model to Graphviz dot format.
+ *
+ * Large models can be cut down to edges above a probability threshold, or to the most
+ * probable edges per node. For the neighbourhood of given nodes see
+ * {@link MarkovChain#traverseNeighbourhood}. Output is buffered until the model is complete.
+ *
+ * Can be passed to {@link MarkovChain#traverseNodes(NodeStream, int)} with several threads,
+ * the edges of a node are then written in one piece.
  */
-public class DotWriter implements Stream {
+public class DotWriter implements Stream, NodeStream {
 
     private final String        _name;
-    private final PrintStream   _out;
+    private final Writer        _out;
+    private double              _threshold = 0.0;
+    private int                 _topK = 0;
+
+    // Source label of the current graph, see startGraph()
+    private String              _from = null;
 
     public DotWriter(String         name,
                      OutputStream   out) {
         _name = name;
-        _out = new PrintStream(out);
+        _out = new BufferedWriter(new OutputStreamWriter(out, Config.CHARSET));
+    }
+
+    /**
+     * @return Minimum probability of written edges
+     */
+    public double getThreshold() {
+        return _threshold;
+    }
+
+    /**
+     * Only write edges with at least the given probability.
+     * @param threshold Minimum probability, 0 for all edges
+     */
+    public void setThreshold(double threshold) {
+        _threshold = threshold;
+    }
+
+    /**
+     * @return Maximum number of written edges per node, 0 for all
+     */
+    public int getTopK() {
+        return _topK;
+    }
+
+    /**
+     * Only write the most probable outgoing edges of each node, which requires the
+     * model to be walked by {@link MarkovChain#traverseNodes}.
+     * @param topK Maximum number of edges per node, 0 for all
+     * @throws IllegalArgumentException If topK < 0
+     */
+    public void setTopK(int topK) throws IllegalArgumentException {
+
+        if (topK < 0) {
+            throw new IllegalArgumentException("Number of edges can not be < 0");
+        }
+        _topK = topK;
     }
 
     @Override
-    public void startModel(int window) {
+    public void startModel(int window) throws IOException {
 
-        _out.println("digraph " + _name + " {");
+        _out.write("digraph " + _name + " {\n");
     }
 
     @Override
-    public void endModel() {
+    public void endModel() throws IOException {
 
-        _out.println("}");
+        _out.write("}\n");
+        _out.flush();
     }
 
     @Override
-    public void startGraph(String[] labelFragments) {
+    public void startGraph(String[] labelFragments) throws IllegalStateException {
 
-        String label = createLabel(labelFragments);
-        _out.print("  \"" + label + "\"");
+        if (_topK > 0) {
+            throw new IllegalStateException("Can not select top edges when walking the model edge by edge");
+        }
+        _from = createLabel(labelFragments);
     }
 
     @Override
     public void endGraph() {
 
-        _out.println();
+        _from = null;
     }
 
     @Override
     public void addEdge(double      probability,
-                        String[]    labelFragments) {
+                        double      count,
+                        String[]    labelFragments) throws IOException {
+
+        if (probability < _threshold) {
+            return;
+        }
 
-        String label = createLabel(labelFragments);
-        String p = String.format(Locale.US, "%.2f",probability);
+        StringBuilder sb = new StringBuilder();
+        appendEdge(sb, _from, createLabel(labelFragments), probability);
+        _out.write(sb.toString());
+    }
+
+    @Override
+    public void addNode(String[]    labelFragments,
+                        String[][]  targets,
+                        double[]    probabilities,
+                        double[]    counts) throws IOException {
+
+        String from = createLabel(labelFragments);
+        StringBuilder sb = new StringBuilder();
+        if (_topK == 0) {
+            for (int i = 0; i < targets.length; i++) {
+                if (probabilities[i] >= _threshold) {
+                    appendEdge(sb, from, createLabel(targets[i]), probabilities[i]);
+                }
+            }
+        } else {
+            // Selection by repeated maximum, the number of edges per node is small
+            boolean[] written = new boolean[targets.length];
+            for (int k = 0; k < _topK; k++) {
+                int max = -1;
+                for (int i = 0; i < targets.length; i++) {
+                    if (!written[i] &&
+                        probabilities[i] >= _threshold &&
+                        (max < 0 || probabilities[i] > probabilities[max])) {
+                        max = i;
+                    }
+                }
+                if (max < 0) {
+                    break;
+                }
+                written[max] = true;
+                appendEdge(sb, from, createLabel(targets[max]), probabilities[max]);
+            }
+        }
 
-        _out.print(" -> \"" + label + "\" [ label=\"" + p + "\" ];");
+        // Writers lock around a single call
+        if (sb.length() > 0) {
+            _out.write(sb.toString());
+        }
+    }
+
+    /**
+     * Append a line for a single edge.
+     */
+    private static void appendEdge(StringBuilder    sb,
+                                   String           from,
+                                   String           to,
+                                   double           probability) {
+
+        sb.append("  \"").append(from).append("\" -> \"").append(to).append("\" [ label=\"");
+        appendProbability(sb, probability);
+        sb.append("\" ];\n");
+    }
+
+    /**
+     * Append probability with two decimals, without going through String.format().
+     */
+    static void appendProbability(StringBuilder sb,
+                                  double        probability) {
+
+        long hundredths = Math.round(probability * 100);
+        if (hundredths < 0) {
+            sb.append('-');
+            hundredths = -hundredths;
+        }
+        sb.append(hundredths / 100).append('.');
+        long fraction = hundredths % 100;
+        if (fraction < 10) {
+            sb.append('0');
+        }
+        sb.append(fraction);
     }
 
     /**
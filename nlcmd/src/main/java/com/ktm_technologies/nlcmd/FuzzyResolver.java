@@ -0,0 +1,206 @@
+/*
+ * Copyright 2019 Robert Staudinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ktm_technologies.nlcmd;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps unknown tokens to known tokens within a maximum edit distance, such as
+ * misspellings from speech recognition.
+ *
+ * Known tokens are kept in a BK-tree, where children are keyed by their Levenshtein
+ * distance to the parent. By the triangle inequality only children within the maximum
+ * distance of the distance to the parent need to be visited, so a lookup compares
+ * against a small part of the vocabulary only. Answers are cached, lookups may run on
+ * several threads as long as no tokens are added at the same time.
+ */
+class FuzzyResolver {
+
+    // Tokens need this many characters per edit
+    private static final int CHARS_PER_EDIT = 3;
+    // Cache is started over when it grows beyond this size
+    private static final int MAX_CACHE = 4096;
+
+    private final int       _maxDistance;
+
+    // Tree nodes, the first one is the root
+    private String[]        _words = new String[8];
+    private String[]        _canonical = new String[8];
+    // First child, next sibling or -1
+    private int[]           _child = new int[8];
+    private int[]           _sibling = new int[8];
+    // Distance to parent
+    private int[]           _distance = new int[8];
+    private int             _size = 0;
+
+    // Query token : resolved token, or the query token itself if there is none
+    private final ConcurrentHashMap<String, String> _cache = new ConcurrentHashMap<>();
+
+    /**
+     * Create empty FuzzyResolver object.
+     * @param maxDistance Maximum number of edits
+     * @throws IllegalArgumentException If maxDistance < 1
+     */
+    FuzzyResolver(int maxDistance) throws IllegalArgumentException {
+
+        if (maxDistance < 1) {
+            throw new IllegalArgumentException("Edit distance can not be < 1");
+        }
+        _maxDistance = maxDistance;
+    }
+
+    /**
+     * @return Maximum number of edits
+     */
+    int getMaxDistance() {
+        return _maxDistance;
+    }
+
+    /**
+     * Add known token, placeholders are ignored.
+     * @param word Token as it may be spelled
+     * @param canonical Token to resolve {@code word} to
+     */
+    void add(String word,
+             String canonical) {
+
+        if (word.isEmpty() || SlidingWindow.isPlaceholder(word)) {
+            return;
+        }
+
+        _cache.clear();
+        if (_size == 0) {
+            create(word, canonical, 0);
+            return;
+        }
+
+        int node = 0;
+        while (true) {
+            int d = distance(word, _words[node]);
+            if (d == 0) {
+                return;
+            }
+            int child = _child[node];
+            while (child >= 0 && _distance[child] != d) {
+                child = _sibling[child];
+            }
+            if (child < 0) {
+                child = create(word, canonical, d);
+                _sibling[child] = _child[node];
+                _child[node] = child;
+                return;
+            }
+            node = child;
+        }
+    }
+
+    /**
+     * Find closest known token, the first one added wins among equally close ones.
+     * Tokens get one edit per {@value #CHARS_PER_EDIT} characters, up to the maximum.
+     * @param token Unknown token
+     * @return Known token or {@code token} itself if there is none close enough
+     */
+    String resolve(String token) {
+
+        String resolved = _cache.get(token);
+        if (resolved != null) {
+            return resolved;
+        }
+
+        resolved = token;
+        int maxDistance = Math.min(_maxDistance, token.length() / CHARS_PER_EDIT);
+        if (_size > 0 && maxDistance > 0 && !SlidingWindow.isPlaceholder(token)) {
+            int best = -1;
+            int bestDistance = maxDistance + 1;
+            int[] stack = new int[8];
+            int top = 0;
+            stack[top++] = 0;
+            while (top > 0) {
+                int node = stack[--top];
+                int d = distance(token, _words[node]);
+                if (d < bestDistance || (d == bestDistance && node < best)) {
+                    best = node;
+                    bestDistance = d;
+                }
+                // Equally close tokens may still be found with the current best distance
+                int radius = Math.min(maxDistance, bestDistance);
+                for (int child = _child[node]; child >= 0; child = _sibling[child]) {
+                    if (Math.abs(_distance[child] - d) <= radius) {
+                        if (top == stack.length) {
+                            stack = Arrays.copyOf(stack, top * 2);
+                        }
+                        stack[top++] = child;
+                    }
+                }
+            }
+            if (best >= 0) {
+                resolved = _canonical[best];
+            }
+        }
+
+        if (_cache.size() >= MAX_CACHE) {
+            _cache.clear();
+        }
+        _cache.put(token, resolved);
+        return resolved;
+    }
+
+    private int create(String   word,
+                       String   canonical,
+                       int      distance) {
+
+        if (_size == _words.length) {
+            _words = Arrays.copyOf(_words, _size * 2);
+            _canonical = Arrays.copyOf(_canonical, _size * 2);
+            _child = Arrays.copyOf(_child, _size * 2);
+            _sibling = Arrays.copyOf(_sibling, _size * 2);
+            _distance = Arrays.copyOf(_distance, _size * 2);
+        }
+        int node = _size++;
+        _words[node] = word;
+        _canonical[node] = canonical;
+        _child[node] = -1;
+        _sibling[node] = -1;
+        _distance[node] = distance;
+        return node;
+    }
+
+    /**
+     * @return Levenshtein distance between {@code a} and {@code b}
+     */
+    static int distance(String a, String b) {
+
+        int[] prev = new int[b.length() + 1];
+        int[] cur = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            prev[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            cur[0] = i;
+            char c = a.charAt(i - 1);
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = c == b.charAt(j - 1) ? 0 : 1;
+                cur[j] = Math.min(Math.min(cur[j - 1] + 1, prev[j] + 1), prev[j - 1] + cost);
+            }
+            int[] tmp = prev;
+            prev = cur;
+            cur = tmp;
+        }
+        return prev[b.length()];
+    }
+}
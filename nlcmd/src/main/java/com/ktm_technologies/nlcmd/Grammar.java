@@ -0,0 +1,399 @@
+/*
+ * Copyright 2019 Robert Staudinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ktm_technologies.nlcmd;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact description of a set of training phrases.
+ *
+ * Syntax: {@code (a | b)} for alternatives, {@code [a]} for optional parts and
+ * {@code $name} for sub-rules, anything else is taken as words, including
+ * {@code <placeholder>} slots. For example {@code (open | start) the dashboard [menu]}
+ * stands for four phrases.
+ *
+ * Grammars are compiled into a graph of words, and transitions are counted on the graph
+ * rather than on the phrases it stands for. Every path through the graph is one phrase,
+ * so the count of a transition is the number of paths leading to it times the number of
+ * paths leading on from it, which gives the same counts as training all phrases.
+ */
+class Grammar {
+
+    /**
+     * Splits literal text of a grammar into words.
+     */
+    interface Words {
+
+        /**
+         * @param text Literal text
+         * @return Words of {@code text}, may be empty
+         */
+        List<String> words(String text);
+    }
+
+    /**
+     * Node of the syntax tree.
+     */
+    private static abstract class Expression {
+
+        /**
+         * Append graph for this expression.
+         * @param graph Graph to append to
+         * @param in Vertex to continue from
+         * @return Last vertex of the appended graph
+         */
+        abstract int compile(Graph graph, int in);
+    }
+
+    private static class Literal extends Expression {
+
+        final String text;
+
+        Literal(String text) {
+            this.text = text;
+        }
+
+        @Override
+        int compile(Graph graph, int in) {
+
+            int out = in;
+            for (String word : graph.words.words(text)) {
+                int v = graph.createVertex(word);
+                graph.link(out, v);
+                out = v;
+            }
+            return out;
+        }
+    }
+
+    private static class Sequence extends Expression {
+
+        final List<Expression> items;
+
+        Sequence(List<Expression> items) {
+            this.items = items;
+        }
+
+        @Override
+        int compile(Graph graph, int in) {
+
+            int out = in;
+            for (Expression item : items) {
+                out = item.compile(graph, out);
+            }
+            return out;
+        }
+    }
+
+    private static class Alternatives extends Expression {
+
+        final List<Expression> branches;
+
+        Alternatives(List<Expression> branches) {
+            this.branches = branches;
+        }
+
+        @Override
+        int compile(Graph graph, int in) {
+
+            int[] ends = new int[branches.size()];
+            for (int i = 0; i < ends.length; i++) {
+                ends[i] = branches.get(i).compile(graph, in);
+            }
+            // Join after all branches, such that vertices stay in topological order
+            int out = graph.createVertex(null);
+            for (int end : ends) {
+                graph.link(end, out);
+            }
+            return out;
+        }
+    }
+
+    private static class Option extends Expression {
+
+        final Expression inner;
+
+        Option(Expression inner) {
+            this.inner = inner;
+        }
+
+        @Override
+        int compile(Graph graph, int in) {
+
+            int end = inner.compile(graph, in);
+            int out = graph.createVertex(null);
+            graph.link(end, out);
+            graph.link(in, out);
+            return out;
+        }
+    }
+
+    private static class Reference extends Expression {
+
+        final String name;
+
+        Reference(String name) {
+            this.name = name;
+        }
+
+        @Override
+        int compile(Graph graph, int in) {
+
+            Grammar rule = graph.rules.get(name);
+            if (rule == null) {
+                throw new IllegalArgumentException("Unknown rule $" + name);
+            }
+            if (!graph.expanding.add(name)) {
+                throw new IllegalArgumentException("Recursive rule $" + name);
+            }
+            // Every reference gets its own copy, paths through it must not mix
+            int out = rule._root.compile(graph, in);
+            graph.expanding.remove(name);
+            return out;
+        }
+    }
+
+    /**
+     * Graph of words, connected by empty vertices for alternatives and optional parts.
+     * Edges only lead from earlier to later vertices.
+     */
+    private static class Graph {
+
+        final Map<String, Grammar>              rules;
+        final Words                             words;
+        final HashSet<String>                   expanding = new HashSet<>();
+        // Word per vertex, null for empty vertices
+        final ArrayList<String>                 vertices = new ArrayList<>();
+        final ArrayList<ArrayList<Integer>>     successors = new ArrayList<>();
+
+        Graph(Map<String, Grammar>  rules,
+              Words                 words) {
+
+            this.rules = rules;
+            this.words = words;
+        }
+
+        int createVertex(String word) {
+
+            vertices.add(word);
+            successors.add(new ArrayList<Integer>());
+            return vertices.size() - 1;
+        }
+
+        void link(int from, int to) {
+            successors.get(from).add(to);
+        }
+    }
+
+    private final Expression    _root;
+    private final String        _expression;
+    private int                 _pos = 0;
+
+    /**
+     * Parse grammar.
+     * @param expression Grammar in the syntax described above
+     * @throws IllegalArgumentException If the grammar is malformed
+     */
+    Grammar(String expression) throws IllegalArgumentException {
+
+        _expression = expression;
+        _root = parseAlternatives();
+        if (_pos < _expression.length()) {
+            throw new IllegalArgumentException("Unexpected '" + _expression.charAt(_pos) +
+                                               "' at offset " + _pos + " of grammar: " + _expression);
+        }
+    }
+
+    /**
+     * Count transitions of all phrases of the grammar.
+     * @param order Markov chain order, that is the window size
+     * @param rules Sub-rules by name
+     * @param words Splits literal text into words
+     * @return Transition counts
+     * @throws IllegalArgumentException If a sub-rule is unknown or recursive
+     */
+    TransitionCounts count(int                  order,
+                           Map<String, Grammar> rules,
+                           Words                words) throws IllegalArgumentException {
+
+        Graph graph = new Graph(rules, words);
+        int start = graph.createVertex(null);
+        int end = _root.compile(graph, start);
+        int stop = graph.createVertex(null);
+        graph.link(end, stop);
+
+        // Words reached from each vertex via empty vertices, with number of ways, and
+        // number of ways to reach the end of the phrase without another word
+        int n = graph.vertices.size();
+        List<LinkedHashMap<Integer, Double>> next = new ArrayList<>(n);
+        double[] ends = new double[n];
+        for (int v = 0; v < n; v++) {
+            next.add(new LinkedHashMap<Integer, Double>());
+        }
+        for (int v = n - 1; v >= 0; v--) {
+            LinkedHashMap<Integer, Double> reached = next.get(v);
+            for (int w : graph.successors.get(v)) {
+                if (w == stop) {
+                    ends[v] += 1.0;
+                } else if (graph.vertices.get(w) != null) {
+                    add(reached, w, 1.0);
+                } else {
+                    for (Map.Entry<Integer, Double> entry : next.get(w).entrySet()) {
+                        add(reached, entry.getKey(), entry.getValue());
+                    }
+                    ends[v] += ends[w];
+                }
+            }
+        }
+
+        // Number of phrase beginnings leading up to and including a word
+        double[] forward = new double[n];
+        for (Map.Entry<Integer, Double> entry : next.get(start).entrySet()) {
+            forward[entry.getKey()] += entry.getValue();
+        }
+        for (int v = 0; v < n; v++) {
+            if (graph.vertices.get(v) != null) {
+                for (Map.Entry<Integer, Double> entry : next.get(v).entrySet()) {
+                    forward[entry.getKey()] += forward[v] * entry.getValue();
+                }
+            }
+        }
+
+        // Number of phrase endings starting with a word
+        double[] backward = new double[n];
+        for (int v = n - 1; v >= 0; v--) {
+            if (graph.vertices.get(v) != null) {
+                backward[v] = ends[v];
+                for (Map.Entry<Integer, Double> entry : next.get(v).entrySet()) {
+                    backward[v] += entry.getValue() * backward[entry.getKey()];
+                }
+            }
+        }
+
+        // Every walk over order + 1 words is a transition
+        TransitionCounts counts = new TransitionCounts(order);
+        ArrayList<String> window = new ArrayList<>(order + 1);
+        for (int v = 0; v < n; v++) {
+            if (graph.vertices.get(v) != null && forward[v] > 0.0) {
+                walk(graph, next, backward, counts, window, v, forward[v], order);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Count walks from vertex {@code v} until the window is full.
+     */
+    private static void walk(Graph                                  graph,
+                             List<LinkedHashMap<Integer, Double>>   next,
+                             double[]                               backward,
+                             TransitionCounts                       counts,
+                             ArrayList<String>                      window,
+                             int                                    v,
+                             double                                 ways,
+                             int                                    order) {
+
+        window.add(graph.vertices.get(v));
+        if (window.size() == order + 1) {
+            if (backward[v] > 0.0) {
+                counts.add(window, ways * backward[v]);
+            }
+        } else {
+            for (Map.Entry<Integer, Double> entry : next.get(v).entrySet()) {
+                walk(graph, next, backward, counts, window, entry.getKey(), ways * entry.getValue(), order);
+            }
+        }
+        window.remove(window.size() - 1);
+    }
+
+    private static void add(LinkedHashMap<Integer, Double>  map,
+                            int                             key,
+                            double                          value) {
+
+        Double old = map.get(key);
+        map.put(key, old == null ? value : old + value);
+    }
+
+    private Expression parseAlternatives() {
+
+        List<Expression> branches = new ArrayList<>();
+        branches.add(parseSequence());
+        while (_pos < _expression.length() && _expression.charAt(_pos) == '|') {
+            _pos++;
+            branches.add(parseSequence());
+        }
+        return branches.size() == 1 ? branches.get(0) : new Alternatives(branches);
+    }
+
+    private Expression parseSequence() {
+
+        List<Expression> items = new ArrayList<>();
+        while (_pos < _expression.length()) {
+            char c = _expression.charAt(_pos);
+            if (c == ')' || c == ']' || c == '|') {
+                break;
+            }
+            if (c == '(') {
+                _pos++;
+                items.add(parseAlternatives());
+                expect(')');
+            } else if (c == '[') {
+                _pos++;
+                items.add(new Option(parseAlternatives()));
+                expect(']');
+            } else if (c == '$') {
+                int start = ++_pos;
+                while (_pos < _expression.length() && isNameChar(_expression.charAt(_pos))) {
+                    _pos++;
+                }
+                if (_pos == start) {
+                    throw new IllegalArgumentException("Missing rule name at offset " + start +
+                                                       " of grammar: " + _expression);
+                }
+                items.add(new Reference(_expression.substring(start, _pos)));
+            } else {
+                int start = _pos;
+                while (_pos < _expression.length() && "()[]|$".indexOf(_expression.charAt(_pos)) < 0) {
+                    _pos++;
+                }
+                items.add(new Literal(_expression.substring(start, _pos)));
+            }
+        }
+        return items.size() == 1 ? items.get(0) : new Sequence(items);
+    }
+
+    private void expect(char c) {
+
+        if (_pos >= _expression.length() || _expression.charAt(_pos) != c) {
+            throw new IllegalArgumentException("Missing '" + c + "' at offset " + _pos +
+                                               " of grammar: " + _expression);
+        }
+        _pos++;
+    }
+
+    /**
+     * @param c Input character
+     * @return {@code true} if {@code c} can be part of a rule name
+     */
+    static boolean isNameChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+}
@@ -24,8 +24,11 @@ import java.io.OutputStream;
 
 /**
  * Used for writing model JSON format.
+ *
+ * Can be passed to {@link MarkovChain#traverseNodes(NodeStream, int)} with several threads,
+ * edges are then appended in the order their nodes are visited.
  */
-public class JsonWriter implements Stream {
+public class JsonWriter implements Stream, NodeStream {
 
     private final String        _name;
     private final JSONObject    _json;
@@ -88,6 +91,7 @@ public class JsonWriter implements Stream {
 
     @Override
     public void addEdge(double      probability,
+                        double      count,
                         String[]    labelFragments) {
 
         try {
@@ -95,12 +99,42 @@ public class JsonWriter implements Stream {
             JSONArray to = createLabelArray(labelFragments);
             _edge.put(Config.JSON_TO, to);
             _edge.put(Config.JSON_PROBABILITY, probability);
+            _edge.put(Config.JSON_COUNT, count);
 
         } catch (JSONException e) {
             // TODO error handling
         }
     }
 
+    @Override
+    public void addNode(String[]    labelFragments,
+                        String[][]  targets,
+                        double[]    probabilities,
+                        double[]    counts) throws JSONException {
+
+        // Shared by all edges of the node
+        JSONArray from = createLabelArray(labelFragments);
+        JSONObject[] edges = new JSONObject[targets.length];
+        for (int i = 0; i < targets.length; i++) {
+            JSONObject edge = new JSONObject();
+            edge.put(Config.JSON_FROM, from);
+            edge.put(Config.JSON_TO, createLabelArray(targets[i]));
+            edge.put(Config.JSON_PROBABILITY, probabilities[i]);
+            edge.put(Config.JSON_COUNT, counts[i]);
+            edges[i] = edge;
+        }
+
+        synchronized (_json) {
+            if (null == _edges) {
+                _edges = new JSONArray();
+                _json.put(Config.JSON_EDGES, _edges);
+            }
+            for (JSONObject edge : edges) {
+                _edges.put(_edges.length(), edge);
+            }
+        }
+    }
+
     /**
      * Turns String array into json array
      * @param fragments String array
@@ -23,15 +23,33 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Random;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Represents a node label
@@ -85,8 +103,7 @@ class Label {
         if (obj != null &&
             obj.getClass() == this.getClass()) {
 
-            Label other = (Label) obj;
-            return this.toString().equals(other.toString());
+            return equals((Label) obj);
         }
 
         return false;
@@ -95,7 +112,20 @@ class Label {
     @Override
     public int hashCode() {
 
-        return this.toString().hashCode();
+        return Arrays.hashCode(_fragments);
+    }
+
+    /**
+     * Move label to a window of {@code phrase}, for looking up nodes without allocating.
+     * Labels that are used as keys must never be modified.
+     * @param phrase Input phrase
+     * @param offset Offset of window, the window size is the number of fragments
+     */
+    void set(List<String> phrase, int offset) {
+
+        for (int i = 0; i < _fragments.length; i++) {
+            _fragments[i] = phrase.get(offset + i);
+        }
     }
 
     @NonNull
@@ -116,21 +146,42 @@ class Label {
 
 /**
  * Represents edge to {@link Node} in the chain.
+ *
+ * Edges count how often their transition has been trained, the probability is the count
+ * relative to the total count of all edges leaving the source node.
  */
 class Edge {
 
     private final Node  _node;
+    private double      _count;
     private double      _probability;
 
     /**
      * Create Edge object
      * @param node Target node
-     * @param probability Initial probability for the edge
+     * @param probability Initial probability for the edge, also taken as its count
+     */
+    Edge(Node   node,
+         double probability) {
+
+        _node = node;
+        _count = probability;
+        _probability = probability;
+    }
+
+    /**
+     * Create Edge object with a count that is unrelated to its probability, for restoring
+     * an edge as it was.
+     * @param node Target node
+     * @param count Number of times the transition has been trained
+     * @param probability Probability for the edge
      */
     Edge(Node   node,
+         double count,
          double probability) {
 
         _node = node;
+        _count = count;
         _probability = probability;
     }
 
@@ -149,25 +200,33 @@ class Edge {
     }
 
     /**
-     * Weaken probability of edge after new edge has been created on source node.
-     * @param nEdgesOld Previous number of edges on source node
-     * @param nEdgesNew Updated number of edges on source node
+     * @return Number of times the transition has been trained
+     */
+    double getCount() {
+        return _count;
+    }
+
+    /**
+     * @param count Additional occurrences of the transition
      */
-    void weaken(int nEdgesOld,
-                int nEdgesNew) {
+    void add(double count) {
+        _count += count;
+    }
 
-        _probability = _probability * nEdgesOld / nEdgesNew;
+    /**
+     * @param factor Factor to multiply the count with, leaves the probability unchanged
+     */
+    void scale(double factor) {
+        _count *= factor;
     }
 
     /**
-     * Strengthen probability of edge after new edge has been created on source node.
-     * @param nEdgesOld Previous number of edges on source node
-     * @param nEdgesNew Updated number of edges on source node
+     * Update probability after counts on the source node have changed.
+     * @param total Total count of all edges on source node
      */
-    void strengthen(int nEdgesOld,
-                    int nEdgesNew) {
+    void normalize(double total) {
 
-        _probability = (_probability * nEdgesOld + 1) / nEdgesNew;
+        _probability = _count / total;
     }
 }
 
@@ -194,6 +253,15 @@ class Node {
 
     private final HashMap<Label, Edge>  _edges = new HashMap<>();
     private final Label                 _label;
+    // Snapshot of edges for the placeholder fallback, null if outdated
+    private Edge[]                      _edgeArray = null;
+    private ReflexiveEdge               _reflexive = null;
+    // Sum of counts of all outgoing edges
+    private double                      _total = 0.0;
+    // Number of incoming edges
+    private int                         _inEdges = 0;
+    // Decay epoch of the counts, see Decay
+    private double                      _epoch = 0.0;
 
     /**
      * Create Node object.
@@ -231,7 +299,14 @@ class Node {
      */
     void addEdge(Edge edge) {
 
-        _edges.put(edge.getNode().getLabel(), edge);
+        Edge old = _edges.put(edge.getNode().getLabel(), edge);
+        if (old != null) {
+            _total -= old.getCount();
+            old.getNode()._inEdges--;
+        }
+        _total += edge.getCount();
+        edge.getNode()._inEdges++;
+        _edgeArray = null;
     }
 
     /**
@@ -246,10 +321,14 @@ class Node {
         // Fall back to placeholder matching.
         if (null == edge) {
 
+            if (_edgeArray == null) {
+                _edgeArray = _edges.values().toArray(new Edge[0]);
+            }
+
             // 1)
             // Find node of form <prefix> <placeholder> <last-fragment>
             // If found, this terminates consuming input into a placeholder
-            for (Edge e : _edges.values()) {
+            for (Edge e : _edgeArray) {
 
                 String[] frags1 = e.getNode().getLabel().getFragments();
                 String[] frags2 = label.getFragments();
@@ -272,7 +351,7 @@ class Node {
             // 2)
             // Find node of form <prefix> <placeholder>
             // This would start consuming into a placeholder
-            for (Edge e : _edges.values()) {
+            for (Edge e : _edgeArray) {
 
                 String[] frags1 = e.getNode().getLabel().getFragments();
                 String[] frags2 = label.getFragments();
@@ -312,7 +391,10 @@ class Node {
                 if (SlidingWindow.isPlaceholder(frags1[last])) {
                     // If matching, return reflexive edge back to self,
                     // to consume more input and then try to find subsequent node
-                    edge = new ReflexiveEdge(this);
+                    if (_reflexive == null) {
+                        _reflexive = new ReflexiveEdge(this);
+                    }
+                    edge = _reflexive;
                     details.appendPlaceholder(frags2[last]);
                 }
             }
@@ -327,31 +409,89 @@ class Node {
     }
 
     /**
-     * Add new edge to node.
+     * Add new edge to node, or count another occurrence of an existing one.
      * @param node Target node
      */
     void addEdge(Node node) {
 
-        Edge edge = _edges.get(node.getLabel());
-        int nEdgesOld = _edges.size();
-        int nEdgesNew = _edges.size() + 1;
+        addEdge(node, 1.0);
+    }
 
-        if (edge != null) {
-            // Update existing edge to higher probability.
-            edge.strengthen(nEdgesOld, nEdgesNew);
-        } else {
+    /**
+     * Add new edge to node, or count further occurrences of an existing one.
+     * @param node Target node
+     * @param count Number of occurrences
+     */
+    void addEdge(Node   node,
+                 double count) {
+
+        Edge edge = _edges.get(node.getLabel());
+        if (edge == null) {
             // Edge doesn't exist yet, create and insert.
-            edge = new Edge(node, 1.0 / nEdgesNew);
+            edge = new Edge(node, 0.0);
             _edges.put(node.getLabel(), edge);
+            _edgeArray = null;
+            node._inEdges++;
         }
+        edge.add(count);
+        _total += count;
 
-        // Update all existing edges to lower probability.
+        // Probabilities of all edges are relative to the new total
         for (Map.Entry<Label, Edge> entry : _edges.entrySet()) {
-            Edge e = entry.getValue();
-            if (e != edge) {
-                e.weaken(nEdgesOld, nEdgesNew);
-            }
+            entry.getValue().normalize(_total);
+        }
+    }
+
+    /**
+     * Remove occurrences of an edge, the edge itself is removed once its count drops to 0.
+     * @param edge Outgoing edge
+     * @param count Number of occurrences
+     */
+    void removeEdge(Edge    edge,
+                    double  count) {
+
+        edge.add(-count);
+        _total -= count;
+        if (edge.getCount() <= 0.0) {
+            _edges.remove(edge.getNode().getLabel());
+            _edgeArray = null;
+            edge.getNode()._inEdges--;
+        }
+
+        for (Map.Entry<Label, Edge> entry : _edges.entrySet()) {
+            entry.getValue().normalize(_total);
+        }
+    }
+
+    /**
+     * @return {@code true} if no edges lead to or from this node, such that no training
+     *         phrase passes it any more
+     */
+    boolean isUnused() {
+        return _edges.isEmpty() && _inEdges == 0;
+    }
+
+    /**
+     * @return Decay epoch of the counts, see {@link Decay}
+     */
+    double getEpoch() {
+        return _epoch;
+    }
+
+    /**
+     * Move counts to another decay epoch. Probabilities stay the same, as all counts of the
+     * node are scaled by the same factor.
+     * @param epoch New epoch
+     * @param factor Factor to multiply counts with
+     */
+    void rebase(double  epoch,
+                double  factor) {
+
+        for (Edge edge : _edges.values()) {
+            edge.scale(factor);
         }
+        _total *= factor;
+        _epoch = epoch;
     }
 }
 
@@ -458,57 +598,61 @@ interface Stream {
     /**
      * Invoked when visiting an edge in the current graph.
      * @param probability Probability for the edge
+     * @param count Number of times the edge has been trained
      * @param labelFragments Target node label
      */
     void addEdge(double probability,
+                 double count,
                  String[] labelFragments)
         throws Exception;
 }
 
 /**
- * Class for creating nodes, can be overridden to create custom Node subclasses.
+ * Interface used to walk a markov chain one node at a time, see
+ * {@link MarkovChain#traverseNodes(NodeStream, int)}.
  */
-class MarkovChainMixin {
-
-    private Random  _random = new Random();
+interface NodeStream {
 
     /**
-     * Create Node instance
-     * @param label Label asocciated to the node
-     * @return New Node instance
+     * Invoked when starting to iterate the model.
+     * @param window Window size
      */
-    Node create(Label label) {
-
-        return new Node(label);
-    }
+    void startModel(int window) throws Exception;
 
     /**
-     * Initialize new query.
-     * @param phrase Query phrase
-     * @return Unique ID for the new query
+     * Invoked when iteration of the model is finished.
      */
-    int initQuery(List<String> phrase) {
-
-        return _random.nextInt();
-    }
+    void endModel() throws Exception;
 
     /**
-     * Individual query step.
-     * @param id Unique query ID
-     * @param node Node that is queried
-     * @param edge Outgoing Edge objects
+     * Invoked once per node that has outgoing edges, on several threads at once when
+     * traversing in parallel.
+     * @param labelFragments Node label
+     * @param targets Target node labels
+     * @param probabilities Probability per edge
+     * @param counts Number of times each edge has been trained
      */
-    void updateQuery(int id, Node node, Edge edge) {
+    void addNode(String[]   labelFragments,
+                 String[][] targets,
+                 double[]   probabilities,
+                 double[]   counts)
+        throws Exception;
+}
 
-    }
+/**
+ * Class for creating nodes, can be overridden to create custom Node subclasses.
+ * Scoring is done by a {@link Scorer}.
+ */
+class MarkovChainMixin {
 
     /**
-     * Complete the query
-     * @param id Unique query ID
-     * @param success Whether the query had at least one successful match
+     * Create Node instance
+     * @param label Label asocciated to the node
+     * @return New Node instance
      */
-    void finishQuery(int id, boolean success) {
+    Node create(Label label) {
 
+        return new Node(label);
     }
 }
 
@@ -528,6 +672,7 @@ class Config {
     final static String JSON_FROM = "from";
     final static String JSON_TO = "to";
     final static String JSON_PROBABILITY = "probability";
+    final static String JSON_COUNT = "count";
 }
 
 /**
@@ -535,216 +680,956 @@ class Config {
  */
 public class MarkovChain {
 
+    /**
+     * Live match during optimal and beam scanning.
+     */
+    private static class Hypothesis {
+
+        final int       start;
+        // Score of the best segmentation of the phrase before start
+        final double    base;
+        Result          details = new Result();
+        // Last words matched against node labels
+        String[]        window;
+        Node            node;
+        // Offset after last matched word
+        int             end;
+        int             nEdges;
+        double          sumProbabilities;
+        // Penalty for skipped words since the last match
+        double          penalty;
+
+        Hypothesis(Node node, int start, double base, String[] window) {
+            this.node = node;
+            this.start = start;
+            this.base = base;
+            this.window = window;
+            this.end = start + window.length;
+        }
+
+        Hypothesis fork() {
+
+            Hypothesis h = new Hypothesis(node, start, base, window);
+            h.details.setPendingPlaceholder(details.copyPendingPlaceholder());
+            h.end = end;
+            h.nEdges = nEdges;
+            h.sumProbabilities = sumProbabilities;
+            h.penalty = penalty;
+            return h;
+        }
+
+        /**
+         * Follow {@code edge}, deducting pending penalties from its probability.
+         */
+        void take(Edge edge) {
+
+            node = edge.getNode();
+            nEdges++;
+            sumProbabilities += edge.getProbability() - penalty;
+            penalty = 0;
+        }
+
+        double score() {
+            return base + sumProbabilities - penalty;
+        }
+    }
+
+    private static final Comparator<Hypothesis> BY_SCORE = new Comparator<Hypothesis>() {
+        @Override
+        public int compare(Hypothesis h1, Hypothesis h2) {
+            return Double.compare(h2.score(), h1.score());
+        }
+    };
+
+    /**
+     * Per thread state for matching without allocating.
+     */
+    private static class Scratch {
+
+        final Result        details = new Result();
+        Label[]             labels = new Label[0];
+        // Totals of the last single match
+        int                 nEdges;
+        double              sumProbabilities;
+
+        /**
+         * @return Label for lookups with {@code order} fragments
+         */
+        Label getLabel(int order) {
+
+            if (order >= labels.length) {
+                labels = Arrays.copyOf(labels, order + 1);
+            }
+            if (labels[order] == null) {
+                labels[order] = new Label(new String[order]);
+            }
+            return labels[order];
+        }
+    }
+
+    private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    // Estimated heap footprint, for a 64 bit VM with compressed references
+    private static final int NODE_BYTES = 176;
+    private static final int FRAGMENT_BYTES = 4;
+    private static final int EDGE_BYTES = 72;
+    // Relative difference of counts that is due to rounding
+    private static final double COUNT_TOLERANCE = 1e-9;
+
     private final HashMap<Label, Node>  _nodes = new HashMap<>();
     private final int                   _order;
-    private final ArrayList<List<String>> phraseList=new ArrayList<>();
+    private final PhraseStore           _phrases;
+    private SuffixAutomaton             _index = null;
+    // Sorted hashes of node labels, built on demand
+    private volatile int[]              _labelHashes = null;
     private MarkovChainMixin            _mixin;
+    private ScanMode                    _scanMode = ScanMode.GREEDY;
+    private BeamSettings                _beamSettings = new BeamSettings();
+    private Decay                       _decay = null;
+    // File holding the nodes while they are paged out, see pageOut()
+    private volatile File               _pageFile = null;
+    private boolean                     _hasPlaceholders = false;
 
-    public double matchingFaktor(List<String> resultingPhrase){
-        double faktor;
-        double tempCount=0;
-        int tempN=0;
-        for(int n=0;n<phraseList.size();n++){
-            List<String> testPhrase=phraseList.get(n);
-            int p=0;
-            int counter=0;
-            for(int k=0;k<testPhrase.size();k++){
-                if(testPhrase.get(k).equals(resultingPhrase.get(p))){
-                    p++;
-                    if(p>counter){
-                        counter=p;
-                    }
-                    if(p>=resultingPhrase.size()){
-                        break;
-                    }
-                }
-                else{
-                    p=0;
+    /**
+     * Find the longest run of {@code resultingPhrase}, starting with its first word, that
+     * occurs in a training phrase.
+     *
+     * Runs are looked up in a suffix automaton over the training phrases, in time linear in
+     * the length of {@code resultingPhrase}. The automaton is built on first use.
+     *
+     * @param resultingPhrase Matched phrase
+     * @return Length of the run relative to the length of the first training phrase that
+     *         contains it, 0 if there is none
+     * @throws IllegalStateException If training phrases are not retained
+     */
+    public double matchingFaktor(List<String> resultingPhrase) throws IllegalStateException {
+
+        if (_phrases == null) {
+            throw new IllegalStateException("Can not compute matching factor without retained training phrases");
+        }
+
+        if (_index == null) {
+            _index = new SuffixAutomaton();
+            for (int i = 0; i < _phrases.size(); i++) {
+                if (_phrases.getCount(i) > 0.0) {
+                    _index.add(_phrases.getTokens(), _phrases.getOffset(i), _phrases.getLength(i));
                 }
             }
-            if(counter>tempCount) {
-                tempN=n;
-                tempCount = counter;
+        }
+        return _index.prefixRatio(resultingPhrase, _phrases.getVocabulary());
+    }
+
+    /**
+     * Count windows of a phrase that are node labels, as a cheap estimate of how likely the
+     * phrase matches. Labels are compared by hash through binary search over a sorted array,
+     * so collisions may be counted, and placeholder nodes are not.
+     *
+     * @param hashes Hashes of the phrase windows, see {@link Label#hashCode}
+     * @return Number of windows found
+     */
+    int countLabels(int[] hashes) {
+
+        int[] labelHashes = labelHashes();
+        int n = 0;
+        for (int hash : hashes) {
+            if (Arrays.binarySearch(labelHashes, hash) >= 0) {
+                n++;
             }
         }
-        faktor=tempCount/phraseList.get(tempN).size();
-        return faktor;
+        return n;
     }
+
     /**
-     * Create MarkovChain object.
-     * @param order Markov chain order, that is number of relevant previous steps when matching
+     * Whether a window of a phrase is a node label, compared by hash like {@link #countLabels}.
+     * Doesn't page the nodes in.
+     *
+     * @param phrase Query phrase
+     * @param offset Offset of window, the window size is the order of the chain
+     * @return {@code true} if the window is likely a node label
      */
-    public MarkovChain(int order) {
+    boolean hasLabel(List<String>   phrase,
+                     int            offset) {
 
-        _order = order;
-        setMixin(null);
+        int h = 1;
+        for (int k = 0; k < _order; k++) {
+            h = 31 * h + phrase.get(offset + k).hashCode();
+        }
+        return Arrays.binarySearch(labelHashes(), h) >= 0;
     }
 
     /**
-     * @return Markov chain order, that is number of relevant previous steps when matching
+     * @return Sorted hashes of node labels, which stay in memory when the nodes are paged out
      */
-    @SuppressWarnings("unused")
-    public int getOrder() {
-        return _order;
+    private int[] labelHashes() {
+
+        int[] labelHashes = _labelHashes;
+        if (labelHashes == null) {
+            labelHashes = new int[_nodes.size()];
+            int i = 0;
+            for (Label label : _nodes.keySet()) {
+                labelHashes[i++] = label.hashCode();
+            }
+            Arrays.sort(labelHashes);
+            _labelHashes = labelHashes;
+        }
+        return labelHashes;
     }
 
     /**
-     * @return Node customization and scoring mixin instance
+     * @param order Markov chain order
+     * @return Estimated heap footprint of a node in bytes, without its edges
      */
-    @SuppressWarnings("WeakerAccess")
-    public MarkovChainMixin getMixin() {
+    public static long estimateNodeSize(int order) {
+        return NODE_BYTES + FRAGMENT_BYTES * order;
+    }
 
-        return _mixin;
+    /**
+     * @return Estimated heap footprint of an edge in bytes
+     */
+    public static long estimateEdgeSize() {
+        return EDGE_BYTES;
     }
 
     /**
-     * Set custom customization and scoring mixin.
-     * @param mixin Mixin instance or NULL to reset to default
+     * Estimate heap footprint of nodes and edges, which is what paging frees. Retained
+     * training phrases are not counted. Takes time linear in the number of nodes.
+     * @return Estimated footprint in bytes, only the label index while paged out
      */
-    @SuppressWarnings("WeakerAccess")
-    public void setMixin(MarkovChainMixin mixin) {
+    public long estimateSize() {
 
-        if (mixin == null) {
-            _mixin = new MarkovChainMixin();
-        } else {
-            _mixin = mixin;
+        long size = 4L * labelHashes().length;
+        if (_pageFile != null) {
+            return size;
+        }
+
+        size += _nodes.size() * estimateNodeSize(_order);
+        for (Node node : _nodes.values()) {
+            size += node.getEdges().size() * estimateEdgeSize();
         }
+        return size;
     }
 
     /**
-     * Load markov model from json array.
-     * @param pairs Pairs of nodes with an associated probability between them
-     * @throws JSONException if failed
+     * @return {@code true} if nodes are paged out, see {@link CommandSet#setMemoryBudget}
      */
-    void load(JSONArray pairs) throws JSONException {
-
-        for (int i = 0; i < pairs.length(); i++) {
-            JSONObject e = pairs.getJSONObject(i);
-            JSONArray from = e.getJSONArray(Config.JSON_FROM);
-            Label l1 = createLabel(from);
-            JSONArray to = e.getJSONArray(Config.JSON_TO);
-            Label l2 = createLabel(to);
-            double probability = e.getDouble(Config.JSON_PROBABILITY);
+    public boolean isPagedOut() {
+        return _pageFile != null;
+    }
 
-            Node n1 = _nodes.get(l1);
-            if (null == n1) {
-                n1 = _mixin.create(l1);
-                _nodes.put(n1.getLabel(), n1);
-            }
-            Node n2 = _nodes.get(l2);
-            if (null == n2) {
-                n2 = _mixin.create(l2);
-                _nodes.put(n2.getLabel(), n2);
-            }
+    /**
+     * Whether a phrase may match without paging the nodes in. Paged out chains can only
+     * match phrases with a window that is a node label, unless they have placeholders.
+     * @param hashes Hashes of the phrase windows, see {@link Label#hashCode}
+     * @return {@code false} if the phrase can't score above 0
+     */
+    boolean isCandidate(int[] hashes) {
 
-            Edge edge = new Edge(n2, probability);
-            n1.addEdge(edge);
-        }
+        return _pageFile == null || _hasPlaceholders || countLabels(hashes) > 0;
     }
 
     /**
-     * Train markov chain with phrase.
-     *
-     * A phrase needs to be longer than the sliding window, otherwise there are no edges.
-     *
-     * @param phrase Training phrase
+     * Write nodes and edges to a file and drop them from memory, until the chain is next
+     * used. Labels are written as indices into a table of distinct fragments.
+     * @param file File to write to, it is deleted when paged in again
+     * @throws IOException If writing fails, the chain is left as it is
      */
-    public void train(List<String> phrase) {
+    synchronized void pageOut(File file) throws IOException {
 
-        if (phrase.size() <= _order) {
+        if (_pageFile != null) {
             return;
         }
-        phraseList.add(phrase);
-        SlidingWindow sw = new SlidingWindow(phrase, _order);
-        Label label = sw.slide();
-        Node root = _nodes.get(label);
-        if (root == null) {
-            root = _mixin.create(label);
-            _nodes.put(root.getLabel(), root);
-        }
-        root.associate(phrase, sw.getOffset());
 
-        Node n1 = root;
-        while (sw.canSlide()) {
+        labelHashes();
+        Node[] nodes = _nodes.values().toArray(new Node[_nodes.size()]);
+        HashMap<Node, Integer> indices = new HashMap<>();
+        HashMap<String, Integer> fragments = new HashMap<>();
+        ArrayList<String> table = new ArrayList<>();
+        boolean hasPlaceholders = false;
+        for (int i = 0; i < nodes.length; i++) {
+            indices.put(nodes[i], i);
+            for (String fragment : nodes[i].getLabel().getFragments()) {
+                if (!fragments.containsKey(fragment)) {
+                    fragments.put(fragment, table.size());
+                    table.add(fragment);
+                    hasPlaceholders |= SlidingWindow.isPlaceholder(fragment);
+                }
+            }
+        }
 
-            Label l2 = sw.slide();
-            Node n2 = _nodes.get(l2);
-            if (n2 == null) {
-                n2 = _mixin.create(l2);
-                _nodes.put(n2.getLabel(), n2);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(table.size());
+            for (String fragment : table) {
+                out.writeUTF(fragment);
             }
-            n2.associate(phrase, sw.getOffset());
-            n1.addEdge(n2);
-            n1 = n2;
+            out.writeInt(nodes.length);
+            for (Node node : nodes) {
+                String[] label = node.getLabel().getFragments();
+                out.writeInt(label.length);
+                for (String fragment : label) {
+                    out.writeInt(fragments.get(fragment));
+                }
+                out.writeDouble(node.getEpoch());
+            }
+            for (Node node : nodes) {
+                out.writeInt(node.getEdges().size());
+                for (Edge edge : node.getEdges().values()) {
+                    out.writeInt(indices.get(edge.getNode()));
+                    out.writeDouble(edge.getCount());
+                    out.writeDouble(edge.getProbability());
+                }
+            }
+        } catch (IOException e) {
+            out.close();
+            file.delete();
+            throw e;
         }
+        out.close();
+
+        _nodes.clear();
+        _hasPlaceholders = hasPlaceholders;
+        _pageFile = file;
     }
 
     /**
-     *  Match phrase against markov chain.
-     *
-     * A phrase needs to be longer than the sliding window, otherwise there are no edges.
-     *
-     * Every node in the chain can be a start node. Only full matches of the entire phrase
-     * are considered.
-     *
-     * @param phrase Match phrase
-     * @return Average probability: sum of probabilities / number of edges.
-     *         Negative value if phrase shorter than two entries such that matching is not possible.
+     * Read nodes back in if they are paged out.
+     * @throws IllegalStateException If the page file can't be read
      */
-    @SuppressWarnings("WeakerAccess")
-    public double match(List<String> phrase) {
+    private void resident() throws IllegalStateException {
 
-        Result details;
-
-        // A phrase needs to be longer than the sliding window, otherwise there are no edges
-        if (phrase.size() < _order + 1) {
-            return -1.0;
+        if (_pageFile != null) {
+            pageIn();
         }
+    }
 
-        details = new Result();
-        double avgProbability = _scanSingleMatch(phrase, 0, details);
-
-        // Strict match, entire phrase needs to be in model.
-        if (details.getEntries().size() != 1 ||
-            details.getEntries().getFirst().getOffset() != 0 ||
-            details.getEntries().getFirst().getPhrase().size() != phrase.size()) {
+    private synchronized void pageIn() throws IllegalStateException {
 
-            return 0.0;
+        File file = _pageFile;
+        if (file == null) {
+            return;
         }
 
-        return avgProbability;
-    }
-
-    /**
-     * Scan {@code phrase} for single match against model.
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                String[] table = new String[in.readInt()];
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = in.readUTF();
+                }
+                Node[] nodes = new Node[in.readInt()];
+                for (int i = 0; i < nodes.length; i++) {
+                    String[] label = new String[in.readInt()];
+                    for (int k = 0; k < label.length; k++) {
+                        label[k] = table[in.readInt()];
+                    }
+                    nodes[i] = _mixin.create(new Label(label));
+                    nodes[i].rebase(in.readDouble(), 1.0);
+                    _nodes.put(nodes[i].getLabel(), nodes[i]);
+                }
+                for (Node node : nodes) {
+                    int nEdges = in.readInt();
+                    for (int k = 0; k < nEdges; k++) {
+                        Node target = nodes[in.readInt()];
+                        double count = in.readDouble();
+                        node.addEdge(new Edge(target, count, in.readDouble()));
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            _nodes.clear();
+            throw new IllegalStateException("Can not page in chain from " + file, e);
+        }
+
+        file.delete();
+        _pageFile = null;
+    }
+
+    /**
+     * Create MarkovChain object.
+     * @param order Markov chain order, that is number of relevant previous steps when matching
+     */
+    public MarkovChain(int order) {
+
+        this(order, PhraseRetention.PACKED);
+    }
+
+    /**
+     * Create MarkovChain object.
+     * @param order Markov chain order, that is number of relevant previous steps when matching
+     * @param retention What to keep of training phrases, see {@link PhraseRetention}
+     */
+    public MarkovChain(int              order,
+                       PhraseRetention  retention) {
+
+        _order = order;
+        _phrases = retention == PhraseRetention.PACKED ? new PhraseStore() : null;
+        setMixin(null);
+    }
+
+    /**
+     * @return What is kept of training phrases, see {@link PhraseRetention}
+     */
+    public PhraseRetention getPhraseRetention() {
+        return _phrases == null ? PhraseRetention.NONE : PhraseRetention.PACKED;
+    }
+
+    /**
+     * @return Markov chain order, that is number of relevant previous steps when matching
+     */
+    @SuppressWarnings("unused")
+    public int getOrder() {
+        return _order;
+    }
+
+    /**
+     * @return Strategy for finding sub-phrases in {@link MarkovChain#scan}, see {@link ScanMode}
+     */
+    public ScanMode getScanMode() {
+        return _scanMode;
+    }
+
+    /**
+     * @param scanMode Strategy for finding sub-phrases in {@link MarkovChain#scan}, see {@link ScanMode}
+     */
+    public void setScanMode(ScanMode scanMode) {
+        _scanMode = scanMode;
+    }
+
+    /**
+     * @return Parameters for {@link ScanMode#BEAM}
+     */
+    public BeamSettings getBeamSettings() {
+        return _beamSettings;
+    }
+
+    /**
+     * @param beamSettings Parameters for {@link ScanMode#BEAM}
+     */
+    public void setBeamSettings(BeamSettings beamSettings) {
+        _beamSettings = beamSettings;
+    }
+
+    /**
+     * @return Half-life of transition counts, 0 if they don't decay
+     */
+    public double getHalfLife() {
+        return _decay == null ? 0.0 : _decay.getHalfLife();
+    }
+
+    /**
+     * Let transition counts decay exponentially, such that recent training weighs more
+     * than old training. Counts decay as the clock is moved forward with
+     * {@link MarkovChain#advance}, by elapsed time for time based decay, or by 1 per
+     * training phrase or other event for event based decay.
+     *
+     * Decay is applied lazily when counts are next changed, so advancing the clock and
+     * training stay O(1) per transition. Retained training phrases don't decay.
+     *
+     * @param halfLife Time after which a count has decayed to half its value, 0 to stop
+     *                 decay and keep counts as they are now
+     * @throws IllegalArgumentException If halfLife < 0
+     */
+    public void setHalfLife(double halfLife) throws IllegalArgumentException {
+
+        resident();
+        if (halfLife < 0.0) {
+            throw new IllegalArgumentException("Half-life can not be < 0");
+        }
+
+        Decay decay = halfLife == 0.0 ? null : new Decay(halfLife);
+        if (_decay != null) {
+            // Start over with counts as they are at the current time
+            for (Node node : _nodes.values()) {
+                node.rebase(0.0, _decay.count(node.getEpoch()));
+            }
+        }
+        _decay = decay;
+    }
+
+    /**
+     * Move the decay clock forward, see {@link MarkovChain#setHalfLife}.
+     * @param elapsed Elapsed time or number of events
+     * @throws IllegalStateException If counts don't decay
+     * @throws IllegalArgumentException If elapsed < 0
+     */
+    public void advance(double elapsed) throws IllegalStateException, IllegalArgumentException {
+
+        if (_decay == null) {
+            throw new IllegalStateException("Can not advance decay clock without half-life");
+        }
+        _decay.advance(elapsed);
+    }
+
+    /**
+     * @return Time of the decay clock, see {@link MarkovChain#advance}
+     */
+    public double getTime() {
+        return _decay == null ? 0.0 : _decay.getTime();
+    }
+
+    /**
+     * @param label Node label
+     * @return Node or null if not in the chain
+     */
+    Node getNode(Label label) {
+        resident();
+        return _nodes.get(label);
+    }
+
+    /**
+     * @return Node customization and scoring mixin instance
+     */
+    @SuppressWarnings("WeakerAccess")
+    public MarkovChainMixin getMixin() {
+
+        return _mixin;
+    }
+
+    /**
+     * Set custom customization and scoring mixin.
+     * @param mixin Mixin instance or NULL to reset to default
+     */
+    @SuppressWarnings("WeakerAccess")
+    public void setMixin(MarkovChainMixin mixin) {
+
+        if (mixin == null) {
+            _mixin = new MarkovChainMixin();
+        } else {
+            _mixin = mixin;
+        }
+    }
+
+    /**
+     * Load markov model from json array.
+     *
+     * Where pairs have a count, probabilities are computed from counts, such that the model
+     * can be merged and trained further.
+     *
+     * @param pairs Pairs of nodes with an associated probability between them
+     * @throws JSONException if failed
+     */
+    void load(JSONArray pairs) throws JSONException {
+
+        resident();
+        for (int i = 0; i < pairs.length(); i++) {
+            JSONObject e = pairs.getJSONObject(i);
+            JSONArray from = e.getJSONArray(Config.JSON_FROM);
+            Label l1 = createLabel(from);
+            JSONArray to = e.getJSONArray(Config.JSON_TO);
+            Label l2 = createLabel(to);
+            double probability = e.getDouble(Config.JSON_PROBABILITY);
+            double count = e.optDouble(Config.JSON_COUNT, Double.NaN);
+
+            Node n1 = _nodes.get(l1);
+            if (null == n1) {
+                n1 = _mixin.create(l1);
+                _nodes.put(n1.getLabel(), n1);
+                _labelHashes = null;
+            }
+            Node n2 = _nodes.get(l2);
+            if (null == n2) {
+                n2 = _mixin.create(l2);
+                _nodes.put(n2.getLabel(), n2);
+                _labelHashes = null;
+            }
+
+            double scale = touch(n1);
+            if (Double.isNaN(count)) {
+                // Older models don't have counts, take probabilities as they are
+                Edge edge = new Edge(n2, probability);
+                n1.addEdge(edge);
+            } else {
+                n1.addEdge(n2, count * scale);
+            }
+        }
+    }
+
+    /**
+     * Train markov chain with phrase.
+     *
+     * A phrase needs to be longer than the sliding window, otherwise there are no edges.
+     *
+     * @param phrase Training phrase
+     */
+    public void train(List<String> phrase) {
+
+        train(phrase, 1.0);
+    }
+
+    /**
+     * Train markov chain with aggregated occurrences of a phrase, which is the same as
+     * training it {@code weight} times.
+     *
+     * A phrase needs to be longer than the sliding window, otherwise there are no edges.
+     *
+     * @param phrase Training phrase
+     * @param weight Number of occurrences
+     * @throws IllegalArgumentException If weight <= 0
+     */
+    public void train(List<String>  phrase,
+                      double        weight) throws IllegalArgumentException {
+
+        resident();
+        if (weight <= 0.0) {
+            throw new IllegalArgumentException("Training weight can not be <= 0");
+        }
+        if (phrase.size() <= _order) {
+            return;
+        }
+        retain(phrase, weight);
+        SlidingWindow sw = new SlidingWindow(phrase, _order);
+        Label label = sw.slide();
+        Node root = _nodes.get(label);
+        if (root == null) {
+            root = _mixin.create(label);
+            _nodes.put(root.getLabel(), root);
+            _labelHashes = null;
+        }
+        root.associate(phrase, sw.getOffset());
+
+        Node n1 = root;
+        while (sw.canSlide()) {
+
+            Label l2 = sw.slide();
+            Node n2 = _nodes.get(l2);
+            if (n2 == null) {
+                n2 = _mixin.create(l2);
+                _nodes.put(n2.getLabel(), n2);
+                _labelHashes = null;
+            }
+            n2.associate(phrase, sw.getOffset());
+            n1.addEdge(n2, weight * touch(n1));
+            n1 = n2;
+        }
+    }
+
+    /**
+     * Train markov chain with a frequency table of phrases, such that the cost depends on
+     * the number of distinct phrases only.
+     *
+     * @param frequencies Map of training phrase : number of occurrences
+     * @throws IllegalArgumentException If a number of occurrences is <= 0
+     */
+    public void train(Map<List<String>, ? extends Number> frequencies) throws IllegalArgumentException {
+
+        for (Map.Entry<List<String>, ? extends Number> entry : frequencies.entrySet()) {
+            train(entry.getKey(), entry.getValue().doubleValue());
+        }
+    }
+
+    /**
+     * Train markov chain with transitions that have been counted in advance, for example
+     * from a {@link Grammar}. Nodes are not associated to training phrases, and no phrases
+     * are retained.
+     *
+     * @param counts Transition counts
+     * @throws IllegalArgumentException If the counts are for a different order
+     */
+    void train(TransitionCounts counts) throws IllegalArgumentException {
+
+        train(new ArrayList<List<String>>(), new double[0], counts);
+    }
+
+    /**
+     * Train markov chain with transitions that have been counted in advance, for example on
+     * several threads. Nodes are not associated to training phrases.
+     *
+     * @param phrases Training phrases that have been counted, for retention
+     * @param weights Number of occurrences per phrase
+     * @param counts Transition counts of {@code phrases}
+     * @throws IllegalArgumentException If the counts are for a different order
+     */
+    void train(List<List<String>>   phrases,
+               double[]             weights,
+               TransitionCounts     counts) throws IllegalArgumentException {
+
+        resident();
+        if (counts.getOrder() != _order) {
+            throw new IllegalArgumentException("Can not train with transitions of order " + counts.getOrder());
+        }
+
+        for (int i = 0; i < phrases.size(); i++) {
+            if (phrases.get(i).size() > _order) {
+                retain(phrases.get(i), weights[i]);
+            }
+        }
+
+        for (TransitionCounts.Entry entry : counts.getEntries()) {
+            if (!_nodes.containsKey(entry.label)) {
+                Node node = _mixin.create(entry.label);
+                _nodes.put(node.getLabel(), node);
+                _labelHashes = null;
+            }
+        }
+
+        for (TransitionCounts.Entry entry : counts.getEntries()) {
+            Node n1 = _nodes.get(entry.label);
+            for (Map.Entry<Label, TransitionCounts.Count> transition : entry.transitions.entrySet()) {
+                n1.addEdge(_nodes.get(transition.getKey()), transition.getValue().value * touch(n1));
+            }
+        }
+    }
+
+    /**
+     * Add transition counts and retained phrases of another chain, such as one that has been
+     * trained on a separate shard of training data.
+     *
+     * Merging only adds up counts, so it is associative and commutative: merging any number
+     * of shards in any order gives the same probabilities as training a single chain on all
+     * their phrases. Chains loaded from JSON without counts contribute their probabilities
+     * as counts.
+     *
+     * @param other Chain to merge into this one, it is not modified
+     * @throws IllegalArgumentException If {@code other} is of different order, or this chain
+     */
+    public void merge(MarkovChain other) throws IllegalArgumentException {
+
+        resident();
+        other.resident();
+        if (other == this) {
+            throw new IllegalArgumentException("Can not merge chain into itself");
+        }
+        if (other.getOrder() != _order) {
+            throw new IllegalArgumentException("Can not merge chain of order " + other.getOrder());
+        }
+
+        if (other._phrases != null) {
+            for (int i = 0; i < other._phrases.size(); i++) {
+                if (other._phrases.getCount(i) > 0.0) {
+                    retain(other._phrases.get(i), other._phrases.getCount(i));
+                }
+            }
+        }
+
+        for (Node n : other._nodes.values()) {
+            if (!_nodes.containsKey(n.getLabel())) {
+                Node node = _mixin.create(n.getLabel());
+                _nodes.put(node.getLabel(), node);
+                _labelHashes = null;
+            }
+        }
+
+        for (Node n : other._nodes.values()) {
+            Node n1 = _nodes.get(n.getLabel());
+            for (Edge edge : n.getEdges().values()) {
+                n1.addEdge(_nodes.get(edge.getNode().getLabel()), other.count(n, edge) * touch(n1));
+            }
+        }
+    }
+
+    /**
+     * Remove a training phrase again, as if it had never been trained.
+     *
+     * Counts of the transitions in {@code phrase} are decremented, edges and nodes that are
+     * no longer used are removed, and probabilities of the affected nodes renormalized. Cost
+     * depends on the length of the phrase and the number of edges of the affected nodes,
+     * not on the number of training phrases.
+     *
+     * With decay, see {@link #setHalfLife}, the contribution of an occurrence has decayed
+     * since it was trained. It is taken to be the smallest count of a transition in
+     * {@code phrase}, as all transitions of an occurrence are trained at the same time.
+     *
+     * @param phrase Training phrase
+     * @return {@code false} if the phrase hasn't been trained, or the chain has been loaded
+     *         without counts, in which case nothing changes. Without retention of training
+     *         phrases, parts of trained phrases can't be told apart and are removed as well.
+     */
+    public boolean untrain(List<String> phrase) {
+
+        return untrain(phrase, 1.0);
+    }
+
+    /**
+     * Remove aggregated occurrences of a training phrase, see {@link #train(List, double)}
+     * and {@link #untrain(List)}.
+     *
+     * @param phrase Training phrase
+     * @param weight Number of occurrences
+     * @return {@code false} if the phrase hasn't been trained with at least {@code weight}
+     *         occurrences, see {@link #untrain(List)}
+     * @throws IllegalArgumentException If weight <= 0
+     */
+    public boolean untrain(List<String> phrase,
+                           double       weight) throws IllegalArgumentException {
+
+        resident();
+        if (weight <= 0.0) {
+            throw new IllegalArgumentException("Training weight can not be <= 0");
+        }
+        if (phrase.size() <= _order) {
+            return false;
+        }
+
+        // Find all edges first, such that nothing changes if one is missing
+        int nEdges = phrase.size() - _order;
+        Node[] nodes = new Node[nEdges + 1];
+        Edge[] edges = new Edge[nEdges];
+        HashMap<Edge, Integer> occurrences = new HashMap<>();
+        Label label = new Label(new String[_order]);
+        label.set(phrase, 0);
+        nodes[0] = _nodes.get(label);
+        for (int i = 0; i < nEdges; i++) {
+            if (nodes[i] == null) {
+                return false;
+            }
+            label.set(phrase, i + 1);
+            edges[i] = nodes[i].getEdges().get(label);
+            if (edges[i] == null) {
+                return false;
+            }
+            nodes[i + 1] = edges[i].getNode();
+            Integer n = occurrences.get(edges[i]);
+            occurrences.put(edges[i], n == null ? 1 : n + 1);
+        }
+        double contribution = weight;
+        for (int i = 0; i < nEdges; i++) {
+            contribution = Math.min(contribution, count(nodes[i], edges[i]) / occurrences.get(edges[i]));
+        }
+        if (contribution < (_decay == null ? weight * (1.0 - COUNT_TOLERANCE) : weight * COUNT_TOLERANCE)) {
+            return false;
+        }
+
+        // Retained phrases tell trained phrases from parts of them
+        if (_phrases != null) {
+            if (!_phrases.remove(phrase, weight)) {
+                return false;
+            }
+            // Suffix automata can't forget, rebuild on next use
+            _index = null;
+        }
+
+        for (int i = 0; i < nEdges; i++) {
+            // Already removed by an earlier occurrence
+            if (edges[i].getCount() <= 0.0) {
+                continue;
+            }
+            double count = contribution * touch(nodes[i]);
+            if (edges[i].getCount() - count < count * COUNT_TOLERANCE) {
+                count = edges[i].getCount();
+            }
+            nodes[i].removeEdge(edges[i], count);
+        }
+        for (Node node : nodes) {
+            if (node.isUnused()) {
+                _nodes.remove(node.getLabel());
+                _labelHashes = null;
+            }
+        }
+        return true;
+    }
+
+    /**
+     *  Match phrase against markov chain.
+     *
+     * A phrase needs to be longer than the sliding window, otherwise there are no edges.
      *
-     * After a single sub-phrase has been matched, this will return as soon as the match .
+     * Every node in the chain can be a start node. Only full matches of the entire phrase
+     * are considered.
      *
      * @param phrase Match phrase
-     * @param phraseOffset Match offset
+     * @return Average probability: sum of probabilities / number of edges.
+     *         Negative value if phrase shorter than two entries such that matching is not possible.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public double match(List<String> phrase) {
+
+        resident();
+        // A phrase needs to be longer than the sliding window, otherwise there are no edges
+        if (phrase.size() < _order + 1) {
+            return -1.0;
+        }
+
+        if (!(phrase instanceof RandomAccess)) {
+            phrase = new ArrayList<>(phrase);
+        }
+
+        Result details = SCRATCH.get().details;
+        details.clear();
+        double avgProbability = _scanSingleMatch(phrase, 0, details);
+
+        // Strict match, entire phrase needs to be in model.
+        if (details.size() != 1 ||
+            details.getEntry(0).getOffset() != 0 ||
+            details.getEntry(0).getPhrase().size() != phrase.size()) {
+
+            return 0.0;
+        }
+
+        return avgProbability;
+    }
+
+    /**
+     * Match phrase against the model, not necessarily in its entirety.
+     *
+     * @param phrase Match phrase
+     * @param scorer Strategy for scoring the first matching sub-phrase
+     * @return Score, 0 if nothing matches.
+     *         Negative value if phrase shorter than two entries such that matching is not possible.
+     */
+    double match(List<String>   phrase,
+                 Scorer         scorer) {
+
+        resident();
+        if (phrase.size() < _order + 1) {
+            return -1.0;
+        }
+
+        if (!(phrase instanceof RandomAccess)) {
+            phrase = new ArrayList<>(phrase);
+        }
+
+        Scratch scratch = SCRATCH.get();
+        Result details = scratch.details;
+        details.clear();
+        _scanSingleMatch(phrase, 0, details);
+        details.clear();
+        if (scratch.nEdges == 0) {
+            return 0.0;
+        }
+        return scorer.score(scratch.nEdges, scratch.sumProbabilities, phrase.size());
+    }
+
+    /**
+     * Scan {@code phrase} for single match against model.
+     *
+     * After a single sub-phrase has been matched, this will return as soon as the match breaks.
+     * Windows are looked up through a label that is reused per thread, such that a match
+     * doesn't allocate. Totals of the match are left in the per thread scratch state.
+     *
+     * @param phrase Match phrase, random access
+     * @param phraseOffset Match offset, words before are ignored
      * @param details Result details
      * @return Average probability: sum of probabilities / number of edges.
      *         Negative value if phrase shorter than two entries such that matching is not possible.
      */
     private double _scanSingleMatch(List<String>        phrase,
                                     int                 phraseOffset,
-                                    Result details) {
+                                    Result              details) {
 
         Node node = null;
         int offset = 0;
         double sumProbabilities = 0.0;
+        int size = phrase.size() - phraseOffset;
+        Scratch scratch = SCRATCH.get();
+        scratch.nEdges = 0;
+        scratch.sumProbabilities = 0.0;
 
         // A phrase needs to be longer than the sliding window, otherwise there are no edges
-        if (phrase.size() < _order + 1) {
+        if (size < _order + 1) {
             return -1.0;
         }
 
-        int queryId = _mixin.initQuery(phrase);
-
         // Find first matching node
-        SlidingWindow sw = new SlidingWindow(phrase, _order);
-        while (sw.canSlide()) {
-            Label label = sw.slide();
+        Label label = scratch.getLabel(_order);
+        while (offset + _order <= size) {
+            label.set(phrase, phraseOffset + offset);
             node = _nodes.get(label);
             if (node != null) {
                 break;
@@ -757,11 +1642,10 @@ public class MarkovChain {
 
         // Match chain
         int nEdges = 0;
-        while (sw.canSlide()) {
-            Label label = sw.slide();
+        while (offset + nEdges + 1 + _order <= size) {
+            label.set(phrase, phraseOffset + offset + nEdges + 1);
             Edge edge = node.queryEdge(label, details, offset + nEdges);
             if (edge != null) {
-                _mixin.updateQuery(queryId, node, edge);
                 nEdges++;
                 sumProbabilities += edge.getProbability();
                 node = edge.getNode();
@@ -770,12 +1654,13 @@ public class MarkovChain {
             }
         }
 
-        _mixin.finishQuery(queryId, nEdges > 0);
+        scratch.nEdges = nEdges;
+        scratch.sumProbabilities = sumProbabilities;
 
         // Capture details
         double avgProbability = sumProbabilities /nEdges ;
-        List<String> subPhrase = phrase.subList(offset, offset + nEdges + _order);
-        details.append(subPhrase, phraseOffset + offset, avgProbability);
+        int start = phraseOffset + offset;
+        details.append(phrase, start, start + nEdges + _order, avgProbability);
 
         return avgProbability;
     }
@@ -786,9 +1671,8 @@ public class MarkovChain {
      * A phrase needs to be longer than the sliding window, otherwise there are no edges.
      *
      * Every node in the chain can be a start node. Partial matches are always attempted --
-     * if the first word of a phrase doesn't match, next ones are tried. Only the first matching
-     * sub-phrase is tested, after the match breaks, no further attempts to match later
-     * sub-phrases are made.
+     * if the first word of a phrase doesn't match, next ones are tried. How sub-phrases are
+     * selected depends on the scan mode, see {@link MarkovChain#setScanMode}.
      *
      * @param phrase Match phrase
      * @param matches Map of phrase : probability, may be null
@@ -800,9 +1684,11 @@ public class MarkovChain {
                        HashMap<List<String>, Double>    matches,
                        HashMap<String, List<String>>    placeholders) {
 
-        Result details = new Result();
+        Result details = SCRATCH.get().details;
+        details.clear();
         double ret = scan(phrase, details);
         details.extractMatches(matches, placeholders);
+        details.clear();
 
         return ret;
     }
@@ -823,7 +1709,30 @@ public class MarkovChain {
     double scan(List<String>    phrase,
                 Result          details){
 
-            // A phrase needs to be longer than the sliding window, otherwise there are no edges
+        return scanWith(phrase, details, _scanMode, _beamSettings, ScoreMode.HIGHEST_AVG);
+    }
+
+    /**
+     * Scan phrase and match sub-phrases against markov chain.
+     *
+     * Sub-phrases are ranked and scored through a single call site each, with their totals
+     * kept in locals, see {@link Scorer}.
+     *
+     * @param phrase Match phrase
+     * @param details Result details, may be null
+     * @param scanMode Strategy for finding sub-phrases
+     * @param beamSettings Parameters for {@link ScanMode#BEAM}
+     * @param scorer Strategy for scoring the sub-phrases
+     * @return Score of the highest ranked sub-phrase, 0 if nothing matches
+     */
+    double scanWith(List<String>    phrase,
+                    Result          details,
+                    ScanMode        scanMode,
+                    BeamSettings    beamSettings,
+                    Scorer          scorer) {
+
+        resident();
+        // A phrase needs to be longer than the sliding window, otherwise there are no edges
         if (phrase.size() < _order + 1) {
             return -1.0;
         }
@@ -832,23 +1741,248 @@ public class MarkovChain {
             details = new Result();
         }
 
-        double avgProbabilityMax = 0.0;
+        if (scanMode == ScanMode.OPTIMAL) {
+            return _scanSegments(phrase, details, null, scorer);
+        } else if (scanMode == ScanMode.BEAM) {
+            return _scanSegments(phrase, details, beamSettings, scorer);
+        }
+
+        if (!(phrase instanceof RandomAccess)) {
+            phrase = new ArrayList<>(phrase);
+        }
+
+        Scratch scratch = SCRATCH.get();
+        double bestRank = Double.NEGATIVE_INFINITY;
+        int bestEdges = 0;
+        double bestSum = 0.0;
         double avgProbability;
         int offset = 0;
-        List<String> subPhrase = phrase;
         do {
-            avgProbability = _scanSingleMatch(subPhrase, offset, details);
+            avgProbability = _scanSingleMatch(phrase, offset, details);
             if (avgProbability > 0.0) {
-                Result.Phrase entry = details.getEntries().getLast();
+                Result.Phrase entry = details.getEntry(details.size() - 1);
                 offset = entry.getOffset() + entry.getPhrase().size();
-                subPhrase = phrase.subList(offset, phrase.size());
             }
-            if (avgProbability > avgProbabilityMax) {
-                avgProbabilityMax = avgProbability;
+            if (scratch.nEdges > 0) {
+                double rank = scorer.rank(scratch.nEdges, scratch.sumProbabilities);
+                if (rank > bestRank) {
+                    bestRank = rank;
+                    bestEdges = scratch.nEdges;
+                    bestSum = scratch.sumProbabilities;
+                }
             }
         } while (avgProbability > 0);
 
-        return avgProbabilityMax;
+        return bestEdges > 0 ? Math.max(0.0, scorer.score(bestEdges, bestSum, phrase.size())) : 0.0;
+    }
+
+    /**
+     * Find the set of non-overlapping sub-phrases with the highest sum of edge probabilities.
+     *
+     * Viterbi style dynamic program over the words of {@code phrase}. Live matches are
+     * advanced by one word at a time, and only the best one is kept per node. Every live
+     * match may end after any matched word, and every window may start a new match after
+     * the best segmentation of the phrase before it. This takes a single pass over the
+     * phrase, with each step bounded by the out-degree of the nodes involved.
+     *
+     * With beam settings, live matches additionally branch into skipping the input word,
+     * and into skipping a chain word before matching the input word. Skipped words don't
+     * count as edges, their penalty is deducted from the next matching edge. Only the best
+     * live matches up to the beam width are kept.
+     *
+     * @param phrase Match phrase, at least one word longer than the order
+     * @param details Result details
+     * @param beam Beam settings, or null for exact matching
+     * @param scorer Strategy for scoring the sub-phrases
+     * @return Score of the highest ranked sub-phrase, 0 if nothing matches
+     */
+    private double _scanSegments(List<String>   phrase,
+                                 Result         details,
+                                 BeamSettings   beam,
+                                 Scorer         scorer) {
+
+        int n = phrase.size();
+        String[] words = phrase.toArray(new String[n]);
+
+        // Best score for the first i words, and the match ending there if any
+        double[] scores = new double[n + 1];
+        int[] starts = new int[n + 1];
+        int[] nEdges = new int[n + 1];
+        double[] sums = new double[n + 1];
+        Result.Placeholder[] placeholders = new Result.Placeholder[n + 1];
+        Arrays.fill(starts, -1);
+
+        ArrayList<Hypothesis> live = new ArrayList<>();
+        ArrayList<Hypothesis> next = new ArrayList<>();
+        ArrayList<Hypothesis> forks = new ArrayList<>();
+        HashMap<Node, Integer> visited = new HashMap<>();
+
+        for (int w = 0; w < n; w++) {
+
+            // Skip word before
+            if (w > 0 && scores[w - 1] > scores[w]) {
+                scores[w] = scores[w - 1];
+                starts[w] = -1;
+            }
+
+            next.clear();
+            visited.clear();
+
+            // Advance live matches
+            for (Hypothesis h : live) {
+
+                forks.clear();
+                if (beam != null) {
+                    branch(h, words[w], w, beam, forks);
+                }
+                if (match(h, words[w], w)) {
+                    keep(h, next, visited);
+                }
+                for (Hypothesis f : forks) {
+                    keep(f, next, visited);
+                }
+            }
+
+            // Start new match
+            int start = w + 1 - _order;
+            if (start >= 0) {
+                String[] window = Arrays.copyOfRange(words, start, w + 1);
+                Node node = _nodes.get(new Label(window));
+                if (node != null) {
+                    keep(new Hypothesis(node, start, scores[start], window), next, visited);
+                }
+            }
+
+            if (beam != null && next.size() > beam.getWidth()) {
+                Collections.sort(next, BY_SCORE);
+                next.subList(beam.getWidth(), next.size()).clear();
+            }
+
+            // End matches after this word
+            int end = w + 1;
+            for (Hypothesis h : next) {
+                if (h.nEdges > 0 &&
+                    h.end == end &&
+                    h.score() > scores[end]) {
+                    scores[end] = h.score();
+                    starts[end] = h.start;
+                    nEdges[end] = h.nEdges;
+                    sums[end] = h.sumProbabilities;
+                    placeholders[end] = h.details.copyPendingPlaceholder();
+                }
+            }
+
+            ArrayList<Hypothesis> tmp = live;
+            live = next;
+            next = tmp;
+        }
+
+        if (scores[n - 1] > scores[n]) {
+            scores[n] = scores[n - 1];
+            starts[n] = -1;
+        }
+
+        // Backtrack
+        LinkedList<Integer> ends = new LinkedList<>();
+        int i = n;
+        while (i > 0) {
+            if (starts[i] < 0) {
+                i--;
+            } else {
+                ends.addFirst(i);
+                i = starts[i];
+            }
+        }
+
+        double bestRank = Double.NEGATIVE_INFINITY;
+        int bestEnd = -1;
+        for (int end : ends) {
+            double avgProbability = sums[end] / nEdges[end];
+            details.append(phrase, starts[end], end, avgProbability, placeholders[end]);
+            double rank = scorer.rank(nEdges[end], sums[end]);
+            if (rank > bestRank) {
+                bestRank = rank;
+                bestEnd = end;
+            }
+        }
+
+        // Penalties may take sums below 0
+        return bestEnd < 0 ? 0.0 : Math.max(0.0, scorer.score(nEdges[bestEnd], sums[bestEnd], n));
+    }
+
+    /**
+     * Advance match by input word.
+     * @return {@code true} if matching
+     */
+    private static boolean match(Hypothesis h,
+                                 String     word,
+                                 int        offset) {
+
+        String[] window = shift(h.window, word);
+        Edge edge = h.node.queryEdge(new Label(window), h.details, offset);
+        if (edge == null) {
+            return false;
+        }
+        h.window = window;
+        h.take(edge);
+        h.end = offset + 1;
+        return true;
+    }
+
+    /**
+     * Create matches that skip the input word, or a single chain word before it.
+     */
+    private static void branch(Hypothesis               h,
+                               String                   word,
+                               int                      offset,
+                               BeamSettings             beam,
+                               ArrayList<Hypothesis>    forks) {
+
+        Hypothesis skip = h.fork();
+        skip.penalty += beam.getInsertionPenalty();
+        forks.add(skip);
+
+        for (Edge edge : h.node.getEdges().values()) {
+            String[] fragments = edge.getNode().getLabel().getFragments();
+            String missing = fragments[fragments.length - 1];
+            if (SlidingWindow.isPlaceholder(missing)) {
+                continue;
+            }
+            Hypothesis f = h.fork();
+            f.window = shift(f.window, missing);
+            f.node = edge.getNode();
+            f.penalty += beam.getDeletionPenalty();
+            if (match(f, word, offset)) {
+                forks.add(f);
+            }
+        }
+    }
+
+    /**
+     * @return Copy of {@code window} moved forward by {@code word}
+     */
+    private static String[] shift(String[] window, String word) {
+
+        String[] shifted = new String[window.length];
+        System.arraycopy(window, 1, shifted, 0, window.length - 1);
+        shifted[window.length - 1] = word;
+        return shifted;
+    }
+
+    /**
+     * Add {@code h} to the live matches, unless a better one is already at the same node.
+     */
+    private static void keep(Hypothesis                 h,
+                             ArrayList<Hypothesis>      live,
+                             HashMap<Node, Integer>     visited) {
+
+        Integer index = visited.get(h.node);
+        if (index == null) {
+            visited.put(h.node, live.size());
+            live.add(h);
+        } else if (h.score() > live.get(index).score()) {
+            live.set(index, h);
+        }
     }
 
     /**
@@ -857,6 +1991,7 @@ public class MarkovChain {
      */
     public void traverse(Stream listener) throws Exception {
 
+        resident();
         // Visit all nodes
         listener.startModel(_order);
         for (Map.Entry<Label, Node> nodeEntry : _nodes.entrySet()) {
@@ -869,14 +2004,238 @@ public class MarkovChain {
                 // Add edge
                 listener.startGraph(n.getLabel().getFragments());
                 Edge e = edgeEntry.getValue();
-                listener.addEdge(e.getProbability(), e.getNode().getLabel().getFragments());
+                listener.addEdge(e.getProbability(), count(n, e), e.getNode().getLabel().getFragments());
                 listener.endGraph();
             }
         }
         listener.endModel();
     }
 
+    /**
+     * Walk the entire markov chain, visiting each node with all its edges at once.
+     *
+     * Nodes are split up into ranges that are visited on separate threads, so the order
+     * of nodes is undefined with more than one thread. The chain must not be modified
+     * while it is walked.
+     *
+     * @param listener Data readout interface, thread safe if {@code nThreads} > 1
+     * @param nThreads Number of threads, 1 to walk on the calling thread only
+     * @throws IllegalArgumentException If nThreads < 1
+     * @throws Exception Thrown by {@code listener}
+     */
+    public void traverseNodes(final NodeStream  listener,
+                              int               nThreads) throws Exception {
+
+        resident();
+        if (nThreads < 1) {
+            throw new IllegalArgumentException("Number of threads can not be < 1");
+        }
+
+        final Node[] nodes = _nodes.values().toArray(new Node[_nodes.size()]);
+        nThreads = Math.min(nThreads, nodes.length);
+        listener.startModel(_order);
+        if (nThreads <= 1) {
+            addNodes(listener, nodes, 0, nodes.length);
+            listener.endModel();
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        try {
+            ArrayList<Future<Void>> futures = new ArrayList<>();
+            for (int t = 0; t < nThreads; t++) {
+                final int from = nodes.length * t / nThreads;
+                final int to = nodes.length * (t + 1) / nThreads;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        addNodes(listener, nodes, from, to);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception) {
+                        throw (Exception) e.getCause();
+                    }
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        listener.endModel();
+    }
+
+    /**
+     * Walk the part of the markov chain within a number of edges of the given nodes,
+     * in either direction. Only edges between visited nodes are passed on.
+     *
+     * @param listener Data readout interface
+     * @param labels Labels of the nodes to start from, unknown ones are ignored
+     * @param hops Maximum number of edges from a start node
+     * @throws IllegalArgumentException If hops < 0
+     * @throws Exception Thrown by {@code listener}
+     */
+    public void traverseNeighbourhood(NodeStream            listener,
+                                      List<List<String>>    labels,
+                                      int                   hops) throws Exception {
 
+        resident();
+        if (hops < 0) {
+            throw new IllegalArgumentException("Number of hops can not be < 0");
+        }
+
+        // Nodes only know their outgoing edges
+        HashMap<Node, ArrayList<Node>> sources = new HashMap<>();
+        if (hops > 0) {
+            for (Node n : _nodes.values()) {
+                for (Edge e : n.getEdges().values()) {
+                    ArrayList<Node> list = sources.get(e.getNode());
+                    if (list == null) {
+                        list = new ArrayList<>();
+                        sources.put(e.getNode(), list);
+                    }
+                    list.add(n);
+                }
+            }
+        }
+
+        LinkedHashSet<Node> within = new LinkedHashSet<>();
+        ArrayList<Node> frontier = new ArrayList<>();
+        for (List<String> label : labels) {
+            Node n = _nodes.get(new Label(label.toArray(new String[label.size()])));
+            if (n != null && within.add(n)) {
+                frontier.add(n);
+            }
+        }
+        for (int h = 0; h < hops && !frontier.isEmpty(); h++) {
+            ArrayList<Node> next = new ArrayList<>();
+            for (Node n : frontier) {
+                for (Edge e : n.getEdges().values()) {
+                    if (within.add(e.getNode())) {
+                        next.add(e.getNode());
+                    }
+                }
+                ArrayList<Node> list = sources.get(n);
+                if (list != null) {
+                    for (Node source : list) {
+                        if (within.add(source)) {
+                            next.add(source);
+                        }
+                    }
+                }
+            }
+            frontier = next;
+        }
+
+        listener.startModel(_order);
+        for (Node n : within) {
+            addNode(listener, n, within);
+        }
+        listener.endModel();
+    }
+
+    /**
+     * Pass a range of nodes to {@code listener}.
+     */
+    private void addNodes(NodeStream    listener,
+                          Node[]        nodes,
+                          int           from,
+                          int           to) throws Exception {
+
+        for (int i = from; i < to; i++) {
+            addNode(listener, nodes[i], null);
+        }
+    }
+
+    /**
+     * Pass a node to {@code listener}, unless it has no outgoing edges.
+     * @param within Nodes to keep edges to, or null for all
+     */
+    private void addNode(NodeStream     listener,
+                         Node           n,
+                         Set<Node>      within) throws Exception {
+
+        HashMap<Label, Edge> edges = n.getEdges();
+        int size = 0;
+        for (Edge e : edges.values()) {
+            if (within == null || within.contains(e.getNode())) {
+                size++;
+            }
+        }
+        if (size == 0) {
+            return;
+        }
+
+        String[][] targets = new String[size][];
+        double[] probabilities = new double[size];
+        double[] counts = new double[size];
+        int k = 0;
+        for (Edge e : edges.values()) {
+            if (within == null || within.contains(e.getNode())) {
+                targets[k] = e.getNode().getLabel().getFragments();
+                probabilities[k] = e.getProbability();
+                counts[k] = count(n, e);
+                k++;
+            }
+        }
+        listener.addNode(n.getLabel().getFragments(), targets, probabilities, counts);
+    }
+
+    /**
+     * Move node to the current decay epoch before changing its counts.
+     * @param node Node whose counts are about to change
+     * @return Factor to multiply counts with before adding them to the node
+     */
+    private double touch(Node node) {
+
+        if (_decay == null) {
+            return 1.0;
+        }
+
+        double scale = _decay.scale();
+        if (node.getEpoch() != _decay.getEpoch()) {
+            node.rebase(_decay.getEpoch(), _decay.rebase(node.getEpoch()));
+        }
+        return scale;
+    }
+
+    /**
+     * @param node Source node of {@code edge}
+     * @param edge Outgoing edge
+     * @return Number of occurrences of the transition, decayed to the current time
+     */
+    private double count(Node node, Edge edge) {
+
+        if (_decay == null) {
+            return edge.getCount();
+        }
+        return edge.getCount() * _decay.count(node.getEpoch());
+    }
+
+    /**
+     * Keep training phrase according to retention policy.
+     * @param phrase Training phrase
+     * @param count Number of occurrences
+     */
+    private void retain(List<String>    phrase,
+                        double          count) {
+
+        if (_phrases == null) {
+            return;
+        }
+
+        int size = _phrases.size();
+        int index = _phrases.add(phrase, count);
+        // New phrases, or ones that had been untrained, aren't in the index yet
+        if (_index != null && (index == size || _phrases.getCount(index) == count)) {
+            _index.add(_phrases.getTokens(), _phrases.getOffset(index), _phrases.getLength(index));
+        }
+    }
 
     /**
      * Create Label object from JSON string array
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2019 Robert Staudinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ktm_technologies.nlcmd;
+
+/**
+ * Outcome of matching with a {@link Deadline}.
+ */
+@SuppressWarnings("WeakerAccess")
+public final class MatchResult {
+
+    private Object      _key = null;
+    private double      _score = 0.0;
+    private boolean     _complete = true;
+
+    /**
+     * Create empty MatchResult object.
+     */
+    MatchResult() {}
+
+    /**
+     * @return Key for best matching command or null
+     */
+    public Object getKey() {
+        return _key;
+    }
+
+    /**
+     * @return Score of best matching command, see {@link Scorer}
+     */
+    public double getScore() {
+        return _score;
+    }
+
+    /**
+     * @return {@code true} if all commands have been scored, {@code false} if the deadline
+     *         has expired before, in which case the result is the best one so far
+     */
+    public boolean isComplete() {
+        return _complete;
+    }
+
+    void set(Object     key,
+             double     score,
+             boolean    complete) {
+
+        _key = key;
+        _score = score;
+        _complete = complete;
+    }
+}
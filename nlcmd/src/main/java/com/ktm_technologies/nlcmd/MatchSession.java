@@ -0,0 +1,338 @@
+/*
+ * Copyright 2019 Robert Staudinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ktm_technologies.nlcmd;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Incremental matching of a phrase against a {@link CommandSet}, one word at a time.
+ *
+ * Intended for partial speech recognition results: instead of scanning the entire input
+ * again for every partial result, the session keeps the live matches of every command
+ * between calls and only advances them by the new words. After each word the currently
+ * best matching command is available, and once its score reaches the confidence
+ * threshold the match can be committed before the utterance is complete.
+ *
+ * Scores are computed like those of {@link CommandSet#scan} in {@link ScanMode#GREEDY} mode,
+ * with the input received so far taken as the complete phrase. Unlike a greedy scan, which
+ * stops at a word that leads nowhere in a chain, the session starts a match at every word,
+ * so it may find a command where {@link CommandSet#scan} finds none. The scan mode and
+ * {@link BeamSettings} of the set are not applied either.
+ */
+@SuppressWarnings("WeakerAccess")
+public class MatchSession {
+
+    /**
+     * Live match inside a chain.
+     */
+    private static class Hypothesis {
+
+        final int       start;
+        final Result    details = new Result();
+        Node            node;
+        int             nEdges;
+        double          sumProbabilities;
+
+        Hypothesis(Node node, int start) {
+            this.node = node;
+            this.start = start;
+        }
+    }
+
+    /**
+     * Match state of a single command.
+     */
+    private static class Frontier {
+
+        final Object                    key;
+        final MarkovChain               chain;
+        ArrayList<Hypothesis>           live = new ArrayList<>();
+        ArrayList<Hypothesis>           next = new ArrayList<>();
+        // Highest ranked completed sub-match
+        Hypothesis                      retired;
+
+        Frontier(Object key, MarkovChain chain) {
+            this.key = key;
+            this.chain = chain;
+        }
+    }
+
+    private final CommandSet            _cs;
+    private final Scorer                _scorer;
+    private final double                _threshold;
+    private final Frontier[]            _frontiers;
+    private final Preprocessor.Cursor   _cursor;
+    private final ArrayList<String>     _input = new ArrayList<>();
+    private final ArrayList<String>     _words = new ArrayList<>();
+    private final ArrayList<String>     _emitted = new ArrayList<>();
+
+    private Frontier    _best;
+    private Hypothesis  _bestMatch;
+    private double      _bestScore;
+
+    /**
+     * Create MatchSession object, see {@link CommandSet#createSession(double)}.
+     * @param cs Commands to match against
+     * @param threshold Minimum score for committing a match early
+     */
+    MatchSession(CommandSet cs,
+                 double     threshold) {
+
+        _cs = cs;
+        _scorer = cs.getScorer();
+        _threshold = threshold;
+        _cursor = cs.getPreprocessor().new Cursor();
+
+        _frontiers = new Frontier[cs.size()];
+        int i = 0;
+        for (Map.Entry<Object, MarkovChain> entry : cs.entrySet()) {
+            _frontiers[i++] = new Frontier(entry.getKey(), entry.getValue());
+        }
+        reset();
+    }
+
+    /**
+     * Drop all input and start over with a new phrase.
+     */
+    public void reset() {
+
+        _cursor.reset();
+        _input.clear();
+        _words.clear();
+        for (Frontier f : _frontiers) {
+            f.live.clear();
+            f.retired = null;
+        }
+        _best = null;
+        _bestMatch = null;
+        _bestScore = 0.0;
+    }
+
+    /**
+     * Add next word of the phrase.
+     * @param word Input word
+     * @return Key for best matching command so far or null
+     */
+    public Object push(String word) {
+
+        _input.add(word);
+        _emitted.clear();
+        _cursor.push(_cs.getTokenizer().transform(word), _emitted);
+        advance();
+        return getBest();
+    }
+
+    /**
+     * Update session with a partial recognition result, which is expected to extend
+     * the previous one. Only new words are matched, if earlier words have been revised
+     * the session starts over.
+     * @param phrase Partial recognition result
+     * @return Key for best matching command so far or null
+     */
+    public Object update(String phrase) {
+
+        List<String> words = _cs.getTokenizer().words(phrase);
+        int n = _input.size();
+        if (words.size() < n ||
+            !words.subList(0, n).equals(_input)) {
+            reset();
+            n = 0;
+        }
+        for (int i = n; i < words.size(); i++) {
+            push(words.get(i));
+        }
+        return getBest();
+    }
+
+    /**
+     * Complete the phrase, words held back for rewrite rules are matched now.
+     * @return Key for best matching command or null
+     */
+    public Object finish() {
+
+        _emitted.clear();
+        _cursor.finish(_emitted);
+        advance();
+        return getBest();
+    }
+
+    /**
+     * @return Key for best matching command so far or null
+     */
+    public Object getBest() {
+        return _best == null ? null : _best.key;
+    }
+
+    /**
+     * @return Score of best matching command so far, see {@link Scorer}
+     */
+    public double getScore() {
+        return _bestScore;
+    }
+
+    /**
+     * @return {@code true} if the best match reached the confidence threshold,
+     *         such that it can be committed without waiting for further input
+     */
+    public boolean isConfident() {
+        return _best != null && _bestScore >= _threshold;
+    }
+
+    /**
+     * Extract sub-phrase and placeholder of the best match.
+     * @param matches Map of sub-phrase matches and average probabilities, may be null
+     * @param placeholders Map of matches placeholders and their actual input, may be null
+     */
+    public void getDetails(HashMap<List<String>, Double>   matches,
+                           HashMap<String, List<String>>   placeholders) {
+
+        if (_bestMatch == null) {
+            return;
+        }
+
+        int order = _best.chain.getOrder();
+        if (matches != null) {
+            List<String> subPhrase = new ArrayList<>(
+                _words.subList(_bestMatch.start, _bestMatch.start + _bestMatch.nEdges + order));
+            matches.put(subPhrase, avg(_bestMatch));
+        }
+
+        Result.Placeholder placeholder = _bestMatch.details.getPendingPlaceholder();
+        if (placeholders != null && placeholder != null) {
+            placeholders.put(placeholder.getToken(), new ArrayList<>(placeholder.getPhrase()));
+        }
+    }
+
+    /**
+     * Advance all frontiers by words released from preprocessing.
+     */
+    private void advance() {
+
+        for (String word : _emitted) {
+            _words.add(_cs.getVocabulary().resolve(word));
+            for (Frontier f : _frontiers) {
+                step(f);
+            }
+        }
+        if (!_emitted.isEmpty()) {
+            score();
+        }
+    }
+
+    /**
+     * Advance live matches of a single command by the last word.
+     */
+    private void step(Frontier f) {
+
+        int order = f.chain.getOrder();
+        int n = _words.size();
+        if (n < order) {
+            return;
+        }
+
+        Label label = new Label(_words.subList(n - order, n).toArray(new String[order]));
+        f.next.clear();
+        for (Hypothesis h : f.live) {
+            Edge edge = h.node.queryEdge(label, h.details, h.start + h.nEdges);
+            if (edge != null && !contains(f.next, edge.getNode())) {
+                h.node = edge.getNode();
+                h.nEdges++;
+                h.sumProbabilities += edge.getProbability();
+                f.next.add(h);
+            } else {
+                retire(f, h, _scorer);
+            }
+        }
+
+        // Every word can start a new match, unless an earlier one already got there
+        Node node = f.chain.getNode(label);
+        if (node != null && !contains(f.next, node)) {
+            f.next.add(new Hypothesis(node, n - order));
+        }
+
+        ArrayList<Hypothesis> tmp = f.live;
+        f.live = f.next;
+        f.next = tmp;
+    }
+
+    /**
+     * Keep track of the highest ranked completed sub-match.
+     */
+    private static void retire(Frontier     f,
+                               Hypothesis   h,
+                               Scorer       scorer) {
+
+        if (h.nEdges == 0) {
+            return;
+        }
+        if (f.retired == null ||
+            rank(h, scorer) > rank(f.retired, scorer)) {
+            f.retired = h;
+        }
+    }
+
+    /**
+     * Find best command.
+     */
+    private void score() {
+
+        _best = null;
+        _bestMatch = null;
+        _bestScore = 0.0;
+        for (Frontier f : _frontiers) {
+
+            Hypothesis match = f.retired;
+            for (Hypothesis h : f.live) {
+                if (h.nEdges > 0 &&
+                    (match == null || rank(h, _scorer) > rank(match, _scorer))) {
+                    match = h;
+                }
+            }
+            if (match == null) {
+                continue;
+            }
+
+            double score = _scorer.score(match.nEdges, match.sumProbabilities, _words.size());
+            if (score > _bestScore) {
+                _best = f;
+                _bestMatch = match;
+                _bestScore = score;
+            }
+        }
+    }
+
+    private static double rank(Hypothesis h, Scorer scorer) {
+        return scorer.rank(h.nEdges, h.sumProbabilities);
+    }
+
+    private static double avg(Hypothesis h) {
+        return h.sumProbabilities / h.nEdges;
+    }
+
+    private static boolean contains(ArrayList<Hypothesis> hypotheses, Node node) {
+
+        for (Hypothesis h : hypotheses) {
+            if (h.node == node) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2019 Robert Staudinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ktm_technologies.nlcmd;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Reduces inflected forms of a word to a common stem, for
+ * {@link ScoreMode#LONGEST_AVG_REL_MOR}.
+ *
+ * Irregular forms are looked up in a sorted table, other words lose the longest matching
+ * inflection suffix, as long as a minimum stem remains. Stems are not necessarily words,
+ * they only need to be the same for all forms of a word. Tables are built once per
+ * language and shared.
+ */
+class Morphology {
+
+    // Shorter words are never stemmed
+    private static final int MIN_LENGTH = 4;
+
+    private static final HashMap<String, Morphology> CACHE = new HashMap<>();
+
+    // Inflection suffix : replacement, longest first
+    private static final String[][] SUFFIXES_DE = {
+        { "ern", "" }, { "est", "" }, { "em", "" }, { "en", "" }, { "er", "" }, { "es", "" },
+        { "et", "" }, { "e", "" }, { "s", "" }
+    };
+    private static final String[][] SUFFIXES_EN = {
+        { "sses", "ss" }, { "ies", "y" }, { "ing", "" }, { "ed", "" }, { "es", "" },
+        { "e", "" }, { "s", "" }
+    };
+
+    // Irregular form : stem
+    private static final String[][] IRREGULAR_DE = {
+        { "fuhr", "fahr" }, { "f\u00e4hrt", "fahr" }, { "ging", "geh" }, { "gegangen", "geh" },
+        { "hielt", "halt" }, { "h\u00e4lt", "halt" }, { "gehalten", "halt" }, { "lief", "lauf" },
+        { "l\u00e4uft", "lauf" }, { "gelaufen", "lauf" }, { "nahm", "nehm" }, { "nimm", "nehm" },
+        { "nimmt", "nehm" }, { "genommen", "nehm" }, { "sah", "seh" }, { "sieh", "seh" },
+        { "sieht", "seh" }, { "gesehen", "seh" }, { "zeigt", "zeig" }, { "gezeigt", "zeig" },
+        { "gestartet", "start" }, { "stoppt", "stopp" }, { "gestoppt", "stopp" }
+    };
+    private static final String[][] IRREGULAR_EN = {
+        { "went", "go" }, { "gone", "go" }, { "ran", "run" }, { "took", "tak" },
+        { "taken", "tak" }, { "saw", "see" }, { "seen", "see" }, { "shown", "show" },
+        { "children", "child" }, { "men", "man" }, { "women", "woman" }
+    };
+
+    private final String[]  _suffixes;
+    private final String[]  _replacements;
+    private final int       _minStem;
+    // Whether to undo doubled final consonants, as in "stopped"
+    private final boolean   _undouble;
+    // Sorted irregular forms and their stems at the same index
+    private final String[]  _forms;
+    private final String[]  _stems;
+
+    /**
+     * @param locale Language of the words
+     * @return Shared Morphology object for the language, which doesn't change words of
+     *         languages without tables
+     */
+    static Morphology forLocale(Locale locale) {
+
+        String language = locale.getLanguage();
+        synchronized (CACHE) {
+            Morphology morphology = CACHE.get(language);
+            if (morphology == null) {
+                if ("de".equals(language)) {
+                    morphology = new Morphology(SUFFIXES_DE, IRREGULAR_DE, 3, false);
+                } else if ("en".equals(language)) {
+                    morphology = new Morphology(SUFFIXES_EN, IRREGULAR_EN, 2, true);
+                } else {
+                    morphology = new Morphology(new String[0][], new String[0][], 0, false);
+                }
+                CACHE.put(language, morphology);
+            }
+            return morphology;
+        }
+    }
+
+    /**
+     * Create Morphology object.
+     * @param suffixes Pairs of suffix and replacement, longest first
+     * @param irregular Pairs of form and stem
+     * @param minStem Minimum length of a stem after removing a suffix
+     * @param undouble Whether to undo doubled final consonants after removing a suffix
+     */
+    private Morphology(String[][]   suffixes,
+                       String[][]   irregular,
+                       int          minStem,
+                       boolean      undouble) {
+
+        _suffixes = new String[suffixes.length];
+        _replacements = new String[suffixes.length];
+        for (int i = 0; i < suffixes.length; i++) {
+            _suffixes[i] = suffixes[i][0];
+            _replacements[i] = suffixes[i][1];
+        }
+        _minStem = minStem;
+        _undouble = undouble;
+
+        String[][] sorted = irregular.clone();
+        Arrays.sort(sorted, new Comparator<String[]>() {
+            @Override
+            public int compare(String[] a, String[] b) {
+                return a[0].compareTo(b[0]);
+            }
+        });
+        _forms = new String[sorted.length];
+        _stems = new String[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            _forms[i] = sorted[i][0];
+            _stems[i] = sorted[i][1];
+        }
+    }
+
+    /**
+     * @param word Input word
+     * @return Stem of {@code word}, or {@code word} itself if it can't be reduced
+     */
+    String stem(String word) {
+
+        if (word.isEmpty() || SlidingWindow.isPlaceholder(word)) {
+            return word;
+        }
+
+        String lower = word.toLowerCase(Locale.ROOT);
+        int i = Arrays.binarySearch(_forms, lower);
+        if (i >= 0) {
+            return restoreCase(word, _stems[i]);
+        }
+        if (word.length() < MIN_LENGTH) {
+            return word;
+        }
+
+        for (int s = 0; s < _suffixes.length; s++) {
+            String suffix = _suffixes[s];
+            if (lower.endsWith(suffix) &&
+                lower.length() - suffix.length() >= _minStem) {
+
+                String stem = lower.substring(0, lower.length() - suffix.length()) + _replacements[s];
+                int n = stem.length();
+                if (_undouble && n >= 2 &&
+                    stem.charAt(n - 1) == stem.charAt(n - 2) &&
+                    "aeiouylsz".indexOf(stem.charAt(n - 1)) < 0) {
+                    stem = stem.substring(0, n - 1);
+                }
+                return restoreCase(word, stem);
+            }
+        }
+        return word;
+    }
+
+    /**
+     * Keep a capitalized first letter, as German nouns and sentence starts have one.
+     */
+    private static String restoreCase(String word, String stem) {
+
+        if (stem.isEmpty() || !Character.isUpperCase(word.charAt(0))) {
+            return stem;
+        }
+        return Character.toUpperCase(stem.charAt(0)) + stem.substring(1);
+    }
+}
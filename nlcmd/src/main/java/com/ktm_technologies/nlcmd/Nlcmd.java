@@ -21,6 +21,8 @@ import android.annotation.SuppressLint;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 
 /**
  * This class provides static global command matching and execution callback with the #action()
@@ -41,13 +43,33 @@ public class Nlcmd {
     private static int _level = LEVEL_VERBOSE;
     private static int _order = 2;
     private static ScoreMode _scoreMode = ScoreMode.LONGEST_AVG_REL;
+    private static ScanMode _scanMode = ScanMode.GREEDY;
     private static CommandSet _cs = null;
+    private static Executor _executor = null;
+    private static DispatchListener _listener = null;
+    private static long _timeout = 0;
+    // Callback : timeout in milliseconds, for actions with their own timeout
+    private static final HashMap<Object, Long> _timeouts = new HashMap<>();
 
     /**
      * Expose only static API, no instantiation.
      */
     private Nlcmd() {}
 
+    /**
+     * @return Log level, one of the LEVEL_* constants
+     */
+    public static int getLevel() {
+        return _level;
+    }
+
+    /**
+     * @param level Log level, one of the LEVEL_* constants. Messages above it are not printed.
+     */
+    public static void setLevel(int level) {
+        _level = level;
+    }
+
     /**
      * @return Score mode, see {@link ScoreMode}
      */
@@ -64,6 +86,24 @@ public class Nlcmd {
         }
         _scoreMode = scoreMode;
     }
+
+    /**
+     * @return Scan mode, see {@link ScanMode}
+     */
+    public static ScanMode getScanMode() {
+        return _scanMode;
+    }
+
+    /**
+     * @param scanMode Scan mode, see {@link ScanMode}
+     */
+    public static void setScanMode(ScanMode scanMode) {
+        _scanMode = scanMode;
+        if (_cs != null) {
+            _cs.setScanMode(scanMode);
+        }
+    }
+
     /**
      * @return Order for markov chains, that is number of relevant previous steps when matching
      */
@@ -87,11 +127,63 @@ public class Nlcmd {
         _order = order;
     }
 
+    /**
+     * @return Executor for running actions, null if they run on the matching thread
+     */
+    public static Executor getExecutor() {
+        return _executor;
+    }
+
+    /**
+     * Run matched actions on an executor, such that matching the next phrase doesn't wait
+     * for them to finish.
+     * @param executor Executor or null to run actions on the matching thread
+     */
+    public static void setExecutor(Executor executor) {
+        _executor = executor;
+    }
+
+    /**
+     * @return Listener for finished actions or null
+     */
+    public static DispatchListener getListener() {
+        return _listener;
+    }
+
+    /**
+     * @param listener Listener for finished actions, see {@link DispatchListener}, or null
+     */
+    public static void setListener(DispatchListener listener) {
+        _listener = listener;
+    }
+
+    /**
+     * @return Milliseconds until actions without their own timeout are cancelled, 0 for none
+     */
+    public static long getTimeout() {
+        return _timeout;
+    }
+
+    /**
+     * Cancel actions that take too long, interrupting their thread. Timeouts only apply
+     * to actions run on an executor, see {@link Nlcmd#setExecutor(Executor)}.
+     * @param timeout Milliseconds until actions without their own timeout are cancelled,
+     *                0 for none
+     * @throws IllegalArgumentException If timeout < 0
+     */
+    public static void setTimeout(long timeout) throws IllegalArgumentException {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Timeout can not be < 0");
+        }
+        _timeout = timeout;
+    }
+
     /**
      * Unregister all existing actions.
      */
     public static void reset() {
         _cs = null;
+        _timeouts.clear();
     }
 
     /**
@@ -104,11 +196,31 @@ public class Nlcmd {
         // Lazy instantiation to respec _order and _scoreMode
         if (_cs == null) {
             _cs = new CommandSet(_order, _scoreMode, Locale.getDefault());
+            _cs.setScanMode(_scanMode);
         }
 
         _cs.put(callback, phrases);
     }
 
+    /**
+     * Register action with match phrases, hook and timeout
+     * @param phrases Training phrases to build a markov chain for this action
+     * @param callback Hook to run when the action is activated
+     * @param timeout Milliseconds until the action is cancelled, 0 for none,
+     *                see {@link Nlcmd#setTimeout(long)}
+     * @throws IllegalArgumentException If timeout < 0
+     */
+    public static void action(String[]      phrases,
+                              MatchLambda   callback,
+                              long          timeout) throws IllegalArgumentException {
+
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Timeout can not be < 0");
+        }
+        action(phrases, callback);
+        _timeouts.put(callback, timeout);
+    }
+
     /**
      * Register detailed action with match phrases and hook
      * @param phrases Training phrases to build a markov chain for this action
@@ -119,79 +231,164 @@ public class Nlcmd {
         // Lazy instantiation to respec _order and _scoreMode
         if (_cs == null) {
             _cs = new CommandSet(_order, _scoreMode, Locale.getDefault());
+            _cs.setScanMode(_scanMode);
         }
 
         _cs.put(callback, phrases);
     }
 
+    /**
+     * Register detailed action with match phrases, hook and timeout
+     * @param phrases Training phrases to build a markov chain for this action
+     * @param callback Hook to run when the action is activated
+     * @param timeout Milliseconds until the action is cancelled, 0 for none,
+     *                see {@link Nlcmd#setTimeout(long)}
+     * @throws IllegalArgumentException If timeout < 0
+     */
+    public static void action(String[]      phrases,
+                              ScanLambda    callback,
+                              long          timeout) throws IllegalArgumentException {
+
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Timeout can not be < 0");
+        }
+        action(phrases, callback);
+        _timeouts.put(callback, timeout);
+    }
+
     /**
      * Match input phrase against actions and run the best fitting one.
      * The #match() method only considers full lengths input phrase covering models.
      * @param phrase Input phrase
+     * @return Run of the action, null if no action matched, see {@link Nlcmd#setExecutor}
      * @see Nlcmd#scan(String) for sub-phrase matching
      */
-    public static void match(String phrase) {
+    public static Future<?> match(String phrase) {
 
-        List<String> list = Utils.words(phrase, Locale.getDefault());
-        match(list);
+        if (_cs == null) {
+            // No actions registered
+            return null;
+        }
+
+        return dispatch(_cs.match(phrase));
     }
 
     /**
      * Match input phrase against actions and run the best fitting one.
      * The #match() method only considers full lengths input phrase covering models.
      * @param phrase Input phrase
+     * @return Run of the action, null if no action matched, see {@link Nlcmd#setExecutor}
      * @see Nlcmd#scan(List) for sub-phrase matching
      */
-    public static void match(List<String> phrase) {
+    public static Future<?> match(List<String> phrase) {
 
         if (_cs == null) {
             // No actions registered
-            return;
+            return null;
         }
 
-        Object object = _cs.match(phrase);
+        return dispatch(_cs.match(phrase));
+    }
+
+    /**
+     * Run action found by #match().
+     * @param object Matched action or null
+     * @return Run of the action or null
+     */
+    private static Future<?> dispatch(Object object) {
+
         if (object instanceof MatchLambda) {
-            MatchLambda callback = (MatchLambda)object;
-            callback.run();
+            final MatchLambda callback = (MatchLambda)object;
+            return dispatch(callback, new Runnable() {
+                @Override
+                public void run() {
+                    callback.run();
+                }
+            });
         } else if (object != null) {
             throw new ClassCastException("Can only use ActionLambda with match(). See also ActionDetailsLambda.");
         }
+        return null;
     }
 
     /**
      * Match input phrase against actions and run the best fitting one.
      * The #scan() method
      * @param phrase Input phrase
+     * @return Run of the action, null if no action matched, see {@link Nlcmd#setExecutor}
      * @see Nlcmd#match(String) for strict full-phrase matching only
      */
-    public static void scan(String phrase) {
+    public static Future<?> scan(String phrase) {
 
-        List<String> list = Utils.words(phrase, Locale.getDefault());
-        scan(list);
+        if (_cs == null) {
+            // No actions registered
+            return null;
+        }
+
+        HashMap<List<String>, Double> matches = new HashMap<>();
+        HashMap<String, List<String>> placeholders = new HashMap<>();
+        Object object = _cs.scan(phrase, matches, placeholders);
+        return dispatch(object, matches, placeholders);
     }
 
     /**
      * Match input phrase against actions and run the best fitting one.
      * The #scan() method
      * @param phrase Input phrase
+     * @return Run of the action, null if no action matched, see {@link Nlcmd#setExecutor}
      * @see Nlcmd#match(List) for strict full-phrase matching only
      */
-    public static void scan(List<String> phrase) {
+    public static Future<?> scan(List<String> phrase) {
 
         if (_cs == null) {
             // No actions registered
-            return;
+            return null;
         }
 
         HashMap<List<String>, Double> matches = new HashMap<>();
         HashMap<String, List<String>> placeholders = new HashMap<>();
         Object object = _cs.scan(phrase, matches, placeholders);
+        return dispatch(object, matches, placeholders);
+    }
+
+    /**
+     * Run action found by #scan().
+     * @param object Matched action or null
+     * @param matches Map of sub-phrase matches and average probabilities
+     * @param placeholders Map of matches placeholders and their actual input
+     * @return Run of the action or null
+     */
+    private static Future<?> dispatch(Object                                object,
+                                      final HashMap<List<String>, Double>   matches,
+                                      final HashMap<String, List<String>>   placeholders) {
+
         if (object instanceof ScanLambda) {
-            ScanLambda callback = (ScanLambda)object;
-            callback.run(matches, placeholders);
+            final ScanLambda callback = (ScanLambda)object;
+            return dispatch(callback, new Runnable() {
+                @Override
+                public void run() {
+                    callback.run(matches, placeholders);
+                }
+            });
         } else if (object != null) {
             throw new ClassCastException("Can only use ActionDetailsLambda with scan(). See also ActionLambda.");
         }
+        return null;
+    }
+
+    /**
+     * Run action on the executor if any, otherwise on the calling thread.
+     * @param callback Matched action
+     * @param run Invocation of the action
+     * @return Run of the action
+     */
+    private static Future<?> dispatch(Object    callback,
+                                      Runnable  run) {
+
+        Long timeout = _timeouts.get(callback);
+        Dispatch dispatch = new Dispatch(callback, run, _listener);
+        dispatch.start(_executor, timeout == null ? _timeout : timeout);
+        return dispatch;
     }
 
     /**
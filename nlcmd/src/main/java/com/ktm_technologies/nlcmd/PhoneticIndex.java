@@ -0,0 +1,326 @@
+/*
+ * Copyright 2019 Robert Staudinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ktm_technologies.nlcmd;
+
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Maps unknown tokens to known tokens that sound alike, such as homophones from speech
+ * recognition.
+ *
+ * Known tokens are indexed by a phonetic key, "Koelner Phonetik" for German and
+ * Metaphone otherwise, such that a lookup is a single hash table access. Among tokens
+ * with the same key the first one added wins. Lookups may run on several threads as
+ * long as no tokens are added at the same time.
+ */
+class PhoneticIndex {
+
+    // Shorter tokens have too many neighbours
+    static final int MIN_LENGTH = 4;
+
+    private final boolean                   _german;
+    // Phonetic key : canonical token
+    private final HashMap<String, String>   _index = new HashMap<>();
+
+    /**
+     * Create empty PhoneticIndex object.
+     * @param locale Language of the tokens
+     */
+    PhoneticIndex(Locale locale) {
+
+        _german = "de".equals(locale.getLanguage());
+    }
+
+    /**
+     * Add known token, short tokens and placeholders are ignored.
+     * @param word Token as it may be spelled
+     * @param canonical Token to resolve {@code word} to
+     */
+    void add(String word,
+             String canonical) {
+
+        if (word.length() < MIN_LENGTH || SlidingWindow.isPlaceholder(word)) {
+            return;
+        }
+
+        String key = key(word);
+        if (!key.isEmpty() && !_index.containsKey(key)) {
+            _index.put(key, canonical);
+        }
+    }
+
+    /**
+     * @param token Unknown token
+     * @return Known token that sounds like {@code token}, or null
+     */
+    String resolve(String token) {
+
+        if (token.length() < MIN_LENGTH || SlidingWindow.isPlaceholder(token)) {
+            return null;
+        }
+        return _index.get(key(token));
+    }
+
+    /**
+     * @param word Input word
+     * @return Phonetic key for the language of the index
+     */
+    String key(String word) {
+
+        return _german ? cologne(word) : metaphone(word);
+    }
+
+    /**
+     * "Koelner Phonetik" by Hans Joachim Postel.
+     * @param word Input word
+     * @return Phonetic key as digits
+     */
+    static String cologne(String word) {
+
+        String s = letters(word);
+        StringBuilder sb = new StringBuilder();
+        char last = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            char prev = i > 0 ? s.charAt(i - 1) : 0;
+            char next = i + 1 < s.length() ? s.charAt(i + 1) : 0;
+            String code;
+            switch (c) {
+                case 'A': case 'E': case 'I': case 'J': case 'O': case 'U': case 'Y':
+                    code = "0";
+                    break;
+                case 'H':
+                    code = "";
+                    break;
+                case 'B':
+                    code = "1";
+                    break;
+                case 'P':
+                    code = next == 'H' ? "3" : "1";
+                    break;
+                case 'D': case 'T':
+                    code = next == 'C' || next == 'S' || next == 'Z' ? "8" : "2";
+                    break;
+                case 'F': case 'V': case 'W':
+                    code = "3";
+                    break;
+                case 'G': case 'K': case 'Q':
+                    code = "4";
+                    break;
+                case 'C':
+                    if (i == 0) {
+                        code = "AHKLOQRUX".indexOf(next) >= 0 ? "4" : "8";
+                    } else {
+                        code = "AHKOQUX".indexOf(next) >= 0 && prev != 'S' && prev != 'Z' ? "4" : "8";
+                    }
+                    break;
+                case 'X':
+                    code = prev == 'C' || prev == 'K' || prev == 'Q' ? "8" : "48";
+                    break;
+                case 'L':
+                    code = "5";
+                    break;
+                case 'M': case 'N':
+                    code = "6";
+                    break;
+                case 'R':
+                    code = "7";
+                    break;
+                case 'S': case 'Z':
+                    code = "8";
+                    break;
+                default:
+                    code = "";
+                    break;
+            }
+
+            // Collapse repeated codes, drop vowels except at the start
+            for (int j = 0; j < code.length(); j++) {
+                char d = code.charAt(j);
+                if (d != last && (d != '0' || sb.length() == 0)) {
+                    sb.append(d);
+                }
+                last = d;
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Metaphone by Lawrence Philips.
+     * @param word Input word
+     * @return Phonetic key as letters, '0' for "th"
+     */
+    static String metaphone(String word) {
+
+        String s = letters(word);
+        if (s.isEmpty()) {
+            return s;
+        }
+
+        // Initial exceptions
+        if (s.startsWith("KN") || s.startsWith("GN") || s.startsWith("PN") ||
+            s.startsWith("AE") || s.startsWith("WR")) {
+            s = s.substring(1);
+        } else if (s.charAt(0) == 'X') {
+            s = "S" + s.substring(1);
+        } else if (s.startsWith("WH")) {
+            s = "W" + s.substring(2);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            char prev = i > 0 ? s.charAt(i - 1) : 0;
+            char next = i + 1 < n ? s.charAt(i + 1) : 0;
+            char after = i + 2 < n ? s.charAt(i + 2) : 0;
+
+            // Double letters count once, except for C
+            if (c == prev && c != 'C') {
+                continue;
+            }
+
+            switch (c) {
+                case 'A': case 'E': case 'I': case 'O': case 'U':
+                    if (i == 0) {
+                        sb.append(c);
+                    }
+                    break;
+                case 'B':
+                    if (!(prev == 'M' && i == n - 1)) {
+                        sb.append('B');
+                    }
+                    break;
+                case 'C':
+                    if (next == 'I' && after == 'A') {
+                        sb.append('X');
+                    } else if (next == 'H') {
+                        sb.append(prev == 'S' ? 'K' : 'X');
+                        i++;
+                    } else if (next == 'I' || next == 'E' || next == 'Y') {
+                        if (prev != 'S') {
+                            sb.append('S');
+                        }
+                    } else {
+                        sb.append('K');
+                    }
+                    break;
+                case 'D':
+                    if (next == 'G' && (after == 'E' || after == 'Y' || after == 'I')) {
+                        sb.append('J');
+                        i++;
+                    } else {
+                        sb.append('T');
+                    }
+                    break;
+                case 'G':
+                    if (next == 'H' && i + 2 < n && !isVowel(after)) {
+                        // Silent as in "night"
+                        break;
+                    }
+                    if (next == 'N' && (i + 2 == n || s.startsWith("ED", i + 2) && i + 4 == n)) {
+                        // Silent as in "sign", "signed"
+                        break;
+                    }
+                    sb.append((next == 'I' || next == 'E' || next == 'Y') && prev != 'G' ? 'J' : 'K');
+                    break;
+                case 'H':
+                    if (isVowel(next) && "CSPTG".indexOf(prev) < 0) {
+                        sb.append('H');
+                    }
+                    break;
+                case 'K':
+                    if (prev != 'C') {
+                        sb.append('K');
+                    }
+                    break;
+                case 'P':
+                    sb.append(next == 'H' ? 'F' : 'P');
+                    break;
+                case 'Q':
+                    sb.append('K');
+                    break;
+                case 'S':
+                    if (next == 'H' ||
+                        (next == 'I' && (after == 'O' || after == 'A'))) {
+                        sb.append('X');
+                    } else {
+                        sb.append('S');
+                    }
+                    break;
+                case 'T':
+                    if (next == 'I' && (after == 'O' || after == 'A')) {
+                        sb.append('X');
+                    } else if (next == 'H') {
+                        sb.append('0');
+                    } else if (!(next == 'C' && after == 'H')) {
+                        sb.append('T');
+                    }
+                    break;
+                case 'V':
+                    sb.append('F');
+                    break;
+                case 'W': case 'Y':
+                    if (isVowel(next)) {
+                        sb.append(c);
+                    }
+                    break;
+                case 'X':
+                    sb.append("KS");
+                    break;
+                case 'Z':
+                    sb.append('S');
+                    break;
+                case 'F': case 'J': case 'L': case 'M': case 'N': case 'R':
+                    sb.append(c);
+                    break;
+                default:
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return Upper case letters of {@code word}, umlauts replaced by their base letters
+     */
+    private static String letters(String word) {
+
+        StringBuilder sb = new StringBuilder(word.length());
+        for (int i = 0; i < word.length(); i++) {
+            char c = Character.toUpperCase(word.charAt(i));
+            switch (c) {
+                case '\u00c4': sb.append('A'); break;
+                case '\u00d6': sb.append('O'); break;
+                case '\u00dc': sb.append('U'); break;
+                case '\u00df': sb.append('S'); break;
+                default:
+                    if (c >= 'A' && c <= 'Z') {
+                        sb.append(c);
+                    }
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+
+    private static boolean isVowel(char c) {
+        return c == 'A' || c == 'E' || c == 'I' || c == 'O' || c == 'U';
+    }
+}
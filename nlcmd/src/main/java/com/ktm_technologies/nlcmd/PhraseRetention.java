@@ -0,0 +1,34 @@
+/*
+ * Copyright 2019 Robert Staudinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ktm_technologies.nlcmd;
+
+/**
+ * What a {@link MarkovChain} keeps of its training phrases, besides the chain itself.
+ */
+public enum PhraseRetention {
+
+    /**
+     * Training phrases are dropped after training, such that
+     * {@link MarkovChain#matchingFaktor} is not available.
+     */
+    NONE,
+
+    /**
+     * Distinct training phrases are kept as token IDs in a shared buffer.
+     */
+    PACKED
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2019 Robert Staudinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ktm_technologies.nlcmd;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compact storage for distinct phrases.
+ *
+ * Tokens are mapped to IDs by a {@link Vocabulary}, and the IDs of all phrases are
+ * concatenated in a single buffer. Adding a phrase that is already stored returns
+ * the index of the existing one and increments its count. Removed phrases keep their
+ * index with a count of 0.
+ */
+class PhraseStore {
+
+    // Relative difference of counts that is due to rounding
+    private static final double COUNT_TOLERANCE = 1e-9;
+
+    private final Vocabulary    _vocabulary = new Vocabulary();
+    private int[]               _tokens = new int[64];
+    private int                 _nTokens = 0;
+    // Phrase i spans _offsets[i] up to _offsets[i + 1]
+    private int[]               _offsets = new int[9];
+    // Number of occurrences per phrase
+    private double[]            _counts = new double[8];
+    private int                 _size = 0;
+    // Phrase index + 1 per slot, 0 if empty
+    private int[]               _table = new int[16];
+
+    /**
+     * Create empty PhraseStore object.
+     */
+    PhraseStore() {}
+
+    /**
+     * @return Number of distinct phrases
+     */
+    int size() {
+        return _size;
+    }
+
+    /**
+     * @return Token to ID mapping
+     */
+    Vocabulary getVocabulary() {
+        return _vocabulary;
+    }
+
+    /**
+     * @return Token IDs of all phrases, see {@link PhraseStore#getOffset}
+     */
+    int[] getTokens() {
+        return _tokens;
+    }
+
+    /**
+     * @param index Phrase index
+     * @return Offset of phrase in {@link PhraseStore#getTokens()}
+     */
+    int getOffset(int index) {
+        return _offsets[index];
+    }
+
+    /**
+     * @param index Phrase index
+     * @return Number of tokens in phrase
+     */
+    int getLength(int index) {
+        return _offsets[index + 1] - _offsets[index];
+    }
+
+    /**
+     * @param index Phrase index
+     * @return Number of occurrences of phrase, 0 if it has been removed
+     */
+    double getCount(int index) {
+        return _counts[index];
+    }
+
+    /**
+     * @param index Phrase index
+     * @return Phrase tokens
+     */
+    List<String> get(int index) {
+
+        List<String> phrase = new ArrayList<>(getLength(index));
+        for (int i = _offsets[index]; i < _offsets[index + 1]; i++) {
+            phrase.add(_vocabulary.getToken(_tokens[i]));
+        }
+        return phrase;
+    }
+
+    /**
+     * Add single occurrence of phrase.
+     * @param phrase Tokenized phrase
+     * @return Index of the phrase
+     */
+    int add(List<String> phrase) {
+
+        return add(phrase, 1.0);
+    }
+
+    /**
+     * Add phrase unless already stored, and count its occurrences.
+     * @param phrase Tokenized phrase
+     * @param count Number of occurrences
+     * @return Index of the phrase
+     */
+    int add(List<String> phrase, double count) {
+
+        // Append tentatively, drop again if duplicate
+        int start = _nTokens;
+        if (start + phrase.size() > _tokens.length) {
+            _tokens = Arrays.copyOf(_tokens, Math.max(_tokens.length * 2, start + phrase.size()));
+        }
+        int h = 0;
+        for (String token : phrase) {
+            int id = _vocabulary.add(token);
+            _tokens[_nTokens++] = id;
+            h = 31 * h + id;
+        }
+
+        int mask = _table.length - 1;
+        int slot = mix(h) & mask;
+        for (; _table[slot] != 0; slot = (slot + 1) & mask) {
+            int index = _table[slot] - 1;
+            if (equals(index, start, _nTokens)) {
+                _nTokens = start;
+                _counts[index] += count;
+                return index;
+            }
+        }
+
+        if (_size + 2 > _offsets.length) {
+            _offsets = Arrays.copyOf(_offsets, _offsets.length * 2);
+            _counts = Arrays.copyOf(_counts, _offsets.length - 1);
+        }
+        int index = _size++;
+        _counts[index] = count;
+        _offsets[index] = start;
+        _offsets[_size] = _nTokens;
+        _table[slot] = index + 1;
+
+        // Keep load factor below 1/2
+        if (_size * 2 > _table.length) {
+            rehash();
+        }
+        return index;
+    }
+
+    /**
+     * Remove occurrences of phrase.
+     * @param phrase Tokenized phrase
+     * @param count Number of occurrences
+     * @return {@code false} if the phrase isn't stored with at least {@code count} occurrences
+     */
+    boolean remove(List<String> phrase, double count) {
+
+        int index = find(phrase);
+        if (index < 0 || _counts[index] < count * (1.0 - COUNT_TOLERANCE)) {
+            return false;
+        }
+        _counts[index] -= count;
+        // Fractional counts don't add up exactly
+        if (_counts[index] < count * COUNT_TOLERANCE) {
+            _counts[index] = 0.0;
+        }
+        return true;
+    }
+
+    /**
+     * @param phrase Tokenized phrase
+     * @return Index of phrase or -1 if not stored
+     */
+    private int find(List<String> phrase) {
+
+        // Compare in the spare part of the token buffer
+        int start = _nTokens;
+        if (start + phrase.size() > _tokens.length) {
+            _tokens = Arrays.copyOf(_tokens, Math.max(_tokens.length * 2, start + phrase.size()));
+        }
+        int h = 0;
+        int end = start;
+        for (String token : phrase) {
+            int id = _vocabulary.lookup(token);
+            if (id < 0) {
+                return -1;
+            }
+            _tokens[end++] = id;
+            h = 31 * h + id;
+        }
+
+        int mask = _table.length - 1;
+        for (int slot = mix(h) & mask; _table[slot] != 0; slot = (slot + 1) & mask) {
+            int index = _table[slot] - 1;
+            if (equals(index, start, end)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compare stored phrase to a range of the token buffer.
+     */
+    private boolean equals(int index, int start, int end) {
+
+        if (getLength(index) != end - start) {
+            return false;
+        }
+        int offset = _offsets[index];
+        for (int i = 0; i < end - start; i++) {
+            if (_tokens[offset + i] != _tokens[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rehash() {
+
+        _table = new int[_table.length * 2];
+        int mask = _table.length - 1;
+        for (int index = 0; index < _size; index++) {
+            int h = 0;
+            for (int i = _offsets[index]; i < _offsets[index + 1]; i++) {
+                h = 31 * h + _tokens[i];
+            }
+            int slot = mix(h) & mask;
+            while (_table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            _table[slot] = index + 1;
+        }
+    }
+
+    /**
+     * Spread hash bits for power of two table sizes.
+     */
+    private static int mix(int h) {
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2019 Robert Staudinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ktm_technologies.nlcmd;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * Removes stopwords and applies rewrite rules to tokenized phrases.
+ *
+ * All rules are compiled into a single Aho-Corasick automaton over tokens, such that
+ * a phrase is processed in one pass regardless of the number of rules. Where rules
+ * overlap, the one starting first wins, and among those the longest one.
+ */
+class Preprocessor {
+
+    /**
+     * Automaton state.
+     */
+    private static class State {
+
+        final HashMap<String, State>    next = new HashMap<>();
+        final int                       depth;
+        State                           fail;
+        // Longest rule ending in this state, possibly via failure links
+        Rule                            output;
+        // Next shorter rule ending in this state
+        State                           outputLink;
+
+        State(int depth) {
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * Rewrite rule, stopwords have an empty replacement.
+     */
+    private static class Rule {
+
+        final int       length;
+        final String[]  replacement;
+
+        Rule(int length, String[] replacement) {
+            this.length = length;
+            this.replacement = replacement;
+        }
+    }
+
+    private final State _root = new State(0);
+    private boolean     _compiled = true;
+    private int         _nRules = 0;
+
+    /**
+     * Create empty Preprocessor object.
+     */
+    Preprocessor() {}
+
+    /**
+     * @return {@code true} if no rules have been added
+     */
+    boolean isEmpty() {
+        return _nRules == 0;
+    }
+
+    /**
+     * Add stopword or stop phrase, which will be removed from input.
+     * @param pattern Tokenized stopword
+     */
+    void addStopword(List<String> pattern) {
+
+        addRewrite(pattern, new ArrayList<String>());
+    }
+
+    /**
+     * Add rewrite rule.
+     * @param pattern Tokenized phrase to replace
+     * @param replacement Tokenized replacement, may be empty
+     */
+    void addRewrite(List<String> pattern,
+                    List<String> replacement) {
+
+        if (pattern.isEmpty()) {
+            return;
+        }
+
+        State state = _root;
+        for (String token : pattern) {
+            State next = state.next.get(token);
+            if (next == null) {
+                next = new State(state.depth + 1);
+                state.next.put(token, next);
+            }
+            state = next;
+        }
+
+        state.output = new Rule(pattern.size(), replacement.toArray(new String[0]));
+        _nRules++;
+        _compiled = false;
+    }
+
+    /**
+     * Build failure and output links, breadth first.
+     */
+    private void compile() {
+
+        LinkedList<State> queue = new LinkedList<>();
+        _root.fail = _root;
+        _root.outputLink = null;
+        for (State s : _root.next.values()) {
+            s.fail = _root;
+            s.outputLink = null;
+            queue.add(s);
+        }
+
+        while (!queue.isEmpty()) {
+            State state = queue.removeFirst();
+            for (Map.Entry<String, State> entry : state.next.entrySet()) {
+
+                State child = entry.getValue();
+                State f = state.fail;
+                while (f != _root && !f.next.containsKey(entry.getKey())) {
+                    f = f.fail;
+                }
+                State target = f.next.get(entry.getKey());
+                child.fail = (target != null && target != child) ? target : _root;
+                child.outputLink = child.fail.output != null ? child.fail : child.fail.outputLink;
+                queue.add(child);
+            }
+        }
+
+        _compiled = true;
+    }
+
+    /**
+     * Run rules over phrase.
+     * @param phrase Input phrase
+     * @param out List to append the processed phrase to
+     */
+    void process(List<String>   phrase,
+                 List<String>   out) {
+
+        new Cursor().process(phrase, out);
+    }
+
+    /**
+     * Streaming application of the rules, one token at a time.
+     *
+     * Tokens are written out as soon as no rule can match them any more, tokens that
+     * are part of a potential match are held back.
+     */
+    class Cursor {
+
+        private final ArrayDeque<String>    _pending = new ArrayDeque<>();
+        // Longest rule per pending token that starts there, or null
+        private Rule[]                      _longest = new Rule[8];
+        private State                       _state;
+        private int                         _offset;    // Offset of next input token
+        private int                         _emitted;   // Offset of first pending token
+
+        /**
+         * Create Cursor object at the start of a phrase.
+         */
+        Cursor() {
+
+            reset();
+        }
+
+        /**
+         * Drop pending input and restart at the start of a phrase.
+         */
+        void reset() {
+
+            if (!_compiled) {
+                compile();
+            }
+            _pending.clear();
+            Arrays.fill(_longest, null);
+            _state = _root;
+            _offset = 0;
+            _emitted = 0;
+        }
+
+        /**
+         * Run rules over an entire phrase, the cursor can be reused afterwards.
+         * @param phrase Input phrase
+         * @param out List to append the processed phrase to
+         */
+        void process(List<String>   phrase,
+                     List<String>   out) {
+
+            if (phrase instanceof RandomAccess) {
+                for (int i = 0; i < phrase.size(); i++) {
+                    push(phrase.get(i), out);
+                }
+            } else {
+                for (String token : phrase) {
+                    push(token, out);
+                }
+            }
+            finish(out);
+        }
+
+        /**
+         * Process next input token.
+         * @param token Input token
+         * @param out List to append the tokens that are final to
+         */
+        void push(String        token,
+                  List<String>  out) {
+
+            int i = _offset++;
+            _pending.addLast(token);
+            if (i - _emitted == _longest.length) {
+                _longest = Arrays.copyOf(_longest, _longest.length * 2);
+            }
+
+            // Transition
+            State state = _state;
+            State next = state.next.get(token);
+            while (next == null && state != _root) {
+                state = state.fail;
+                next = state.next.get(token);
+            }
+            _state = next != null ? next : _root;
+
+            // Remember the longest rule per start among all rules ending here
+            State s = _state.output != null ? _state : _state.outputLink;
+            for (; s != null; s = s.outputLink) {
+                int start = i + 1 - s.output.length;
+                if (start >= _emitted) {
+                    Rule rule = _longest[start - _emitted];
+                    if (rule == null || rule.length < s.output.length) {
+                        _longest[start - _emitted] = s.output;
+                    }
+                }
+            }
+
+            // Longer rules can only start where a prefix that isn't a leaf starts
+            State live = _state;
+            while (live != _root && live.next.isEmpty()) {
+                live = live.fail;
+            }
+            emit(i + 1 - live.depth, out);
+        }
+
+        /**
+         * Complete phrase, writing out all pending tokens.
+         * @param out List to append the remaining tokens to
+         */
+        void finish(List<String> out) {
+
+            emit(_offset, out);
+            reset();
+        }
+
+        /**
+         * Write out pending tokens before {@code limit}, or the replacement of the longest
+         * rule starting at the first one.
+         * @param limit Offset of the first token a rule may still start at
+         */
+        private void emit(int           limit,
+                          List<String>  out) {
+
+            while (_emitted < limit) {
+                Rule rule = _longest[0];
+                int n = 1;
+                if (rule == null) {
+                    out.add(_pending.removeFirst());
+                } else {
+                    for (String token : rule.replacement) {
+                        out.add(token);
+                    }
+                    for (int k = 0; k < rule.length; k++) {
+                        _pending.removeFirst();
+                    }
+                    n = rule.length;
+                }
+
+                int size = _offset - _emitted;
+                System.arraycopy(_longest, n, _longest, 0, size - n);
+                Arrays.fill(_longest, size - n, size, null);
+                _emitted += n;
+            }
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2019 Robert Staudinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ktm_technologies.nlcmd;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Resolution of unknown query tokens per command.
+ *
+ * Unknown tokens are only replaced by a known one that sounds alike, is close or has the
+ * same stem, see {@link Vocabulary#resolveUnknown}, if that gives a window which is a node
+ * label of the command's chain. Otherwise the raw token is kept, so it can still be consumed
+ * by a placeholder. Matches are reported in terms of the raw tokens.
+ *
+ * Objects are reused per thread, and only valid until the next query.
+ */
+class Resolution {
+
+    private List<String>                _raw;
+    private int                         _length = 0;
+    private String[]                    _singles = new String[8];
+    private String[]                    _joins = new String[8];
+    private boolean                     _joining = false;
+    // Phrase for the current chain, and the range of raw tokens per word
+    private final ArrayList<String>     _words = new ArrayList<>();
+    private int[]                       _starts = new int[8];
+    private int[]                       _ends = new int[8];
+
+    /**
+     * Look up alternatives for the unknown tokens of a query phrase.
+     * @param raw Query phrase, known tokens already canonical
+     * @param vocabulary Vocabulary to resolve against
+     * @return {@code false} if there is nothing to resolve
+     */
+    boolean set(List<String>    raw,
+                Vocabulary      vocabulary) {
+
+        _raw = raw;
+        _length = raw.size();
+        _joining = false;
+        if (_singles.length < _length) {
+            _singles = new String[_length];
+            _joins = new String[_length];
+            _starts = new int[_length];
+            _ends = new int[_length];
+        }
+
+        boolean any = false;
+        for (int i = 0; i < _length; i++) {
+            String token = raw.get(i);
+            _singles[i] = null;
+            _joins[i] = null;
+            if (vocabulary.lookup(token) >= 0) {
+                continue;
+            }
+            if (i + 1 < _length) {
+                _joins[i] = vocabulary.resolveJoined(token, raw.get(i + 1));
+                _joining |= _joins[i] != null;
+            }
+            String resolved = vocabulary.resolveUnknown(token);
+            if (!resolved.equals(token)) {
+                _singles[i] = resolved;
+            }
+            any |= _singles[i] != null || _joins[i] != null;
+        }
+        return any;
+    }
+
+    /**
+     * @return {@code true} if two tokens may be joined, such that phrases for chains can be
+     *         shorter than the query
+     */
+    boolean isJoining() {
+        return _joining;
+    }
+
+    /**
+     * Build the phrase for a chain, from left to right. An alternative is taken if a window
+     * containing it is a node label, see {@link MarkovChain#hasLabel}.
+     * @param mc Chain to match against
+     * @return Phrase for {@code mc}, only valid until the next call
+     */
+    List<String> apply(MarkovChain mc) {
+
+        _words.clear();
+        for (int i = 0; i < _length; ) {
+            int w = _words.size();
+            if (_joins[i] != null && fits(mc, _joins[i], i + 2)) {
+                _words.add(_joins[i]);
+                _ends[w] = i + 2;
+            } else if (_singles[i] != null && fits(mc, _singles[i], i + 1)) {
+                _words.add(_singles[i]);
+                _ends[w] = i + 1;
+            } else {
+                _words.add(_raw.get(i));
+                _ends[w] = i + 1;
+            }
+            _starts[w] = i;
+            i = _ends[w];
+        }
+        return _words;
+    }
+
+    /**
+     * @param next Index of the raw token after the ones {@code word} replaces
+     * @return {@code true} if a window of the chain's order with {@code word} is a node label,
+     *         followed by the raw tokens, or their alternatives
+     */
+    private boolean fits(MarkovChain    mc,
+                         String         word,
+                         int            next) {
+
+        int order = mc.getOrder();
+        int w = _words.size();
+        _words.add(word);
+        try {
+            for (int alt = 0; alt < 2; alt++) {
+                for (int j = next; j < _length && _words.size() < w + order; j++) {
+                    _words.add(alt == 1 && _singles[j] != null ? _singles[j] : _raw.get(j));
+                }
+                for (int s = Math.max(0, w - order + 1); s <= w && s + order <= _words.size(); s++) {
+                    if (mc.hasLabel(_words, s)) {
+                        return true;
+                    }
+                }
+                _words.subList(w + 1, _words.size()).clear();
+            }
+            return false;
+        } finally {
+            _words.subList(w, _words.size()).clear();
+        }
+    }
+
+    /**
+     * Extract match details like {@link Result#extractMatches}, with the raw tokens the
+     * phrase of the last {@link #apply} call stands for.
+     * @param details Result of matching the phrase
+     * @param matches Map of Phrase : avgProbability
+     * @param placeholders Map of Placeholder : Phrase or null
+     */
+    void extractMatches(Result                          details,
+                        HashMap<List<String>, Double>   matches,
+                        HashMap<String, List<String>>   placeholders) {
+
+        for (int i = 0; i < details.size(); i++) {
+            Result.Phrase phrase = details.getEntry(i);
+            int start = phrase.getOffset();
+            int end = start + phrase.getPhrase().size();
+            if (matches != null) {
+                matches.put(raw(start, end), phrase.getAvgProbability());
+            }
+
+            Result.Placeholder placeholder = phrase.getPlaceholder();
+            if (placeholders != null && placeholder != null) {
+                // Placeholder words are taken from the phrase, in order
+                ArrayList<String> words = new ArrayList<>();
+                int w = start;
+                for (String word : placeholder.getPhrase()) {
+                    int k = w;
+                    while (k < end && _words.get(k) != word) {
+                        k++;
+                    }
+                    if (k < end) {
+                        words.addAll(raw(k, k + 1));
+                        w = k + 1;
+                    } else {
+                        words.add(word);
+                    }
+                }
+                placeholders.put(placeholder.getToken(), words);
+            }
+        }
+    }
+
+    /**
+     * @return Copy of the raw tokens words {@code start} to {@code end} of the phrase stand for
+     */
+    private ArrayList<String> raw(int start, int end) {
+
+        if (start >= end) {
+            return new ArrayList<>();
+        }
+        return new ArrayList<>(_raw.subList(_starts[start], _ends[end - 1]));
+    }
+}
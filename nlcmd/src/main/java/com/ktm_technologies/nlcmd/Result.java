@@ -1,9 +1,20 @@
 package com.ktm_technologies.nlcmd;
 
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-
+import java.util.RandomAccess;
+
+/**
+ * Container for match details.
+ *
+ * Entries and placeholders are pooled, such that a Result object can be cleared and
+ * reused for the next query without allocating. Phrases of entries are views of the
+ * query phrase, they are only valid as long as the query phrase isn't modified.
+ */
 @SuppressWarnings("unused")
 class Result {
 
@@ -13,8 +24,7 @@ class Result {
     @SuppressWarnings("SpellCheckingInspection")
     abstract class Match {
 
-        private final int       _offset;
-        private List<String> _matchPhrase = new LinkedList<>();
+        private int _offset;
 
         /**
          * Abstract constructor.
@@ -27,21 +37,14 @@ class Result {
         /**
          * @return Part of phrase that matched
          */
-        List<String> getPhrase() { return _matchPhrase; }
-
-        /**
-         * @param phrase Phrase represented by this match
-         */
-        void setPhrase(List<String> phrase) { _matchPhrase = phrase; }
+        abstract List<String> getPhrase();
 
         /**
          * @return Offset of subPhrase in full query phrase
          */
         int getOffset() { return _offset; }
 
-        void append(String word) {
-            _matchPhrase.add(word);
-        }
+        void setOffset(int offset) { _offset = offset; }
     }
 
     /**
@@ -49,28 +52,39 @@ class Result {
      */
     class Phrase extends Match {
 
-        private final double            _avgProbability;
-        private final Placeholder       _placeholder;
+        private final Span          _span = new Span();
+        private double              _avgProbability;
+        private Placeholder         _placeholder;
 
         /**
          * Create {@link Phrase} object.
-         * @param matchPhrase Part of phrase that matched
-         * @param offset Offset of matchPhrase in full query phrase
+         */
+        Phrase() {
+            super(0);
+        }
+
+        /**
+         * @param phrase Full query phrase
+         * @param start Offset of the matching part in {@code phrase}
+         * @param end End offset of the matching part, exclusive
          * @param avgProbability Averaged probability of edges in matchPhrase
          * @param placeholder Phrase matched by placeholder or null
          */
-        Phrase(List<String>     matchPhrase,
-               int              offset,
-               double           avgProbability,
-               Placeholder      placeholder) {
-
-            super(offset);
-
+        void set(List<String>   phrase,
+                 int            start,
+                 int            end,
+                 double         avgProbability,
+                 Placeholder    placeholder) {
+
+            setOffset(start);
+            _span.set(phrase, start, end);
             _avgProbability = avgProbability;
             _placeholder = placeholder;
-            this.setPhrase(matchPhrase);
         }
 
+        @Override
+        List<String> getPhrase() { return _span; }
+
         /**
          * @return Averaged probability of edges in subPhrase
          */
@@ -89,7 +103,8 @@ class Result {
      */
     class Placeholder extends Match {
 
-        private final String _token;
+        private String                      _token;
+        private final ArrayList<String>     _words = new ArrayList<>();
 
         /**
          * Create {@link Placeholder} object.
@@ -109,9 +124,60 @@ class Result {
         String getToken() {
             return _token;
         }
+
+        @Override
+        List<String> getPhrase() { return _words; }
+
+        void append(String word) {
+            _words.add(word);
+        }
+
+        /**
+         * Start over for reuse.
+         */
+        void set(String token, int offset) {
+
+            _token = token;
+            setOffset(offset);
+            _words.clear();
+        }
+    }
+
+    /**
+     * View of a range of a phrase, which can be moved without allocating.
+     */
+    static class Span extends AbstractList<String> implements RandomAccess {
+
+        private List<String>    _phrase;
+        private int             _start;
+        private int             _end;
+
+        void set(List<String> phrase, int start, int end) {
+
+            _phrase = phrase;
+            _start = start;
+            _end = end;
+        }
+
+        @Override
+        public String get(int index) {
+
+            if (index < 0 || index >= _end - _start) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+            }
+            return _phrase.get(_start + index);
+        }
+
+        @Override
+        public int size() {
+            return _end - _start;
+        }
     }
 
-    private final LinkedList<Phrase>    _entries = new LinkedList<>();
+    private Phrase[]                    _entries = new Phrase[4];
+    private int                         _nEntries = 0;
+    private final ArrayList<Placeholder> _placeholders = new ArrayList<>();
+    private int                         _nPlaceholders = 0;
     private Placeholder                 _tmpPlaceholder = null;
 
     /**
@@ -119,25 +185,87 @@ class Result {
      */
     Result() {}
 
+    /**
+     * Drop all matches, keeping pooled objects for reuse.
+     */
+    void clear() {
+
+        for (int i = 0; i < _nEntries; i++) {
+            _entries[i].set(null, 0, 0, 0.0, null);
+        }
+        _nEntries = 0;
+        _nPlaceholders = 0;
+        _tmpPlaceholder = null;
+    }
+
     /**
      * Add match entry.
-     * @param matchPhrase Part of phrase that matched
-     * @param offset Offset of matchPhrase in full query phrase
+     * @param phrase Full query phrase
+     * @param start Offset of the matching part in {@code phrase}
+     * @param end End offset of the matching part, exclusive
      * @param avgProbability Averaged probability of edges in matchPhrase
      */
-    void append(List<String>    matchPhrase,
-                int             offset,
+    void append(List<String>    phrase,
+                int             start,
+                int             end,
                 double          avgProbability) {
 
-        _entries.add(new Phrase(matchPhrase, offset, avgProbability, _tmpPlaceholder));
+        append(phrase, start, end, avgProbability, _tmpPlaceholder);
         resetPlaceholder();
     }
 
     /**
-     * @return List of match entries
+     * Add match entry with a placeholder that has been captured separately.
+     * @param phrase Full query phrase
+     * @param start Offset of the matching part in {@code phrase}
+     * @param end End offset of the matching part, exclusive
+     * @param avgProbability Averaged probability of edges in matchPhrase
+     * @param placeholder Phrase matched by placeholder or null
+     */
+    void append(List<String>    phrase,
+                int             start,
+                int             end,
+                double          avgProbability,
+                Placeholder     placeholder) {
+
+        if (_nEntries == _entries.length) {
+            _entries = Arrays.copyOf(_entries, _nEntries * 2);
+        }
+        if (_entries[_nEntries] == null) {
+            _entries[_nEntries] = new Phrase();
+        }
+        _entries[_nEntries++].set(phrase, start, end, avgProbability, placeholder);
+    }
+
+    /**
+     * @return Number of match entries
+     */
+    int size() {
+        return _nEntries;
+    }
+
+    /**
+     * @param index Entry index
+     * @return Match entry
+     */
+    Phrase getEntry(int index) {
+
+        if (index >= _nEntries) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + _nEntries);
+        }
+        return _entries[index];
+    }
+
+    /**
+     * @return Copy of list of match entries
      */
     LinkedList<Phrase> getEntries() {
-        return _entries;
+
+        LinkedList<Phrase> entries = new LinkedList<>();
+        for (int i = 0; i < _nEntries; i++) {
+            entries.add(_entries[i]);
+        }
+        return entries;
     }
 
     /**
@@ -148,7 +276,11 @@ class Result {
     void createPlaceholder(String   token,
                            int      offset) {
 
-        _tmpPlaceholder = new Placeholder(token, offset);
+        if (_nPlaceholders == _placeholders.size()) {
+            _placeholders.add(new Placeholder(token, offset));
+        }
+        _tmpPlaceholder = _placeholders.get(_nPlaceholders++);
+        _tmpPlaceholder.set(token, offset);
     }
 
     /**
@@ -157,7 +289,7 @@ class Result {
     @SuppressWarnings("unused")
     List<String> getPhrase() {
 
-        return _entries.getFirst().getPhrase();
+        return getEntry(0).getPhrase();
     }
 
     /**
@@ -166,7 +298,7 @@ class Result {
      */
     Placeholder getPlaceholder() {
 
-        return _entries.getFirst().getPlaceholder();
+        return getEntry(0).getPlaceholder();
     }
 
     /**
@@ -178,6 +310,36 @@ class Result {
         _tmpPlaceholder.append(word);
     }
 
+    /**
+     * @return Placeholder accumulated for the sub-phrase currently being matched, or null
+     */
+    Placeholder getPendingPlaceholder() {
+
+        return _tmpPlaceholder;
+    }
+
+    /**
+     * @param placeholder Placeholder to continue accumulating, or null
+     */
+    void setPendingPlaceholder(Placeholder placeholder) {
+
+        _tmpPlaceholder = placeholder;
+    }
+
+    /**
+     * @return Copy of the placeholder accumulated so far, which isn't affected by further
+     *         matching, or null
+     */
+    Placeholder copyPendingPlaceholder() {
+
+        if (_tmpPlaceholder == null) {
+            return null;
+        }
+        Placeholder placeholder = new Placeholder(_tmpPlaceholder.getToken(), _tmpPlaceholder.getOffset());
+        placeholder.getPhrase().addAll(_tmpPlaceholder.getPhrase());
+        return placeholder;
+    }
+
     /**
      * Reset currently accumulated placeholder after failed match.
      */
@@ -187,20 +349,22 @@ class Result {
     }
 
     /**
-     * Extract match details into hashmaps.
+     * Extract match details into hashmaps, as copies that stay valid after the result
+     * has been cleared.
      * @param matches Map of Phrase : avgProbability
      * @param placeholders Map of Placeholder : Phrase or null
      */
     void extractMatches(HashMap<List<String>, Double>   matches,
                         HashMap<String, List<String>>   placeholders) {
 
-        for (Phrase phrase : _entries) {
+        for (int i = 0; i < _nEntries; i++) {
+            Phrase phrase = _entries[i];
             if (matches != null) {
-                matches.put(phrase.getPhrase(), phrase.getAvgProbability());
+                matches.put(new ArrayList<>(phrase.getPhrase()), phrase.getAvgProbability());
             }
             Placeholder placeholder = phrase.getPlaceholder();
             if (placeholders != null && placeholder != null) {
-                placeholders.put(placeholder.getToken(), placeholder.getPhrase());
+                placeholders.put(placeholder.getToken(), new ArrayList<>(placeholder.getPhrase()));
             }
         }
     }
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2019 Robert Staudinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ktm_technologies.nlcmd;
+
+/**
+ * Strategy for finding matching sub-phrases when scanning a phrase.
+ */
+public enum ScanMode {
+
+    /**
+     * Sub-phrases are matched from left to right, each match is extended as far as
+     * possible and the scan continues after it.
+     */
+    GREEDY,
+
+    /**
+     * The set of non-overlapping sub-phrases with the highest total probability over
+     * the entire phrase is selected, using dynamic programming.
+     */
+    OPTIMAL,
+
+    /**
+     * Like {@link ScanMode#OPTIMAL}, but matches may skip input words and chain words, at a
+     * penalty. Only the best matches are kept per input word, see {@link BeamSettings}.
+     */
+    BEAM
+}
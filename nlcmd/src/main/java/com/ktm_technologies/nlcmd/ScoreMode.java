@@ -18,9 +18,11 @@ package com.ktm_technologies.nlcmd;
 
 /**
  * Markov chain scoring mode used for calculating the best matching action.
- * TODO Detailed doc
+ *
+ * The modes are the built-in {@link Scorer} strategies. They are implemented by this single
+ * class, so a call site that only sees built-in modes stays monomorphic.
  */
-public enum ScoreMode {
+public enum ScoreMode implements Scorer {
 
     /**
      * The sub-phrase with the highest average probability is selected, regardless of
@@ -35,8 +37,24 @@ public enum ScoreMode {
     LONGEST_AVG_REL,
 
     /**
-     * Respect input phrase morphology.
-     * TODO
+     * Like {@link ScoreMode#LONGEST_AVG_REL}, but inflected forms of a word are reduced to
+     * a common stem for training and matching, such that e.g. "starte" matches "starten".
+     * Stemming rules are available for German and English, other languages are matched
+     * as they are.
      */
-    LONGEST_AVG_REL_MOR
+    LONGEST_AVG_REL_MOR;
+
+    @Override
+    public double rank(int nEdges, double sumProbabilities) {
+
+        return this == HIGHEST_AVG ? sumProbabilities / nEdges : nEdges;
+    }
+
+    @Override
+    public double score(int nEdges, double sumProbabilities, int phraseLength) {
+
+        // Average probability, scaled to the relative length of the sub-phrase
+        double avg = sumProbabilities / nEdges;
+        return this == HIGHEST_AVG ? avg : avg * nEdges / phraseLength;
+    }
 }
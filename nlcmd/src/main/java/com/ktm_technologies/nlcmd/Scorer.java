@@ -0,0 +1,46 @@
+/*
+ * Copyright 2019 Robert Staudinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ktm_technologies.nlcmd;
+
+/**
+ * Strategy for scoring how well a phrase matches a command, see {@link CommandSet#setScorer}.
+ *
+ * Matching a chain yields sub-phrases, each being a run of consecutive edges. The sub-phrase
+ * with the highest rank is selected, the first one among equally ranked ones, and its score
+ * is compared to those of other commands. Both only get the totals of a sub-phrase, such that
+ * matching doesn't need to keep per edge state. Scores should not decrease with more edges
+ * or a higher sum of probabilities.
+ *
+ * The built-in strategies are the {@link ScoreMode} constants.
+ */
+public interface Scorer {
+
+    /**
+     * @param nEdges Number of edges of the sub-phrase, at least 1
+     * @param sumProbabilities Sum of edge probabilities
+     * @return Rank for selecting a single sub-phrase per chain
+     */
+    double rank(int nEdges, double sumProbabilities);
+
+    /**
+     * @param nEdges Number of edges of the selected sub-phrase, at least 1
+     * @param sumProbabilities Sum of edge probabilities
+     * @param phraseLength Number of words of the input phrase
+     * @return Score of the command, 0 or less doesn't match
+     */
+    double score(int nEdges, double sumProbabilities, int phraseLength);
+}
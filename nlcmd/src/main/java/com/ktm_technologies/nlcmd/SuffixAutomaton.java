@@ -0,0 +1,260 @@
+/*
+ * Copyright 2019 Robert Staudinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ktm_technologies.nlcmd;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Generalized suffix automaton over phrases of token IDs.
+ *
+ * Every contiguous run of tokens from any of the added phrases corresponds to a state,
+ * which is reached by following the run's tokens from the initial state. Phrases are
+ * added incrementally, in time linear in their length, and looking up a run takes
+ * time linear in the run's length regardless of the number of phrases.
+ *
+ * Transitions are kept in a single open addressing table keyed by state and token,
+ * with a linked list of transitions per state for copying them.
+ */
+class SuffixAutomaton {
+
+    // States
+    private int[]       _len = new int[16];
+    private int[]       _link = new int[16];
+    // Index of the first phrase containing the runs of a state
+    private int[]       _first = new int[16];
+    // First transition of state, or -1
+    private int[]       _head = new int[16];
+    private int         _nStates = 0;
+
+    // Transitions
+    private int[]       _owner = new int[16];
+    private int[]       _token = new int[16];
+    private int[]       _target = new int[16];
+    private int[]       _nextTransition = new int[16];
+    private int         _nTransitions = 0;
+    // Transition index + 1 per slot, 0 if empty
+    private int[]       _table = new int[32];
+
+    // Phrases
+    private int[]       _lengths = new int[8];
+    private int         _size = 0;
+
+    /**
+     * Create empty SuffixAutomaton object.
+     */
+    SuffixAutomaton() {
+
+        createState(0, -1, -1);
+    }
+
+    /**
+     * @return Number of phrases
+     */
+    int size() {
+        return _size;
+    }
+
+    /**
+     * Add phrase, it gets the next phrase index.
+     * @param tokens Token buffer
+     * @param offset Offset of phrase in {@code tokens}
+     * @param length Number of tokens in phrase
+     */
+    void add(int[]  tokens,
+             int    offset,
+             int    length) {
+
+        if (_size == _lengths.length) {
+            _lengths = Arrays.copyOf(_lengths, _size * 2);
+        }
+        int index = _size++;
+        _lengths[index] = length;
+
+        int last = 0;
+        for (int i = offset; i < offset + length; i++) {
+            last = extend(last, tokens[i], index);
+        }
+    }
+
+    /**
+     * Find the longest prefix of {@code query} that occurs in any phrase.
+     * @param query Query phrase
+     * @param vocabulary Token IDs of the phrases
+     * @return Length of that prefix relative to the length of the first phrase
+     *         containing it, 0 if there is none
+     */
+    double prefixRatio(List<String> query,
+                       Vocabulary   vocabulary) {
+
+        int state = 0;
+        int length = 0;
+        for (String token : query) {
+            int id = vocabulary.lookup(token);
+            int t = id < 0 ? -1 : find(state, id);
+            if (t < 0) {
+                break;
+            }
+            state = _target[t];
+            length++;
+        }
+
+        if (length == 0) {
+            return 0.0;
+        }
+        return (double) length / _lengths[_first[state]];
+    }
+
+    /**
+     * Append token to a phrase, see "Suffix automaton" by Blumer et al., generalized to
+     * multiple phrases by restarting at the initial state for every phrase.
+     * @param last State of the phrase so far
+     * @param token Next token
+     * @param index Phrase index
+     * @return State of the extended phrase
+     */
+    private int extend(int  last,
+                       int  token,
+                       int  index) {
+
+        // Run already known from an earlier phrase
+        int t = find(last, token);
+        if (t >= 0) {
+            int q = _target[t];
+            return _len[q] == _len[last] + 1 ? q : split(last, q, token);
+        }
+
+        int cur = createState(_len[last] + 1, -1, index);
+        int p = last;
+        while (p >= 0 && find(p, token) < 0) {
+            addTransition(p, token, cur);
+            p = _link[p];
+        }
+
+        if (p < 0) {
+            _link[cur] = 0;
+        } else {
+            int q = _target[find(p, token)];
+            // Split before indexing, it may grow the arrays
+            int link = _len[q] == _len[p] + 1 ? q : split(p, q, token);
+            _link[cur] = link;
+        }
+        return cur;
+    }
+
+    /**
+     * Split off the shorter runs of state {@code q}, which are reached from {@code p}.
+     * @return New state for the shorter runs
+     */
+    private int split(int   p,
+                      int   q,
+                      int   token) {
+
+        int clone = createState(_len[p] + 1, _link[q], _first[q]);
+        for (int t = _head[q]; t >= 0; t = _nextTransition[t]) {
+            addTransition(clone, _token[t], _target[t]);
+        }
+        while (p >= 0) {
+            int t = find(p, token);
+            if (t < 0 || _target[t] != q) {
+                break;
+            }
+            _target[t] = clone;
+            p = _link[p];
+        }
+        _link[q] = clone;
+        return clone;
+    }
+
+    private int createState(int len,
+                            int link,
+                            int first) {
+
+        int state = _nStates++;
+        if (state == _len.length) {
+            _len = Arrays.copyOf(_len, state * 2);
+            _link = Arrays.copyOf(_link, state * 2);
+            _first = Arrays.copyOf(_first, state * 2);
+            _head = Arrays.copyOf(_head, state * 2);
+        }
+        _len[state] = len;
+        _link[state] = link;
+        _first[state] = first;
+        _head[state] = -1;
+        return state;
+    }
+
+    /**
+     * @return Transition index or -1
+     */
+    private int find(int state, int token) {
+
+        int mask = _table.length - 1;
+        for (int slot = hash(state, token) & mask; _table[slot] != 0; slot = (slot + 1) & mask) {
+            int t = _table[slot] - 1;
+            if (_token[t] == token &&
+                _owner[t] == state) {
+                return t;
+            }
+        }
+        return -1;
+    }
+
+    private void addTransition(int state,
+                               int token,
+                               int target) {
+
+        int t = _nTransitions++;
+        if (t == _token.length) {
+            _token = Arrays.copyOf(_token, t * 2);
+            _target = Arrays.copyOf(_target, t * 2);
+            _nextTransition = Arrays.copyOf(_nextTransition, t * 2);
+            _owner = Arrays.copyOf(_owner, t * 2);
+        }
+        _token[t] = token;
+        _target[t] = target;
+        _owner[t] = state;
+        _nextTransition[t] = _head[state];
+        _head[state] = t;
+
+        // Keep load factor below 1/2
+        if (_nTransitions * 2 > _table.length) {
+            _table = new int[_table.length * 2];
+            for (int i = 0; i < _nTransitions; i++) {
+                place(i);
+            }
+        } else {
+            place(t);
+        }
+    }
+
+    private void place(int t) {
+
+        int mask = _table.length - 1;
+        int slot = hash(_owner[t], _token[t]) & mask;
+        while (_table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        _table[slot] = t + 1;
+    }
+
+    private static int hash(int state, int token) {
+
+        int h = state * 0x9E3779B9 + token;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,388 @@
+/*
+ * Copyright 2019 Robert Staudinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ktm_technologies.nlcmd;
+
+import java.text.BreakIterator;
+import java.text.Normalizer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.RandomAccess;
+
+/**
+ * Reusable buffer of tokens, as filled by {@link Tokenizer#tokenize}.
+ *
+ * Holds word offsets into the input text, the words themselves and their
+ * vocabulary IDs. Words are also exposed as a list.
+ */
+class TokenBuffer extends AbstractList<String> implements RandomAccess {
+
+    private int[]       _starts = new int[16];
+    private int[]       _ends = new int[16];
+    private int[]       _ids = new int[16];
+    private String[]    _words = new String[16];
+    private int         _size = 0;
+
+    /**
+     * Empty the buffer, keeping allocated storage.
+     */
+    @Override
+    public void clear() {
+
+        Arrays.fill(_words, 0, _size, null);
+        _size = 0;
+    }
+
+    /**
+     * Append word range.
+     * @param start Start offset of word in input text
+     * @param end End offset of word in input text, exclusive
+     */
+    void addRange(int start, int end) {
+
+        if (_size == _starts.length) {
+            int n = _size * 2;
+            _starts = Arrays.copyOf(_starts, n);
+            _ends = Arrays.copyOf(_ends, n);
+            _ids = Arrays.copyOf(_ids, n);
+            _words = Arrays.copyOf(_words, n);
+        }
+        _starts[_size] = start;
+        _ends[_size] = end;
+        _ids[_size] = -1;
+        _words[_size] = null;
+        _size++;
+    }
+
+    /**
+     * Resolve word at {@code index}.
+     * @param index Word index
+     * @param word Word string
+     * @param id Vocabulary ID or -1 if unknown
+     */
+    void setWord(int index, String word, int id) {
+
+        _words[index] = word;
+        _ids[index] = id;
+    }
+
+    int getStart(int index) {
+        return _starts[index];
+    }
+
+    int getEnd(int index) {
+        return _ends[index];
+    }
+
+    /**
+     * @return Vocabulary IDs, valid up to {@link TokenBuffer#size()}, -1 for unknown words
+     */
+    int[] getIds() {
+        return _ids;
+    }
+
+    @Override
+    public String get(int index) {
+
+        if (index >= _size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + _size);
+        }
+        return _words[index];
+    }
+
+    @Override
+    public int size() {
+        return _size;
+    }
+}
+
+
+/**
+ * Splits phrases into words.
+ *
+ * Word boundaries are found with a {@link BreakIterator}, which is cached per thread and
+ * locale. Plain ASCII text, as typically returned by speech recognition, bypasses the
+ * BreakIterator for a simple scan that produces the same words. Optionally words are
+ * case folded and unicode text is normalized to NFC.
+ */
+class Tokenizer {
+
+    // Lower case mapping for Latin-1 and Latin Extended-A/B
+    private static final char[] FOLD = new char[0x250];
+
+    // ASCII characters that always separate words
+    private static final boolean[] SEPARATOR = new boolean[128];
+
+    static {
+        for (int c = 0; c < FOLD.length; c++) {
+            FOLD[c] = Character.toLowerCase((char) c);
+        }
+        for (char c : " \t\n\r!?()/<>[]{}*+=@".toCharArray()) {
+            SEPARATOR[c] = true;
+        }
+    }
+
+    private static final ThreadLocal<HashMap<Locale, BreakIterator>> ITERATORS =
+        new ThreadLocal<HashMap<Locale, BreakIterator>>() {
+            @Override
+            protected HashMap<Locale, BreakIterator> initialValue() {
+                return new HashMap<>();
+            }
+        };
+
+    private final Locale    _locale;
+    private boolean         _foldCase = false;
+    private boolean         _normalize = false;
+
+    /**
+     * Create Tokenizer object.
+     * @param locale Language settings
+     */
+    Tokenizer(Locale locale) {
+        _locale = locale;
+    }
+
+    /**
+     * @param foldCase Whether to case fold words
+     */
+    void setFoldCase(boolean foldCase) {
+        _foldCase = foldCase;
+    }
+
+    boolean getFoldCase() {
+        return _foldCase;
+    }
+
+    /**
+     * @param normalize Whether to normalize unicode text to NFC
+     */
+    void setNormalize(boolean normalize) {
+        _normalize = normalize;
+    }
+
+    boolean getNormalize() {
+        return _normalize;
+    }
+
+    /**
+     * @return {@code true} if words are modified after splitting
+     */
+    boolean isTransforming() {
+        return _foldCase || _normalize;
+    }
+
+    /**
+     * @param c Input character
+     * @return Case folded character
+     */
+    static char fold(char c) {
+        return c < FOLD.length ? FOLD[c] : Character.toLowerCase(c);
+    }
+
+    /**
+     * Split phrase into words.
+     * @param phrase Input string for splitting up
+     * @return List of words
+     */
+    List<String> words(String phrase) {
+
+        TokenBuffer buffer = new TokenBuffer();
+        tokenize(phrase, null, buffer);
+        return new ArrayList<>(buffer);
+    }
+
+    /**
+     * Split phrase into words and look them up in {@code vocabulary}.
+     *
+     * Known words are taken from the vocabulary without creating substrings,
+     * and their IDs are stored in {@code buffer}.
+     *
+     * @param phrase Input string for splitting up
+     * @param vocabulary Vocabulary for looking up words, may be null
+     * @param buffer Buffer that receives the words, it is cleared first
+     * @throws StringIndexOutOfBoundsException If a placeholder isn't closed
+     */
+    void tokenize(String        phrase,
+                  Vocabulary    vocabulary,
+                  TokenBuffer   buffer) {
+
+        buffer.clear();
+
+        boolean ascii = isAscii(phrase);
+        if (_normalize && !ascii &&
+            !Normalizer.isNormalized(phrase, Normalizer.Form.NFC)) {
+            phrase = Normalizer.normalize(phrase, Normalizer.Form.NFC);
+        }
+
+        if (ascii && isSimple(phrase)) {
+            splitSimple(phrase, buffer);
+        } else {
+            splitWords(phrase, buffer);
+        }
+
+        for (int i = 0; i < buffer.size(); i++) {
+            int start = buffer.getStart(i);
+            int end = buffer.getEnd(i);
+            int key = vocabulary == null ? -1 : vocabulary.find(phrase, start, end, _foldCase);
+            if (key >= 0) {
+                buffer.setWord(i, vocabulary.getKey(key), vocabulary.getId(key));
+            } else {
+                buffer.setWord(i, substring(phrase, start, end), -1);
+            }
+        }
+    }
+
+    /**
+     * Apply case folding and normalization to a single word.
+     * @param word Input word
+     * @return Transformed word
+     */
+    String transform(String word) {
+
+        if (_normalize && !isAscii(word) &&
+            !Normalizer.isNormalized(word, Normalizer.Form.NFC)) {
+            word = Normalizer.normalize(word, Normalizer.Form.NFC);
+        }
+        return _foldCase ? substring(word, 0, word.length()) : word;
+    }
+
+    /**
+     * Split words using a cached BreakIterator.
+     */
+    private void splitWords(String      phrase,
+                            TokenBuffer buffer) {
+
+        HashMap<Locale, BreakIterator> iterators = ITERATORS.get();
+        BreakIterator iter = iterators.get(_locale);
+        if (iter == null) {
+            iter = BreakIterator.getWordInstance(_locale);
+            iterators.put(_locale, iter);
+        }
+
+        iter.setText(phrase);
+        int start = iter.first();
+        int end = iter.next();
+        while (end != BreakIterator.DONE) {
+            if (Character.isLetterOrDigit(phrase.charAt(start)) ||
+                phrase.charAt(start) == Config.START_PH) {
+
+                // Find corresponding end placeholder mark
+                if (phrase.charAt(start) == Config.START_PH) {
+                    end = closePlaceholder(phrase, end);
+                }
+                buffer.addRange(start, end);
+            }
+            start = end;
+            end = iter.following(end);
+        }
+    }
+
+    /**
+     * Split words of ASCII text, see {@link Tokenizer#isSimple}.
+     */
+    private void splitSimple(String         phrase,
+                             TokenBuffer    buffer) {
+
+        int i = 0;
+        int n = phrase.length();
+        while (i < n) {
+            char c = phrase.charAt(i);
+            if (isAlnum(c)) {
+                int start = i;
+                while (i < n && isAlnum(phrase.charAt(i))) {
+                    i++;
+                }
+                buffer.addRange(start, i);
+            } else if (c == Config.START_PH) {
+                int start = i;
+                i = closePlaceholder(phrase, i + 1);
+                buffer.addRange(start, i);
+            } else {
+                i++;
+            }
+        }
+    }
+
+    /**
+     * @param phrase Input text
+     * @param offset Offset after the start placeholder mark
+     * @return Offset after the corresponding end placeholder mark
+     */
+    private static int closePlaceholder(String phrase, int offset) {
+
+        int end = phrase.indexOf(Config.END_PH, offset);
+        if (end < 0) {
+            throw new StringIndexOutOfBoundsException("Failed to find closing placeholder mark in :" + phrase);
+        }
+        return end + 1;
+    }
+
+    /**
+     * Whether the simple scan finds the same words as a BreakIterator. This holds for
+     * ASCII letters and digits separated by white space and punctuation that never joins
+     * words. Dots and commas are accepted where they end a word.
+     */
+    private static boolean isSimple(String phrase) {
+
+        int n = phrase.length();
+        for (int i = 0; i < n; i++) {
+            char c = phrase.charAt(i);
+            if (isAlnum(c) || SEPARATOR[c]) {
+                continue;
+            }
+            if ((c == '.' || c == ',') &&
+                (i + 1 == n || phrase.charAt(i + 1) == ' ')) {
+                continue;
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean isAscii(String text) {
+
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 128) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isAlnum(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+    }
+
+    /**
+     * Substring, case folded if enabled.
+     */
+    private String substring(String text, int start, int end) {
+
+        if (!_foldCase) {
+            return text.substring(start, end);
+        }
+
+        char[] chars = new char[end - start];
+        for (int i = start; i < end; i++) {
+            chars[i - start] = fold(text.charAt(i));
+        }
+        return new String(chars);
+    }
+}
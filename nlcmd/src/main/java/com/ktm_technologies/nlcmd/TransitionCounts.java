@@ -0,0 +1,159 @@
+/*
+ * Copyright 2019 Robert Staudinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ktm_technologies.nlcmd;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Transition counts of a batch of training phrases, such that batches can be counted on
+ * separate threads and merged afterwards.
+ *
+ * Nodes and transitions are kept in order of first occurrence. Merging partial tables in
+ * batch order and training a chain from the result gives the same chain as training the
+ * phrases one after another, see {@link MarkovChain#train(List, double[], TransitionCounts)}.
+ */
+class TransitionCounts {
+
+    /**
+     * Number of occurrences of a transition.
+     */
+    static class Count {
+
+        double value;
+
+        Count(double value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * Node label with its outgoing transitions.
+     */
+    static class Entry {
+
+        final Label                         label;
+        final LinkedHashMap<Label, Count>   transitions = new LinkedHashMap<>();
+
+        Entry(Label label) {
+            this.label = label;
+        }
+    }
+
+    private final int                           _order;
+    private final LinkedHashMap<Label, Entry>   _entries = new LinkedHashMap<>();
+    // For looking up windows
+    private final Label                         _window;
+
+    /**
+     * Create empty TransitionCounts object.
+     * @param order Markov chain order, that is the window size
+     */
+    TransitionCounts(int order) {
+
+        _order = order;
+        _window = new Label(new String[order]);
+    }
+
+    /**
+     * Count transitions of training phrase.
+     * @param phrase Training phrase, phrases not longer than the order are ignored
+     */
+    void add(List<String> phrase) {
+
+        add(phrase, 1.0);
+    }
+
+    /**
+     * Count transitions of aggregated occurrences of a training phrase.
+     * @param phrase Training phrase, phrases not longer than the order are ignored
+     * @param weight Number of occurrences
+     */
+    void add(List<String>   phrase,
+             double         weight) {
+
+        if (phrase.size() <= _order) {
+            return;
+        }
+
+        Entry from = intern(phrase, 0);
+        for (int i = 1; i + _order <= phrase.size(); i++) {
+            Entry to = intern(phrase, i);
+            Count count = from.transitions.get(to.label);
+            if (count == null) {
+                from.transitions.put(to.label, new Count(weight));
+            } else {
+                count.value += weight;
+            }
+            from = to;
+        }
+    }
+
+    /**
+     * Add counts of a later batch.
+     * @param other Counts of phrases that come after the ones counted here
+     */
+    void merge(TransitionCounts other) {
+
+        for (Entry entry : other._entries.values()) {
+            Entry mine = _entries.get(entry.label);
+            if (mine == null) {
+                mine = new Entry(entry.label);
+                _entries.put(entry.label, mine);
+            }
+            for (Map.Entry<Label, Count> transition : entry.transitions.entrySet()) {
+                Count count = mine.transitions.get(transition.getKey());
+                if (count == null) {
+                    mine.transitions.put(transition.getKey(), new Count(transition.getValue().value));
+                } else {
+                    count.value += transition.getValue().value;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Nodes in order of first occurrence
+     */
+    Collection<Entry> getEntries() {
+        return _entries.values();
+    }
+
+    /**
+     * @return Window size
+     */
+    int getOrder() {
+        return _order;
+    }
+
+    /**
+     * Look up entry for window, creating it if not seen yet.
+     */
+    private Entry intern(List<String> phrase, int offset) {
+
+        _window.set(phrase, offset);
+        Entry entry = _entries.get(_window);
+        if (entry == null) {
+            String[] fragments = phrase.subList(offset, offset + _order).toArray(new String[_order]);
+            entry = new Entry(new Label(fragments));
+            _entries.put(entry.label, entry);
+        }
+        return entry;
+    }
+}
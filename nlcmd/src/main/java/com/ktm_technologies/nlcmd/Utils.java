@@ -16,10 +16,6 @@
 
 package com.ktm_technologies.nlcmd;
 
-import android.os.CpuUsageInfo;
-
-import java.text.BreakIterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 
@@ -37,38 +33,11 @@ class Utils {
      * Split string into words.
      * @param phrase Input string for splitting up
      * @param locale Language settings
-     * @return Linked list of words
+     * @return List of words
+     * @see Tokenizer
      */
     static List<String> words(String phrase, Locale locale) {
 
-        BreakIterator iter = BreakIterator.getWordInstance(locale);
-        iter.setText(phrase);
-        List<String> l = new LinkedList<>();
-        int start = iter.first();
-        int end = iter.next();
-        while (end != BreakIterator.DONE) {
-            if (Character.isLetterOrDigit(phrase.charAt(start)) ||
-                phrase.charAt(start) == Config.START_PH) {
-
-                // Find corresponding end placeholder mark
-                if (phrase.charAt(start) == Config.START_PH) {
-                    while (phrase.charAt(end) != Config.END_PH &&
-                           end < phrase.length()) {
-                        end++;
-                    }
-                    if (end >= phrase.length()) {
-                        throw new StringIndexOutOfBoundsException("Failed to find closing placeholder mark in :" + phrase);
-                    }
-                    end++;
-                }
-
-                String word = phrase.substring(start, end);
-                l.add(word);
-            }
-            start = end;
-            end = iter.following(end);
-        }
-
-        return l;
+        return new Tokenizer(locale).words(phrase);
     }
 }
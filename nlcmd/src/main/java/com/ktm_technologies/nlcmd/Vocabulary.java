@@ -0,0 +1,413 @@
+/*
+ * Copyright 2019 Robert Staudinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ktm_technologies.nlcmd;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Locale;
+import java.util.RandomAccess;
+
+/**
+ * Maps tokens to numeric IDs.
+ *
+ * Members of an equivalence class share a single ID, and the first member
+ * of the class is the canonical token for that ID. Tokens are kept in an open
+ * addressing table, such that they can be looked up straight from a range of
+ * the input text without creating substrings.
+ */
+class Vocabulary {
+
+    private String[]                _keys = new String[8];
+    private int[]                   _keyIds = new int[8];
+    private int                     _nKeys = 0;
+    // Key index + 1 per slot, 0 if empty
+    private int[]                   _table = new int[16];
+    private final ArrayList<String> _tokens = new ArrayList<>();
+    private FuzzyResolver           _fuzzy = null;
+    private PhoneticIndex           _phonetic = null;
+    private Morphology              _morphology = null;
+
+    /**
+     * Create empty Vocabulary object.
+     */
+    Vocabulary() {}
+
+    /**
+     * @return Number of distinct IDs
+     */
+    int size() {
+        return _tokens.size();
+    }
+
+    /**
+     * Look up ID for {@code token}, adding it if not known yet. With morphology, inflected
+     * forms map to the ID of their stem.
+     * @param token Input word
+     * @return Token ID
+     */
+    int add(String token) {
+
+        int key = find(token);
+        if (key >= 0) {
+            return _keyIds[key];
+        }
+
+        if (_morphology != null) {
+            String stem = _morphology.stem(token);
+            if (!stem.equals(token)) {
+                int id = add(stem);
+                insert(token, id);
+                return id;
+            }
+        }
+
+        int id = _tokens.size();
+        _tokens.add(token);
+        insert(token, id);
+        return id;
+    }
+
+    /**
+     * @param token Input word
+     * @return Token ID or -1 if unknown
+     */
+    int lookup(String token) {
+
+        int key = find(token);
+        return key < 0 ? -1 : _keyIds[key];
+    }
+
+    /**
+     * @param id Token ID
+     * @return Canonical token for {@code id}
+     */
+    String getToken(int id) {
+        return _tokens.get(id);
+    }
+
+    /**
+     * @param token Input word
+     * @return Canonical token if {@code token} is known, otherwise {@code token} itself
+     */
+    String canonical(String token) {
+
+        int key = find(token);
+        return key < 0 ? token : _tokens.get(_keyIds[key]);
+    }
+
+    /**
+     * Find key for a range of {@code text}.
+     * @param text Input text
+     * @param start Start offset of token
+     * @param end End offset of token, exclusive
+     * @param foldCase Whether to case fold {@code text} while comparing
+     * @return Key index or -1 if unknown
+     */
+    int find(String     text,
+             int        start,
+             int        end,
+             boolean    foldCase) {
+
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + (foldCase ? Tokenizer.fold(text.charAt(i)) : text.charAt(i));
+        }
+
+        int mask = _table.length - 1;
+        for (int slot = mix(h) & mask; _table[slot] != 0; slot = (slot + 1) & mask) {
+            String key = _keys[_table[slot] - 1];
+            if (key.length() != end - start) {
+                continue;
+            }
+            int i;
+            for (i = 0; i < key.length(); i++) {
+                char c = text.charAt(start + i);
+                if (key.charAt(i) != (foldCase ? Tokenizer.fold(c) : c)) {
+                    break;
+                }
+            }
+            if (i == key.length()) {
+                return _table[slot] - 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param key Key index, see {@link Vocabulary#find}
+     * @return Token as stored in the vocabulary
+     */
+    String getKey(int key) {
+        return _keys[key];
+    }
+
+    /**
+     * @param key Key index, see {@link Vocabulary#find}
+     * @return Token ID
+     */
+    int getId(int key) {
+        return _keyIds[key];
+    }
+
+    /**
+     * Declare equivalence class, all members will map to the ID of the first one.
+     * @param tokens Class members, the first one being the canonical token
+     * @throws IllegalArgumentException If a member already maps to a different ID
+     */
+    void addEquivalence(String[] tokens) {
+
+        if (tokens.length == 0) {
+            return;
+        }
+
+        int id = add(tokens[0]);
+        for (int i = 1; i < tokens.length; i++) {
+            int other = lookup(tokens[i]);
+            if (other >= 0 && other != id) {
+                throw new IllegalArgumentException("Token already in other equivalence class: " + tokens[i]);
+            }
+            if (other < 0) {
+                insert(tokens[i], id);
+                // Other forms of the member are found by its stem
+                if (_morphology != null) {
+                    String stem = _morphology.stem(tokens[i]);
+                    if (lookup(stem) < 0) {
+                        insert(stem, id);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Map training phrase to canonical tokens in place, adding unknown ones to the vocabulary.
+     * @param phrase Training phrase
+     */
+    void train(List<String> phrase) {
+
+        ListIterator<String> iter = phrase.listIterator();
+        while (iter.hasNext()) {
+            iter.set(getToken(add(iter.next())));
+        }
+    }
+
+    /**
+     * @return Maximum edit distance for resolving unknown query tokens, 0 if disabled
+     */
+    int getFuzzyDistance() {
+        return _fuzzy == null ? 0 : _fuzzy.getMaxDistance();
+    }
+
+    /**
+     * Resolve unknown query tokens to known ones within an edit distance, see {@link FuzzyResolver}.
+     * @param maxDistance Maximum number of edits, 0 to disable
+     * @throws IllegalArgumentException If maxDistance < 0
+     */
+    void setFuzzyDistance(int maxDistance) throws IllegalArgumentException {
+
+        if (maxDistance < 0) {
+            throw new IllegalArgumentException("Edit distance can not be < 0");
+        }
+        if (maxDistance == 0) {
+            _fuzzy = null;
+            return;
+        }
+
+        _fuzzy = new FuzzyResolver(maxDistance);
+        for (int k = 0; k < _nKeys; k++) {
+            _fuzzy.add(_keys[k], _tokens.get(_keyIds[k]));
+        }
+    }
+
+    /**
+     * @return {@code true} if unknown query tokens are resolved to known ones that sound alike
+     */
+    boolean isPhonetic() {
+        return _phonetic != null;
+    }
+
+    /**
+     * Resolve unknown query tokens to known ones that sound alike, see {@link PhoneticIndex}.
+     * @param locale Language of the tokens, null to disable
+     */
+    void setPhonetic(Locale locale) {
+
+        if (locale == null) {
+            _phonetic = null;
+            return;
+        }
+
+        _phonetic = new PhoneticIndex(locale);
+        for (int k = 0; k < _nKeys; k++) {
+            _phonetic.add(_keys[k], _tokens.get(_keyIds[k]));
+        }
+    }
+
+    /**
+     * Reduce inflected forms to their stem, see {@link Morphology}. Must be set before
+     * tokens are added.
+     * @param morphology Stemmer for the language of the tokens, null to disable
+     */
+    void setMorphology(Morphology morphology) {
+        _morphology = morphology;
+    }
+
+    /**
+     * Map known tokens of a query phrase to their canonical token in place, unknown tokens
+     * are passed through.
+     * @param phrase Query phrase
+     */
+    void canonicalize(List<String> phrase) {
+
+        if (!(phrase instanceof RandomAccess)) {
+            ListIterator<String> iter = phrase.listIterator();
+            while (iter.hasNext()) {
+                iter.set(canonical(iter.next()));
+            }
+            return;
+        }
+
+        for (int i = 0; i < phrase.size(); i++) {
+            int key = find(phrase.get(i));
+            if (key >= 0) {
+                phrase.set(i, _tokens.get(_keyIds[key]));
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if unknown query tokens may be resolved by stem, phonetically or fuzzily
+     */
+    boolean isResolving() {
+        return _morphology != null || _phonetic != null || _fuzzy != null;
+    }
+
+    /**
+     * Two unknown tokens may sound like a known one when joined, such as a compound word
+     * split up by speech recognition.
+     * @param first Query word
+     * @param second Following query word
+     * @return Known token that sounds like both words joined, or null
+     */
+    String resolveJoined(String first, String second) {
+
+        if (_phonetic == null || find(first) >= 0 || find(second) >= 0) {
+            return null;
+        }
+        return _phonetic.resolve(first + second);
+    }
+
+    /**
+     * @param token Query word
+     * @return Canonical token, or known token with the same stem, that sounds alike or
+     *         is close if unknown and resolution is enabled, otherwise {@code token} itself
+     */
+    String resolve(String token) {
+
+        int key = find(token);
+        if (key >= 0) {
+            return _tokens.get(_keyIds[key]);
+        }
+        return resolveUnknown(token);
+    }
+
+    /**
+     * @param token Unknown query word
+     * @return Known token with the same stem, that sounds alike or is close, otherwise
+     *         {@code token} itself
+     */
+    String resolveUnknown(String token) {
+
+        if (_morphology != null) {
+            int key = find(_morphology.stem(token));
+            if (key >= 0) {
+                return _tokens.get(_keyIds[key]);
+            }
+        }
+        if (_phonetic != null) {
+            String resolved = _phonetic.resolve(token);
+            if (resolved != null) {
+                return resolved;
+            }
+        }
+        return _fuzzy == null ? token : _fuzzy.resolve(token);
+    }
+
+    /**
+     * @param token Input word
+     * @return Key index or -1 if unknown
+     */
+    private int find(String token) {
+
+        return find(token, 0, token.length(), false);
+    }
+
+    /**
+     * Add key to table.
+     * @param token Input word
+     * @param id Token ID
+     */
+    private void insert(String token, int id) {
+
+        if (_nKeys == _keys.length) {
+            _keys = Arrays.copyOf(_keys, _nKeys * 2);
+            _keyIds = Arrays.copyOf(_keyIds, _nKeys * 2);
+        }
+        _keys[_nKeys] = token;
+        _keyIds[_nKeys] = id;
+        _nKeys++;
+        if (_fuzzy != null) {
+            _fuzzy.add(token, _tokens.get(id));
+        }
+        if (_phonetic != null) {
+            _phonetic.add(token, _tokens.get(id));
+        }
+
+        // Keep load factor below 1/2
+        if (_nKeys * 2 > _table.length) {
+            _table = new int[_table.length * 2];
+            for (int k = 0; k < _nKeys; k++) {
+                place(k);
+            }
+        } else {
+            place(_nKeys - 1);
+        }
+    }
+
+    /**
+     * Put key into first free slot.
+     * @param key Key index
+     */
+    private void place(int key) {
+
+        int mask = _table.length - 1;
+        int slot = mix(_keys[key].hashCode()) & mask;
+        while (_table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        _table[slot] = key + 1;
+    }
+
+    /**
+     * Spread hash bits for power of two table sizes.
+     */
+    private static int mix(int h) {
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2019 Robert Staudinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ktm_technologies.nlcmd;
+
+import com.sun.management.ThreadMXBean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Steady state matching must not allocate, as measured by the JVM's per thread counters.
+ *
+ * Only holds for scanning in {@link ScanMode#GREEDY} mode, the default. Scanning in
+ * {@link ScanMode#OPTIMAL} and {@link ScanMode#BEAM} mode allocates its tables per query.
+ */
+public class AllocationTest {
+
+    private final static int _ORDER = 2;
+    private final static int _WARMUP = 10000;
+    private final static int _ITERATIONS = 1000;
+    private final static int _ROUNDS = 5;
+
+    private final static String[] _COMMANDS = {
+        "set destination <location>",
+        "go to <location>",
+        "navigate to <location>",
+        "load route to <location>"
+    };
+
+    private ThreadMXBean    _bean;
+    private int             _level;
+
+    @Before
+    public void setUp() {
+
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof ThreadMXBean);
+        _bean = (ThreadMXBean) bean;
+        assumeTrue(_bean.isThreadAllocatedMemorySupported());
+        _bean.setThreadAllocatedMemoryEnabled(true);
+
+        // Logging formats strings
+        _level = Nlcmd.getLevel();
+        Nlcmd.setLevel(Nlcmd.LEVEL_INFO);
+    }
+
+    @After
+    public void tearDown() {
+
+        Nlcmd.setLevel(_level);
+    }
+
+    @Test
+    public void match_highestAvg() {
+
+        CommandSet cs = createCommandSet(ScoreMode.HIGHEST_AVG);
+        assertEquals(0, measure(query(cs, "load route to")));
+    }
+
+    @Test
+    public void match_longestAvgRel() {
+
+        CommandSet cs = createCommandSet(ScoreMode.LONGEST_AVG_REL);
+        assertEquals(0, measure(query(cs, "load route to")));
+    }
+
+    @Test
+    public void match_placeholder() {
+
+        CommandSet cs = createCommandSet(ScoreMode.LONGEST_AVG_REL);
+        assertEquals(0, measure(query(cs, Arrays.asList("navigate", "to", "St.", "Georgen"))));
+    }
+
+    @Test
+    public void match_rules() {
+
+        CommandSet cs = new CommandSet(_ORDER, ScoreMode.LONGEST_AVG_REL, Locale.ENGLISH);
+        cs.addStopwords("please");
+        cs.addRewrite("drive", "load route");
+        cs.put("destination", _COMMANDS);
+        assertEquals(0, measure(query(cs, "please drive to")));
+    }
+
+    private CommandSet createCommandSet(ScoreMode scoreMode) {
+
+        CommandSet cs = new CommandSet(_ORDER, scoreMode, Locale.ENGLISH);
+        cs.put("destination", _COMMANDS);
+        cs.put("stop", new String[] { "stop navigation", "cancel route" });
+        return cs;
+    }
+
+    /**
+     * Matching and scanning of a phrase, to be measured.
+     */
+    private interface Query {
+
+        Object match();
+
+        Object scan();
+    }
+
+    private static Query query(final CommandSet cs, final String phrase) {
+
+        return new Query() {
+            @Override
+            public Object match() { return cs.match(phrase); }
+
+            @Override
+            public Object scan() { return cs.scan(phrase, null, null); }
+        };
+    }
+
+    private static Query query(final CommandSet cs, final List<String> phrase) {
+
+        return new Query() {
+            @Override
+            public Object match() { return cs.match(phrase); }
+
+            @Override
+            public Object scan() { return cs.scan(phrase, null, null); }
+        };
+    }
+
+    /**
+     * @return Least bytes allocated by a round of matching and scanning after warm up
+     */
+    private long measure(Query query) {
+
+        for (int i = 0; i < _WARMUP; i++) {
+            assertEquals("destination", query.match());
+            assertEquals("destination", query.scan());
+        }
+
+        // The JVM itself may allocate on this thread occasionally, e.g. when deoptimizing
+        long id = Thread.currentThread().getId();
+        long min = Long.MAX_VALUE;
+        for (int round = 0; round < _ROUNDS && min > 0; round++) {
+            long before = _bean.getThreadAllocatedBytes(id);
+            for (int i = 0; i < _ITERATIONS; i++) {
+                query.match();
+                query.scan();
+            }
+            min = Math.min(min, _bean.getThreadAllocatedBytes(id) - before);
+        }
+        return min;
+    }
+}
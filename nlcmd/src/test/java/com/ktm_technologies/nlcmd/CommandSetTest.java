@@ -18,14 +18,30 @@ package com.ktm_technologies.nlcmd;
 
 import org.junit.Test;
 
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Example local unit test, which will execute on the development machine (host).
@@ -136,6 +152,543 @@ public class CommandSetTest {
         assertEquals("longMatch", key);
     }
 
+    @Test
+    public void command_equivalence() {
+
+        CommandSet cs = new CommandSet(1, ScoreMode.HIGHEST_AVG, Locale.getDefault());
+        cs.addEquivalence("der", "die", "das");
+        cs.addEquivalence("menu", "Menü");
+        cs.put("dashboard", new String[]{ "öffne das Dashboard Menü" });
+        cs.put("navigation", new String[]{ "starte die Navigation" });
+
+        String key = (String)cs.match(Arrays.asList("öffne die Dashboard menu".split(" ")));
+        assertEquals("dashboard", key);
+
+        key = (String)cs.match(Arrays.asList("starte der Navigation".split(" ")));
+        assertEquals("navigation", key);
+
+        // Chains are trained with canonical tokens only
+        List<String> phrase = Arrays.asList("öffne der Dashboard menu".split(" "));
+        assertEquals(1.0, cs.get("dashboard").match(phrase), 0.0001);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void command_equivalenceAfterPut() {
+
+        CommandSet cs = new CommandSet(1, ScoreMode.HIGHEST_AVG, Locale.getDefault());
+        cs.put("navigation", new String[]{ "starte die Navigation" });
+        cs.addEquivalence("der", "die", "das");
+    }
+
+    @Test
+    public void command_preprocess() {
+
+        CommandSet cs = new CommandSet(1, ScoreMode.HIGHEST_AVG, Locale.getDefault());
+        cs.addStopwords("und", "ähm", "bitte");
+        cs.addRewrite("Menü", "menu");
+        cs.put("dashboard", new String[]{ "öffne das Dashboard Menü und zeige die Motorkontrollleuchte" });
+        cs.put("navigation", new String[]{ "starte bitte die Navigation" });
+
+        List<String> phrase = Arrays.asList("öffne das ähm Dashboard menu zeige die Motorkontrollleuchte".split(" "));
+        assertEquals("dashboard", cs.match(phrase));
+
+        phrase = Arrays.asList("starte die Navigation".split(" "));
+        assertEquals("navigation", cs.match(phrase));
+    }
+
+    @Test
+    public void command_caseFolding() {
+
+        CommandSet cs = new CommandSet(1, ScoreMode.HIGHEST_AVG, Locale.getDefault());
+        cs.setCaseFolding(true);
+        cs.setNormalization(true);
+        cs.addEquivalence("Menü", "Menu");
+        cs.put("dashboard", new String[]{ "öffne das Dashboard Menü" });
+        cs.put("navigation", new String[]{ "starte die Navigation" });
+
+        assertEquals("dashboard", cs.match("Öffne das dashboard menu"));
+        assertEquals("dashboard", cs.match("öffne das Dashboard Menu\u0308"));
+        assertEquals("navigation", cs.match(Arrays.asList("Starte", "die", "NAVIGATION")));
+    }
+
+    @Test
+    public void command_scanOptimal() {
+
+        CommandSet cs = new CommandSet(1, ScoreMode.LONGEST_AVG_REL, Locale.getDefault());
+        cs.put("long", new String[]{ "a b c d e f g h" });
+        cs.put("short", new String[]{ "h x" });
+
+        // Greedy scanning of "long" gives up after "h"
+        List<String> phrase = Arrays.asList("h x c d e f".split(" "));
+        assertEquals("short", cs.scan(phrase, null, null));
+
+        cs.setScanMode(ScanMode.OPTIMAL);
+        HashMap<List<String>, Double> matches = new HashMap<>();
+        assertEquals("long", cs.scan(phrase, matches, null));
+        assertEquals(1, matches.size());
+        assertEquals(1.0, matches.get(Arrays.asList("c", "d", "e", "f")), 0.0001);
+    }
+
+    @Test
+    public void command_scanBeam() {
+
+        CommandSet cs = new CommandSet(1, ScoreMode.LONGEST_AVG_REL, Locale.getDefault());
+        cs.put("gas", new String[]{ "navigate to the next gas station" });
+        cs.put("home", new String[]{ "navigate home" });
+        cs.setScanMode(ScanMode.BEAM);
+
+        List<String> phrase = Arrays.asList("navigate to uh the next gas station".split(" "));
+        HashMap<List<String>, Double> matches = new HashMap<>();
+        assertEquals("gas", cs.scan(phrase, matches, null));
+        assertEquals(0.9, matches.get(phrase), 0.0001);
+    }
+
+    @Test
+    public void command_putParallel() throws Exception {
+
+        String[] words = { "set", "go", "navigate", "route", "to", "via", "the", "<location>" };
+        Random random = new Random(42);
+        String[] commands = new String[2000];
+        for (int i = 0; i < commands.length; i++) {
+            StringBuilder sb = new StringBuilder();
+            int n = 1 + random.nextInt(6);
+            for (int j = 0; j < n; j++) {
+                sb.append(words[random.nextInt(words.length)]).append(" ");
+            }
+            commands[i] = sb.toString();
+        }
+
+        CommandSet sequential = new CommandSet(_ORDER, ScoreMode.HIGHEST_AVG, Locale.getDefault());
+        sequential.setTrainingThreads(1);
+        sequential.addStopwords("the");
+        sequential.put("destination", commands);
+
+        CommandSet parallel = new CommandSet(_ORDER, ScoreMode.HIGHEST_AVG, Locale.getDefault());
+        parallel.setTrainingThreads(4);
+        parallel.addStopwords("the");
+        parallel.put("destination", commands);
+
+        // Same nodes and edges, in the same order
+        assertEquals(dump(sequential.get("destination")), dump(parallel.get("destination")));
+        assertEquals(sequential.get("destination").matchingFaktor(Arrays.asList("go", "to", "set")),
+                     parallel.get("destination").matchingFaktor(Arrays.asList("go", "to", "set")), 0.0);
+    }
+
+    @Test
+    public void command_putFrequencies() throws Exception {
+
+        String[] words = { "set", "go", "navigate", "route", "to", "via", "<location>" };
+        Random random = new Random(42);
+        LinkedHashMap<String, Integer> frequencies = new LinkedHashMap<>();
+        ArrayList<String> repeated = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            StringBuilder sb = new StringBuilder();
+            int n = 1 + random.nextInt(5);
+            for (int j = 0; j < n; j++) {
+                sb.append(words[random.nextInt(words.length)]).append(" ");
+            }
+            String command = sb.toString();
+            int count = 1 + random.nextInt(3);
+            Integer previous = frequencies.get(command);
+            frequencies.put(command, previous == null ? count : previous + count);
+            for (int j = 0; j < count; j++) {
+                repeated.add(command);
+            }
+        }
+
+        CommandSet expected = new CommandSet(_ORDER, ScoreMode.HIGHEST_AVG, Locale.getDefault());
+        expected.setTrainingThreads(1);
+        expected.put("destination", repeated.toArray(new String[repeated.size()]));
+
+        CommandSet sequential = new CommandSet(_ORDER, ScoreMode.HIGHEST_AVG, Locale.getDefault());
+        sequential.setTrainingThreads(1);
+        sequential.put("destination", frequencies);
+
+        CommandSet parallel = new CommandSet(_ORDER, ScoreMode.HIGHEST_AVG, Locale.getDefault());
+        parallel.setTrainingThreads(2);
+        parallel.put("destination", frequencies);
+
+        List<String> phrase = Arrays.asList("go", "to", "set");
+        assertEquals(dump(sequential.get("destination")), dump(parallel.get("destination")));
+        assertEquals(expected.get("destination").match(phrase),
+                     sequential.get("destination").match(phrase), 0.0001);
+        assertEquals(expected.get("destination").matchingFaktor(phrase),
+                     sequential.get("destination").matchingFaktor(phrase), 0.0001);
+    }
+
+    @Test
+    public void command_fuzzy() {
+
+        CommandSet cs = new CommandSet(_ORDER, ScoreMode.LONGEST_AVG_REL, Locale.getDefault());
+        cs.put("destination", new String[] { "start navigation to <location>" });
+        cs.put("dashboard", new String[] { "open the dashboard menu" });
+        assertNull(cs.match("start navigaton to Linz"));
+
+        cs.setFuzzyDistance(1);
+        assertEquals(1, cs.getFuzzyDistance());
+        assertEquals("destination", cs.match("start navigaton to Linz"));
+        assertEquals("dashboard", cs.match(Arrays.asList("open", "the", "dashbord", "menu")));
+
+        // Words learnt later are resolved to as well
+        cs.put("stop", new String[] { "cancel the guidance" });
+        assertEquals("stop", cs.match("cancel the guidanse"));
+
+        cs.setFuzzyDistance(0);
+        assertNull(cs.match("start navigaton to Linz"));
+    }
+
+    @Test
+    public void command_fuzzyPlaceholder() {
+
+        CommandSet cs = new CommandSet(_ORDER, ScoreMode.LONGEST_AVG_REL, Locale.getDefault());
+        cs.put("navigate", new String[] { "navigate to <city> now" });
+        cs.put("window", new String[] { "open the window" });
+        double score = cs.match("navigate to londin now", (Deadline) null).getScore();
+
+        // Unknown words are only resolved where that matches, placeholders get the raw word
+        cs.setFuzzyDistance(2);
+        HashMap<List<String>, Double> matches = new HashMap<>();
+        HashMap<String, List<String>> placeholders = new HashMap<>();
+        assertEquals("navigate", cs.scan("navigate to windaw now", matches, placeholders));
+        assertEquals(Collections.singletonList("windaw"), placeholders.get("<city>"));
+        assertTrue(matches.containsKey(Arrays.asList("navigate", "to", "windaw", "now")));
+        assertEquals(score, cs.match("navigate to londin now", (Deadline) null).getScore(), 1e-9);
+
+        // Match keys have the raw words too
+        assertEquals("window", cs.scan("open the windaw", matches, placeholders));
+        assertTrue(matches.containsKey(Arrays.asList("open", "the", "windaw")));
+    }
+
+    @Test
+    public void command_phonetic() {
+
+        CommandSet cs = new CommandSet(_ORDER, ScoreMode.LONGEST_AVG_REL, Locale.GERMAN);
+        cs.put("warning", new String[] { "zeige die Motorkontrollleuchte an" });
+        cs.put("dashboard", new String[] { "starte das Dashboard Menu" });
+        assertNull(cs.match("zeige die Motorkontrolleuchte an"));
+
+        cs.setPhoneticMatching(true);
+        assertTrue(cs.isPhoneticMatching());
+        assertEquals("warning", cs.match("zeige die Motorkontrolleuchte an"));
+        // Split up compound word
+        assertEquals("warning", cs.match("zeige die Motor Kontrollleuchte an"));
+        assertEquals("dashboard", cs.match("starte das Daschbord Menu"));
+
+        cs.setPhoneticMatching(false);
+        assertNull(cs.match("zeige die Motor Kontrollleuchte an"));
+    }
+
+    @Test
+    public void command_morphology() {
+
+        CommandSet cs = new CommandSet(_ORDER, ScoreMode.LONGEST_AVG_REL_MOR, Locale.GERMAN);
+        cs.put("navigation", new String[] { "starte die Navigation" });
+        cs.put("map", new String[] { "zeige die Karte" });
+        assertEquals("navigation", cs.match("starten die Navigation"));
+        assertEquals("map", cs.match("zeigt die Karten"));
+
+        cs = new CommandSet(_ORDER, ScoreMode.LONGEST_AVG_REL_MOR, Locale.ENGLISH);
+        cs.addEquivalence("show", "display");
+        cs.put("routes", new String[] { "show the routes" });
+        assertEquals("routes", cs.match("showing the route"));
+        assertEquals("routes", cs.match("displayed the route"));
+
+        cs = new CommandSet(_ORDER, ScoreMode.LONGEST_AVG_REL, Locale.GERMAN);
+        cs.put("navigation", new String[] { "starte die Navigation" });
+        assertNull(cs.match("starten die Navigation"));
+    }
+
+    @Test
+    public void command_scorer() {
+
+        CommandSet cs = new CommandSet(_ORDER, ScoreMode.LONGEST_AVG_REL, Locale.ENGLISH);
+        cs.put("destination", new String[] { "set route to home" });
+        cs.put("stop", new String[] { "stop the navigation" });
+        assertSame(ScoreMode.LONGEST_AVG_REL, cs.getScorer());
+        String phrase = "set route to home and stop the navigation";
+        assertEquals("destination", cs.scan(phrase, null, null));
+
+        // Short commands win
+        cs.setScorer(new Scorer() {
+            @Override
+            public double rank(int nEdges, double sumProbabilities) {
+                return nEdges;
+            }
+
+            @Override
+            public double score(int nEdges, double sumProbabilities, int phraseLength) {
+                return sumProbabilities / nEdges / nEdges;
+            }
+        });
+        assertEquals("stop", cs.scan(phrase, null, null));
+        assertEquals("stop", cs.createSession(1.0).update(phrase));
+
+        cs.setScorer(null);
+        assertSame(ScoreMode.LONGEST_AVG_REL, cs.getScorer());
+        assertEquals("destination", cs.scan(phrase, null, null));
+    }
+
+    @Test
+    public void command_deadline() {
+
+        CommandSet cs = new CommandSet(_ORDER, ScoreMode.LONGEST_AVG_REL, Locale.ENGLISH);
+        for (int i = 0; i < 50; i++) {
+            cs.put("command" + i, new String[] { "run command number " + i });
+        }
+        cs.put("destination", new String[] { "set route to home" });
+
+        MatchResult result = cs.match("set route to home", new Deadline(1, TimeUnit.MINUTES));
+        assertEquals("destination", result.getKey());
+        assertEquals(cs.match("set route to home"), result.getKey());
+        assertEquals(0.5, result.getScore(), 0.0001);
+        assertTrue(result.isComplete());
+
+        HashMap<List<String>, Double> matches = new HashMap<>();
+        result = cs.scan("please run command number 7", new Deadline(), matches, null);
+        assertEquals("command7", result.getKey());
+        assertTrue(result.isComplete());
+        assertEquals(1, matches.size());
+
+        // Expired before the first command
+        Deadline deadline = new Deadline();
+        deadline.cancel();
+        result = cs.match("set route to home", deadline);
+        assertNull(result.getKey());
+        assertFalse(result.isComplete());
+        result = cs.scan("set route to home", new Deadline(0, TimeUnit.SECONDS), null, null);
+        assertNull(result.getKey());
+        assertFalse(result.isComplete());
+    }
+
+    @Test
+    public void command_deadlineOrdering() {
+
+        // Counts label lookups for ordering, cancels the deadline after 10
+        final int[] counted = { 0 };
+        final Deadline deadline = new Deadline();
+        CommandSet cs = new CommandSet(_ORDER, ScoreMode.HIGHEST_AVG, Locale.ENGLISH);
+        for (int i = 0; i < 1000; i++) {
+            MarkovChain mc = new MarkovChain(_ORDER) {
+                @Override
+                int countLabels(int[] hashes) {
+                    if (++counted[0] == 10) {
+                        deadline.cancel();
+                    }
+                    return super.countLabels(hashes);
+                }
+            };
+            mc.train(Arrays.asList(("run command number " + i).split(" ")));
+            cs.put("command" + i, mc);
+        }
+
+        // Nothing is ordered with an expired deadline
+        Deadline expired = new Deadline();
+        expired.cancel();
+        MatchResult result = cs.match("run command number 7", expired);
+        assertNull(result.getKey());
+        assertFalse(result.isComplete());
+        assertEquals(0, counted[0]);
+
+        // Ordering stops when the deadline expires
+        result = cs.match("run command number 7", deadline);
+        assertNull(result.getKey());
+        assertFalse(result.isComplete());
+        assertEquals(10, counted[0]);
+    }
+
+    @Test
+    public void command_memoryBudget() throws Exception {
+
+        CommandSet cs = new CommandSet(_ORDER, ScoreMode.HIGHEST_AVG, Locale.ENGLISH);
+        for (int i = 0; i < 20; i++) {
+            cs.put("command" + i, new String[] { "run command number " + i });
+        }
+        cs.put("destination", new String[] { "set route to <location>" });
+        String[] queries = { "run command number 7", "set route to Linz", "run command number 12", "stop" };
+        Object[] expected = new Object[queries.length];
+        for (int i = 0; i < queries.length; i++) {
+            expected[i] = cs.match(queries[i]);
+        }
+        long size = cs.estimateSize();
+
+        // Everything is paged out after each query
+        File dir = Files.createTempDirectory("nlcmd").toFile();
+        cs.setMemoryBudget(1, dir);
+        for (int i = 0; i < queries.length; i++) {
+            assertEquals(expected[i], cs.match(queries[i]));
+            for (MarkovChain mc : cs.values()) {
+                assertTrue(mc.isPagedOut());
+            }
+        }
+        assertTrue(cs.estimateSize() < size);
+        assertEquals(21, dir.list().length);
+        String[] names = dir.list();
+
+        // Only chains with a window of the phrase are paged in
+        cs.setMemoryBudget(size, dir);
+        HashMap<String, List<String>> placeholders = new HashMap<>();
+        assertEquals("destination", cs.scan("set route to Paris", null, placeholders));
+        assertEquals(Arrays.asList("Paris"), placeholders.get("<location>"));
+        assertFalse(cs.get("destination").isPagedOut());
+        assertTrue(cs.get("command3").isPagedOut());
+        assertEquals(20, dir.list().length);
+
+        // Commands reuse their page file
+        cs.setMemoryBudget(1, dir);
+        assertEquals("destination", cs.match("set route to Paris"));
+        assertEquals(new HashSet<>(Arrays.asList(names)), new HashSet<>(Arrays.asList(dir.list())));
+    }
+
+    @Test
+    public void command_memoryBudgetThreads() throws Exception {
+
+        final CommandSet cs = new CommandSet(_ORDER, ScoreMode.HIGHEST_AVG, Locale.ENGLISH);
+        for (int i = 0; i < 20; i++) {
+            cs.put("command" + i, new String[] { "run command number " + i });
+        }
+        cs.setMemoryBudget(1, Files.createTempDirectory("nlcmd").toFile());
+
+        // Chains are not paged out while other threads score them
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int offset = t;
+            results.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    for (int i = 0; i < 200; i++) {
+                        int n = (i + offset) % 20;
+                        if (!("command" + n).equals(cs.match("run command number " + n))) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+            }));
+        }
+        for (Future<Boolean> result : results) {
+            assertTrue(result.get());
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    public void command_hotOrder() {
+
+        CommandSet fresh = createUsageSet();
+        CommandSet cs = createUsageSet();
+        for (int i = 0; i < 200; i++) {
+            assertEquals("halt", cs.match("halt the car now"));
+        }
+        assertEquals("halt", cs.getVisitOrder().get(0));
+
+        // Same results as without usage, ties go to the same command
+        String[] queries = { "stop the navigation now", "halt the car now", "run command number 7", "stop", "go" };
+        for (String query : queries) {
+            assertEquals(fresh.match(query), cs.match(query));
+            assertEquals(fresh.scan(query, null, null), cs.scan(query, null, null));
+        }
+
+        // Usage is kept when commands are added
+        cs.put("another", new String[] { "another command" });
+        assertEquals("halt", cs.match("halt the car now"));
+        assertEquals("halt", cs.getVisitOrder().get(0));
+    }
+
+    @Test
+    public void command_hotOrderThreads() throws Exception {
+
+        final CommandSet cs = createUsageSet();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            results.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    for (int i = 0; i < 500; i++) {
+                        if (!"halt".equals(cs.match("halt the car now"))) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+            }));
+        }
+        for (Future<Boolean> result : results) {
+            assertTrue(result.get());
+        }
+        executor.shutdown();
+
+        // Every command is visited once
+        assertEquals("halt", cs.getVisitOrder().get(0));
+        assertEquals(cs.keySet(), new HashSet<>(cs.getVisitOrder()));
+        assertEquals(cs.size(), cs.getVisitOrder().size());
+    }
+
+    private static CommandSet createUsageSet() {
+
+        CommandSet cs = new CommandSet(_ORDER, ScoreMode.LONGEST_AVG_REL, Locale.ENGLISH);
+        for (int i = 0; i < 20; i++) {
+            cs.put("command" + i, new String[] { "run command number " + i });
+        }
+        cs.put("stop", new String[] { "stop the navigation now" });
+        cs.put("halt", new String[] { "stop the navigation now", "halt the car now" });
+        return cs;
+    }
+
+    @Test
+    public void command_untrain() {
+
+        CommandSet cs = new CommandSet(_ORDER, ScoreMode.HIGHEST_AVG, Locale.getDefault());
+        cs.addEquivalence("route", "way");
+        cs.put("destination", new String[] { "set route to <location>", "go to <location>" });
+        cs.put("stop", new String[] { "cancel route" });
+        assertEquals("destination", cs.match("go to Linz"));
+
+        assertTrue(cs.untrain("destination", "go to <location>"));
+        assertNull(cs.match("go to Linz"));
+        assertEquals("destination", cs.match("set way to Linz"));
+        assertFalse(cs.untrain("destination", "go to <location>"));
+        assertFalse(cs.untrain("unknown", "cancel route"));
+
+        // Similar phrases are not removed
+        cs.put("call", new String[] { "call my mother" });
+        cs.setFuzzyDistance(1);
+        assertFalse(cs.untrain("call", "call my mothr"));
+        assertEquals("call", cs.match("call my mother"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void command_trainingThreads() {
+
+        CommandSet cs = new CommandSet(_ORDER, ScoreMode.HIGHEST_AVG, Locale.getDefault());
+        cs.setTrainingThreads(0);
+    }
+
+    private static String dump(MarkovChain mc) throws Exception {
+
+        final StringBuilder sb = new StringBuilder();
+        mc.traverse(new Stream() {
+            @Override
+            public void startModel(int window) {}
+            @Override
+            public void endModel() {}
+            @Override
+            public void startGraph(String[] labelFragments) {
+                sb.append(Arrays.toString(labelFragments));
+            }
+            @Override
+            public void endGraph() {
+                sb.append("\n");
+            }
+            @Override
+            public void addEdge(double probability, double count, String[] labelFragments) {
+                sb.append(" -> ").append(Arrays.toString(labelFragments)).append(" ").append(probability);
+            }
+        });
+        return sb.toString();
+    }
+
     private static MarkovChain createDestinationChainW2() {
         MarkovChain mc = new MarkovChain(_ORDER);
         List<List<String>> phrases = new LinkedList<>();
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2019 Robert Staudinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ktm_technologies.nlcmd;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class FuzzyResolverTest {
+
+    @Test
+    public void fuzzy_distance() {
+
+        assertEquals(0, FuzzyResolver.distance("route", "route"));
+        assertEquals(1, FuzzyResolver.distance("navigaton", "navigation"));
+        assertEquals(2, FuzzyResolver.distance("dashbaord", "dashboard"));
+        assertEquals(5, FuzzyResolver.distance("", "route"));
+    }
+
+    @Test
+    public void fuzzy_resolve() {
+
+        FuzzyResolver resolver = new FuzzyResolver(2);
+        resolver.add("navigation", "navigation");
+        resolver.add("dashboard", "dashboard");
+        resolver.add("armaturenbrett", "dashboard");
+        resolver.add("<location>", "<location>");
+
+        assertEquals("navigation", resolver.resolve("navigaton"));
+        assertEquals("dashboard", resolver.resolve("dashbaord"));
+        // Equivalent tokens resolve to the canonical one
+        assertEquals("dashboard", resolver.resolve("armaturenbret"));
+        // Too far off
+        assertEquals("navigate", resolver.resolve("navigate"));
+        // Placeholders are never resolved to
+        assertEquals("location", resolver.resolve("location"));
+        // Cached
+        assertEquals("navigation", resolver.resolve("navigaton"));
+    }
+
+    @Test
+    public void fuzzy_shortTokens() {
+
+        FuzzyResolver resolver = new FuzzyResolver(2);
+        resolver.add("to", "to");
+        resolver.add("via", "via");
+        resolver.add("stop", "stop");
+
+        assertEquals("go", resolver.resolve("go"));
+        assertEquals("via", resolver.resolve("vla"));
+        // Four characters only allow a single edit
+        assertEquals("stop", resolver.resolve("stap"));
+        assertEquals("spot", resolver.resolve("spot"));
+    }
+
+    @Test
+    public void fuzzy_firstWins() {
+
+        FuzzyResolver resolver = new FuzzyResolver(1);
+        resolver.add("route", "route");
+        resolver.add("router", "router");
+        resolver.add("rout", "rout");
+
+        assertEquals("route", resolver.resolve("routx"));
+        // The cache is started over when tokens are added
+        resolver.add("routx", "routx");
+        assertEquals("routx", resolver.resolve("routx"));
+    }
+
+    @Test
+    public void fuzzy_matchesBruteForce() {
+
+        Random random = new Random(42);
+        List<String> words = new ArrayList<>();
+        FuzzyResolver resolver = new FuzzyResolver(2);
+        for (int i = 0; i < 500; i++) {
+            String word = randomWord(random);
+            words.add(word);
+            resolver.add(word, word);
+        }
+
+        for (int i = 0; i < 500; i++) {
+            String query = randomWord(random);
+            int maxDistance = Math.min(2, query.length() / 3);
+            String expected = query;
+            int best = maxDistance + 1;
+            for (String word : words) {
+                int d = FuzzyResolver.distance(query, word);
+                if (d < best) {
+                    best = d;
+                    expected = word;
+                }
+            }
+            assertEquals(query, expected, resolver.resolve(query));
+        }
+    }
+
+    private static String randomWord(Random random) {
+
+        StringBuilder sb = new StringBuilder();
+        int n = 3 + random.nextInt(6);
+        for (int i = 0; i < n; i++) {
+            sb.append((char) ('a' + random.nextInt(4)));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2019 Robert Staudinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ktm_technologies.nlcmd;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+
+public class GrammarTest {
+
+    private final static int _ORDER = 2;
+
+    @Test
+    public void grammar_expansion() throws Exception {
+
+        CommandSet expanded = createCommandSet();
+        expanded.put("dashboard", new String[] {
+            "open the dashboard",
+            "open the dashboard menu",
+            "start the dashboard",
+            "start the dashboard menu"
+        });
+
+        CommandSet compiled = createCommandSet();
+        compiled.putGrammar("dashboard", "(open | start) the dashboard [menu]");
+
+        assertCounts(expanded.get("dashboard"), compiled.get("dashboard"));
+        assertEquals("dashboard", compiled.match("start the dashboard menu"));
+    }
+
+    @Test
+    public void grammar_rules() throws Exception {
+
+        CommandSet expanded = createCommandSet();
+        expanded.put("route", new String[] {
+            "go to <location>",
+            "go to <location> now",
+            "go via <location>",
+            "go via <location> now",
+            "go to <location>",
+            "go to <location> now",
+            "go <location>",
+            "go <location> now",
+            "set route to <location>",
+            "set route to <location> now",
+            "set route via <location>",
+            "set route via <location> now",
+            "set route to <location>",
+            "set route to <location> now",
+            "set route <location>",
+            "set route <location> now"
+        });
+
+        CommandSet compiled = createCommandSet();
+        compiled.addRule("via", "to | via");
+        compiled.addRule("target", "$via <location>");
+        compiled.putGrammar("route", "(go | set route) ($target | [to] <location>) [now]");
+
+        assertCounts(expanded.get("route"), compiled.get("route"));
+        assertEquals(expanded.get("route").match(Arrays.asList("set", "route", "via", "<location>")),
+                     compiled.get("route").match(Arrays.asList("set", "route", "via", "<location>")), 0.0001);
+    }
+
+    @Test
+    public void grammar_preprocessing() throws Exception {
+
+        CommandSet expanded = createCommandSet();
+        expanded.addStopwords("please");
+        expanded.put("stop", new String[] { "Stop the navigation", "please cancel the navigation" });
+
+        CommandSet compiled = createCommandSet();
+        compiled.addStopwords("please");
+        compiled.putGrammar("stop", "[please] (Stop | please cancel) the navigation");
+
+        // The empty please option gives an extra path for each alternative
+        Map<String, Double> counts = counts(compiled.get("stop"));
+        assertEquals(2.0, counts.get("Stop the > the navigation"), 0.0);
+        assertEquals(2.0, counts.get("cancel the > the navigation"), 0.0);
+        assertEquals(expanded.get("stop").match(Arrays.asList("cancel", "the", "navigation")),
+                     compiled.get("stop").match(Arrays.asList("cancel", "the", "navigation")), 0.0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void grammar_unknownRule() {
+
+        createCommandSet().putGrammar("route", "go to $target");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void grammar_recursiveRule() {
+
+        CommandSet cs = createCommandSet();
+        cs.addRule("target", "<location> [and $target]");
+        cs.putGrammar("route", "go to $target");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void grammar_unbalanced() {
+
+        createCommandSet().putGrammar("route", "(go | set route to <location>");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void grammar_invalidRuleName() {
+
+        createCommandSet().addRule("to via", "to | via");
+    }
+
+    private static CommandSet createCommandSet() {
+
+        return new CommandSet(_ORDER, ScoreMode.HIGHEST_AVG, Locale.ENGLISH);
+    }
+
+    private static void assertCounts(MarkovChain expected, MarkovChain actual) throws Exception {
+
+        Map<String, Double> expectedCounts = counts(expected);
+        Map<String, Double> actualCounts = counts(actual);
+        assertEquals(expectedCounts.keySet(), actualCounts.keySet());
+        for (Map.Entry<String, Double> entry : expectedCounts.entrySet()) {
+            assertEquals(entry.getKey(), entry.getValue(), actualCounts.get(entry.getKey()), 0.0001);
+        }
+    }
+
+    /**
+     * @return Map of "from > to" : count
+     */
+    private static Map<String, Double> counts(MarkovChain mc) throws Exception {
+
+        final TreeMap<String, Double> counts = new TreeMap<>();
+        mc.traverse(new Stream() {
+
+            private String _from;
+
+            @Override
+            public void startModel(int window) {}
+
+            @Override
+            public void endModel() {}
+
+            @Override
+            public void startGraph(String[] labelFragments) {
+                _from = join(labelFragments);
+            }
+
+            @Override
+            public void endGraph() {}
+
+            @Override
+            public void addEdge(double probability, double count, String[] labelFragments) {
+                counts.put(_from + " > " + join(labelFragments), count);
+            }
+        });
+        return counts;
+    }
+
+    private static String join(String[] fragments) {
+
+        StringBuilder sb = new StringBuilder();
+        for (String fragment : fragments) {
+            if (sb.length() > 0) {
+                sb.append(" ");
+            }
+            sb.append(fragment);
+        }
+        return sb.toString();
+    }
+}
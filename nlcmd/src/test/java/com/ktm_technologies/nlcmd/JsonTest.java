@@ -69,4 +69,26 @@ public class JsonTest {
         double result2 = mc2.scan(phrase, match);
         assertEquals(result1, result2, 0.0001);
     }
+
+    @Test
+    public void roundtripJsonCounts() throws Exception {
+
+        List<String> p1 = Arrays.asList("set route to <location>".split(" "));
+        List<String> p2 = Arrays.asList("set route via <location>".split(" "));
+        MarkovChain mc1 = new MarkovChain(2);
+        mc1.train(p1);
+        mc1.train(p2);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        mc1.traverse(new JsonWriter("Route", out));
+        MarkovChain mc2 = JsonReader.read(new ByteArrayInputStream(out.toByteArray()));
+
+        // Counts survive, such that shards can be merged after serialization
+        MarkovChain shard = new MarkovChain(2);
+        shard.train(p1);
+        mc2.merge(shard);
+        mc1.train(p1);
+        assertEquals(mc1.match(p1), mc2.match(p1), 0.0);
+        assertEquals(5.0 / 6, mc2.match(p1), 0.0001);
+    }
 }
\ No newline at end of file
@@ -23,7 +23,6 @@ import java.util.LinkedList;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
 
 public class MarkovChainApiTest {
@@ -96,42 +95,34 @@ public class MarkovChainApiTest {
     }
 
     @Test
-    public void markov_createTestMixin() {
+    public void markov_scorer() {
 
         MarkovChain mc = new MarkovChain(_ORDER);
-        TestMixin mixin = new TestMixin();
-        mc.setMixin(mixin);
-        List<String> train = Arrays.asList("foo", "bar", "baz");
-        mc.train(train);
-
-        List<String> phrase = Arrays.asList("foo", "bar", "baz");
-        double result = mc.match(phrase);
-
-        assertNotEquals(mixin._initId, 0);
-        assertEquals(mixin._initId, mixin._updateId);
-        assertEquals(mixin._updateId, mixin._finishId);
-    }
-
-    class TestMixin extends MarkovChainMixin {
-
-        int _initId;
-        int _updateId;
-        int _finishId;
+        mc.train(Arrays.asList("foo", "bar", "baz"));
+        mc.train(Arrays.asList("qux", "quux"));
+
+        // Shortest sub-phrase wins
+        Scorer shortest = new Scorer() {
+            @Override
+            public double rank(int nEdges, double sumProbabilities) {
+                return -nEdges;
+            }
 
-        @Override
-        int initQuery(List<String> phrase) {
-            _initId = super.initQuery(phrase);
-            return _initId;
-        }
+            @Override
+            public double score(int nEdges, double sumProbabilities, int phraseLength) {
+                return 100.0 * nEdges + phraseLength;
+            }
+        };
 
-        @Override
-        void updateQuery(int id, Node node, Edge edge) {
-            _updateId = id;
+        List<String> phrase = Arrays.asList("foo", "bar", "baz", "x", "qux", "quux");
+        for (ScanMode scanMode : ScanMode.values()) {
+            assertEquals(106.0, mc.scanWith(phrase, null, scanMode, new BeamSettings(), shortest), 0.0001);
+            assertEquals(2.0 / 6, mc.scanWith(phrase, null, scanMode, new BeamSettings(), ScoreMode.LONGEST_AVG_REL), 0.0001);
+            assertEquals(1.0, mc.scanWith(phrase, null, scanMode, new BeamSettings(), ScoreMode.HIGHEST_AVG), 0.0001);
         }
 
-        @Override
-        void finishQuery(int id, boolean success) {
-            _finishId = id;
-        }
+        // First sub-phrase only
+        assertEquals(206.0, mc.match(phrase, shortest), 0.0001);
+        assertEquals(0.0, mc.match(Arrays.asList("x", "y"), shortest), 0.0001);
     }
 }
@@ -19,14 +19,17 @@ package com.ktm_technologies.nlcmd;
 
 import org.junit.Test;
 
+import java.io.File;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
@@ -285,6 +288,462 @@ public class MarkovChainTest {
         }
     }
 
+    @Test
+    public void markov_scanOptimal() {
+
+        MarkovChain mc = new MarkovChain(2);
+        mc.train(Arrays.asList("w x a".split(" ")));
+        mc.train(Arrays.asList("w x y".split(" ")));
+        mc.train(Arrays.asList("a b c d e".split(" ")));
+        List<String> phrase = Arrays.asList("w x a b c d e".split(" "));
+
+        // Greedy scan takes "w x a" first, which breaks up the better match
+        Result details = new Result();
+        mc.scanWith(phrase, details, ScanMode.GREEDY, null, ScoreMode.HIGHEST_AVG);
+        assertEquals(2, details.getEntries().size());
+        assertEquals(0.5, details.getEntries().getFirst().getAvgProbability(), 0.0001);
+
+        details = new Result();
+        mc.setScanMode(ScanMode.OPTIMAL);
+        double result = mc.scan(phrase, details);
+        assertEquals(1.0, result, 0.0001);
+        assertEquals(1, details.getEntries().size());
+        Result.Phrase entry = details.getEntries().getFirst();
+        assertArrayEquals(new String[] {"a", "b", "c", "d", "e"}, entry.getPhrase().toArray());
+        assertEquals(2, entry.getOffset());
+    }
+
+    @Test
+    public void markov_scanOptimalSubPhrases() {
+
+        MarkovChain mc = new MarkovChain(MarkovChainTest._ORDER);
+        mc.setScanMode(ScanMode.OPTIMAL);
+        List<String> model = Arrays.asList("a", "b", "c", "d", "e", "f", "g", "h");
+        List<String> match = Arrays.asList("x", "b", "c", "y", "d", "e", "f", "z");
+        Result details = new Result();
+        mc.train(model);
+        mc.scan(match, details);
+        assertEquals(2, details.getEntries().size());
+        Result.Phrase entry = details.getEntries().getFirst();
+        assertArrayEquals(new String[] {"b", "c"}, entry.getPhrase().toArray());
+        assertEquals(1, entry.getOffset());
+        entry = details.getEntries().getLast();
+        assertArrayEquals(new String[] {"d", "e", "f"}, entry.getPhrase().toArray());
+        assertEquals(4, entry.getOffset());
+    }
+
+    @Test
+    public void markov_scanOptimalDeadEnd() {
+
+        // "h" is a node without matching edges, greedy scanning gives up there
+        MarkovChain mc = new MarkovChain(MarkovChainTest._ORDER);
+        mc.train(Arrays.asList("a", "b", "c", "d", "e", "f", "g", "h"));
+        List<String> phrase = Arrays.asList("h", "x", "c", "d", "e");
+        assertEquals(0.0, mc.scanWith(phrase, null, ScanMode.GREEDY, null, ScoreMode.HIGHEST_AVG), 0.0001);
+        assertEquals(1.0, mc.scanWith(phrase, null, ScanMode.OPTIMAL, null, ScoreMode.HIGHEST_AVG), 0.0001);
+    }
+
+    @Test
+    public void markov_scanOptimalPlaceholder() {
+
+        MarkovChain mc = MarkovChainTest.createPlaceholderMidChainW2();
+        mc.setScanMode(ScanMode.OPTIMAL);
+        List<String> phrase = Arrays.asList("bitte füge wegpunkt in St. Georgen zusätzlich ein".split(" "));
+        Result details = new Result();
+        double result = mc.scan(phrase, details);
+        assertEquals(1.0, result, 0.0001);
+        assertEquals(1, details.getEntries().size());
+        assertEquals(1, details.getEntries().getFirst().getOffset());
+        assertEquals("<location>", details.getPlaceholder().getToken());
+        assertEquals(Arrays.asList("St.", "Georgen"), details.getPlaceholder().getPhrase());
+    }
+
+    @Test
+    public void markov_scanBeamInsertion() {
+
+        MarkovChain mc = new MarkovChain(MarkovChainTest._ORDER);
+        mc.train(Arrays.asList("navigate to the next gas station".split(" ")));
+        List<String> phrase = Arrays.asList("navigate to uh the next gas station".split(" "));
+
+        Result details = new Result();
+        mc.scan(phrase, details);
+        assertEquals(2, details.getEntries().size());
+
+        details = new Result();
+        mc.setScanMode(ScanMode.BEAM);
+        double result = mc.scan(phrase, details);
+        // One skipped input word, deducted from 5 edges
+        assertEquals(0.9, result, 0.0001);
+        assertEquals(1, details.getEntries().size());
+        assertEquals(phrase, details.getEntries().getFirst().getPhrase());
+    }
+
+    @Test
+    public void markov_scanBeamDeletion() {
+
+        MarkovChain mc = new MarkovChain(2);
+        mc.train(Arrays.asList("navigate to the next gas station".split(" ")));
+        mc.setScanMode(ScanMode.BEAM);
+        mc.setBeamSettings(new BeamSettings(4, 0.5, 0.25));
+        List<String> phrase = Arrays.asList("please navigate to next gas station".split(" "));
+
+        Result details = new Result();
+        double result = mc.scan(phrase, details);
+        // One missing chain word, deducted from 3 edges
+        assertEquals(2.75 / 3, result, 0.0001);
+        assertEquals(1, details.getEntries().size());
+        assertEquals(1, details.getEntries().getFirst().getOffset());
+        assertEquals(5, details.getEntries().getFirst().getPhrase().size());
+    }
+
+    @Test
+    public void markov_scanBeamPlaceholder() {
+
+        MarkovChain mc = MarkovChainTest.createPlaceholderMidChainW2();
+        mc.setScanMode(ScanMode.BEAM);
+        List<String> phrase = Arrays.asList("füge wegpunkt in St. Georgen zusätzlich ein".split(" "));
+        Result details = new Result();
+        double result = mc.scan(phrase, details);
+        assertEquals(1.0, result, 0.0001);
+        assertEquals(Arrays.asList("St.", "Georgen"), details.getPlaceholder().getPhrase());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void markov_beamSettings() {
+
+        new BeamSettings(0, 0.5, 0.5);
+    }
+
+    @Test
+    public void markov_matchingFaktor() {
+
+        MarkovChain mc = new MarkovChain(MarkovChainTest._ORDER);
+        mc.train(Arrays.asList("go go go to Linz".split(" ")));
+        mc.train(Arrays.asList("go to <location>".split(" ")));
+        assertEquals(0.8, mc.matchingFaktor(Arrays.asList("go go to Linz".split(" "))), 0.0001);
+        assertEquals(2.0 / 3, mc.matchingFaktor(Arrays.asList("to <location>".split(" "))), 0.0001);
+        assertEquals(0.0, mc.matchingFaktor(Arrays.asList("navigate to".split(" "))), 0.0001);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void markov_retentionNone() {
+
+        MarkovChain mc = new MarkovChain(MarkovChainTest._ORDER, PhraseRetention.NONE);
+        mc.train(Arrays.asList("go to <location>".split(" ")));
+        assertEquals(1.0, mc.match(Arrays.asList("go to Linz".split(" "))), 0.0001);
+        mc.matchingFaktor(Arrays.asList("go to".split(" ")));
+    }
+
+    @Test
+    public void markov_merge() {
+
+        List<String> p1 = Arrays.asList("set route to <location>".split(" "));
+        List<String> p2 = Arrays.asList("set route via <location>".split(" "));
+        List<String> p3 = Arrays.asList("go to <location>".split(" "));
+
+        MarkovChain all = new MarkovChain(MarkovChainTest._ORDER);
+        all.train(p1);
+        all.train(p2);
+        all.train(p1);
+        all.train(p3);
+
+        MarkovChain shard1 = new MarkovChain(MarkovChainTest._ORDER);
+        shard1.train(p1);
+        shard1.train(p2);
+        MarkovChain shard2 = new MarkovChain(MarkovChainTest._ORDER);
+        shard2.train(p1);
+        MarkovChain shard3 = new MarkovChain(MarkovChainTest._ORDER);
+        shard3.train(p3);
+
+        // (1 + 2) + 3
+        MarkovChain left = new MarkovChain(MarkovChainTest._ORDER);
+        left.merge(shard1);
+        left.merge(shard2);
+        left.merge(shard3);
+
+        // 3 + (2 + 1)
+        MarkovChain inner = new MarkovChain(MarkovChainTest._ORDER);
+        inner.merge(shard2);
+        inner.merge(shard1);
+        MarkovChain right = new MarkovChain(MarkovChainTest._ORDER);
+        right.merge(shard3);
+        right.merge(inner);
+
+        for (List<String> phrase : Arrays.asList(p1, p2, p3)) {
+            assertEquals(all.match(phrase), left.match(phrase), 0.0);
+            assertEquals(all.match(phrase), right.match(phrase), 0.0);
+        }
+        assertEquals(8.0 / 9, left.match(p1), 0.0001);
+        assertEquals(1.0, right.matchingFaktor(p3), 0.0001);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void markov_mergeOrder() {
+
+        new MarkovChain(2).merge(new MarkovChain(1));
+    }
+
+    @Test
+    public void markov_trainWeighted() {
+
+        List<String> p1 = Arrays.asList("set route to <location>".split(" "));
+        List<String> p2 = Arrays.asList("set route via <location>".split(" "));
+
+        MarkovChain repeated = new MarkovChain(MarkovChainTest._ORDER);
+        for (int i = 0; i < 3; i++) {
+            repeated.train(p1);
+        }
+        repeated.train(p2);
+
+        LinkedHashMap<List<String>, Integer> frequencies = new LinkedHashMap<>();
+        frequencies.put(p1, 3);
+        frequencies.put(p2, 1);
+        MarkovChain weighted = new MarkovChain(MarkovChainTest._ORDER);
+        weighted.train(frequencies);
+
+        assertEquals(repeated.match(p1), weighted.match(p1), 0.0);
+        assertEquals(repeated.match(p2), weighted.match(p2), 0.0);
+        assertEquals(repeated.matchingFaktor(p2), weighted.matchingFaktor(p2), 0.0);
+
+        // Aggregated occurrences can be untrained one by one
+        assertTrue(weighted.untrain(p1));
+        assertTrue(weighted.untrain(p1));
+        assertTrue(weighted.untrain(p1));
+        assertFalse(weighted.untrain(p1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void markov_trainWeightedInvalid() {
+
+        MarkovChain mc = new MarkovChain(MarkovChainTest._ORDER);
+        mc.train(Arrays.asList("set route".split(" ")), 0.0);
+    }
+
+    @Test
+    public void markov_untrain() {
+
+        List<String> p1 = Arrays.asList("set route to <location>".split(" "));
+        List<String> p2 = Arrays.asList("set route via <location>".split(" "));
+
+        MarkovChain mc = new MarkovChain(MarkovChainTest._ORDER);
+        mc.train(p1);
+        mc.train(p2);
+        mc.train(p1);
+        assertTrue(mc.untrain(p1));
+
+        MarkovChain expected = new MarkovChain(MarkovChainTest._ORDER);
+        expected.train(p1);
+        expected.train(p2);
+        assertEquals(expected.match(p1), mc.match(p1), 0.0);
+        assertEquals(expected.match(p2), mc.match(p2), 0.0);
+
+        // Remaining phrases are still retained
+        assertTrue(mc.untrain(p2));
+        assertEquals(1.0, mc.match(p1), 0.0001);
+        assertEquals(0.0, mc.match(p2), 0.0001);
+        assertEquals(0.5, mc.matchingFaktor(Arrays.asList("set route".split(" "))), 0.0001);
+        assertEquals(0.0, mc.matchingFaktor(Arrays.asList("via", "<location>")), 0.0001);
+
+        // Last phrase leaves an empty chain
+        assertTrue(mc.untrain(p1));
+        assertEquals(0.0, mc.match(p1), 0.0001);
+    }
+
+    @Test
+    public void markov_untrainUnknown() {
+
+        MarkovChain mc = new MarkovChain(MarkovChainTest._ORDER);
+        mc.train(Arrays.asList("go to <location>".split(" ")));
+        assertFalse(mc.untrain(Arrays.asList("go to".split(" "))));
+        assertFalse(mc.untrain(Arrays.asList("go go to <location>".split(" "))));
+        assertFalse(mc.untrain(Arrays.asList("navigate to <location>".split(" "))));
+        assertTrue(mc.untrain(Arrays.asList("go to <location>".split(" "))));
+        assertFalse(mc.untrain(Arrays.asList("go to <location>".split(" "))));
+    }
+
+    @Test
+    public void markov_untrainWeighted() {
+
+        List<String> p1 = Arrays.asList("a b c".split(" "));
+        List<String> p2 = Arrays.asList("a b d".split(" "));
+
+        MarkovChain mc = new MarkovChain(MarkovChainTest._ORDER);
+        mc.train(p1, 0.5);
+        assertFalse(mc.untrain(p1));
+        assertTrue(mc.untrain(p1, 0.5));
+        assertEquals(0.0, mc.match(p1), 0.0001);
+
+        // Fractional remainders can be untrained as well
+        mc.train(p1, 1.5);
+        mc.train(p2);
+        assertTrue(mc.untrain(p1));
+        assertFalse(mc.untrain(p1));
+        MarkovChain expected = new MarkovChain(MarkovChainTest._ORDER);
+        expected.train(p1, 0.5);
+        expected.train(p2);
+        assertEquals(expected.match(p1), mc.match(p1), 0.0001);
+        assertTrue(mc.untrain(p1, 0.5));
+        assertFalse(mc.untrain(p1, 0.5));
+        assertEquals(1.0, mc.match(p2), 0.0001);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void markov_untrainWeight() {
+
+        MarkovChain mc = new MarkovChain(MarkovChainTest._ORDER);
+        mc.untrain(Arrays.asList("a b c".split(" ")), 0.0);
+    }
+
+    @Test
+    public void markov_untrainRetrain() {
+
+        List<String> p1 = Arrays.asList("go to <location>".split(" "));
+
+        MarkovChain mc = new MarkovChain(MarkovChainTest._ORDER);
+        mc.train(p1);
+        assertEquals(1.0, mc.matchingFaktor(p1), 0.0001);
+        assertTrue(mc.untrain(p1));
+        assertEquals(0.0, mc.matchingFaktor(p1), 0.0001);
+
+        // Index has been rebuilt without the phrase, it is added back
+        mc.train(p1);
+        assertEquals(1.0, mc.matchingFaktor(p1), 0.0001);
+    }
+
+    @Test
+    public void markov_decay() {
+
+        List<String> p1 = Arrays.asList("set route to <location>".split(" "));
+        List<String> p2 = Arrays.asList("set route via <location>".split(" "));
+
+        MarkovChain mc = new MarkovChain(MarkovChainTest._ORDER);
+        mc.setHalfLife(1.0);
+        mc.train(p1);
+        mc.advance(1.0);
+        mc.train(p2);
+
+        // Count of "route to" has decayed to 1/2, that of "route via" is 1
+        assertEquals((1.0 + 1.0 / 3 + 1.0) / 3, mc.match(p1), 0.0001);
+        assertEquals((1.0 + 2.0 / 3 + 1.0) / 3, mc.match(p2), 0.0001);
+
+        // Decayed occurrences are untrained with their decayed count
+        assertTrue(mc.untrain(p1));
+        assertEquals(0.0, mc.match(p1), 0.0001);
+        assertEquals(1.0, mc.match(p2), 0.0001);
+        assertFalse(mc.untrain(p1));
+        assertTrue(mc.untrain(p2));
+        assertEquals(0.0, mc.match(p2), 0.0001);
+    }
+
+    @Test
+    public void markov_decayUntrain() {
+
+        List<String> p1 = Arrays.asList("set route to <location>".split(" "));
+        List<String> p2 = Arrays.asList("set route via <location>".split(" "));
+
+        MarkovChain mc = new MarkovChain(MarkovChainTest._ORDER);
+        mc.setHalfLife(10);
+        mc.train(p1);
+        mc.advance(1);
+        assertTrue(mc.untrain(p1));
+        assertEquals(0.0, mc.match(p1), 0.0001);
+        assertFalse(mc.untrain(p1));
+
+        // Shared transitions keep the count of other occurrences
+        mc.train(p1);
+        mc.advance(1);
+        mc.train(p2);
+        mc.train(p2);
+        assertTrue(mc.untrain(p2));
+        MarkovChain expected = new MarkovChain(MarkovChainTest._ORDER);
+        expected.setHalfLife(10);
+        expected.train(p1);
+        expected.advance(1);
+        expected.train(p2);
+        assertEquals(expected.match(p1), mc.match(p1), 0.0001);
+        assertEquals(expected.match(p2), mc.match(p2), 0.0001);
+    }
+
+    @Test
+    public void markov_decayEpochs() {
+
+        List<String> p1 = Arrays.asList("set route to <location>".split(" "));
+        List<String> p2 = Arrays.asList("set route via <location>".split(" "));
+
+        MarkovChain mc = new MarkovChain(MarkovChainTest._ORDER);
+        mc.setHalfLife(1.0);
+        for (int i = 0; i < 10; i++) {
+            mc.train(p2);
+        }
+
+        // Scale exceeds the range of a single epoch, old counts fade away
+        mc.advance(1000.0);
+        mc.train(p1);
+        assertEquals(1.0, mc.match(p1), 0.0001);
+        mc.advance(1.0);
+        mc.train(p2);
+        assertEquals((1.0 + 1.0 / 3 + 1.0) / 3, mc.match(p1), 0.0001);
+
+        // Stopping decay keeps counts as they are
+        mc.setHalfLife(0.0);
+        mc.train(p1);
+        assertEquals((1.0 + 3.0 / 5 + 1.0) / 3, mc.match(p1), 0.0001);
+    }
+
+    @Test
+    public void markov_countLabels() {
+
+        MarkovChain mc = new MarkovChain(_ORDER);
+        mc.train(Arrays.asList("set", "route", "home"));
+        int[] hashes = {
+            new Label(new String[] { "route" }).hashCode(),
+            new Label(new String[] { "home" }).hashCode(),
+            new Label(new String[] { "away" }).hashCode()
+        };
+        assertEquals(2, mc.countLabels(hashes));
+
+        // Rebuilt after training
+        mc.train(Arrays.asList("go", "away"));
+        assertEquals(3, mc.countLabels(hashes));
+    }
+
+    @Test
+    public void markov_pageOut() throws Exception {
+
+        MarkovChain mc = createFoxChainW1();
+        List<String> phrase = Arrays.asList("over", "the", "lazy", "dog");
+        double result = mc.scan(phrase, new Result());
+        long size = mc.estimateSize();
+        assertTrue(size >= 8 * MarkovChain.estimateNodeSize(1) + 8 * MarkovChain.estimateEdgeSize());
+
+        File file = File.createTempFile("nlcmd", ".chain");
+        mc.pageOut(file);
+        assertTrue(mc.isPagedOut());
+        assertTrue(mc.estimateSize() < size);
+        assertTrue(mc.isCandidate(new int[] { new Label(new String[] { "fox" }).hashCode() }));
+        assertFalse(mc.isCandidate(new int[] { new Label(new String[] { "cat" }).hashCode() }));
+
+        // Paged in on use
+        assertEquals(result, mc.scan(phrase, new Result()), 0.0001);
+        assertFalse(mc.isPagedOut());
+        assertFalse(file.exists());
+        assertEquals(size, mc.estimateSize());
+
+        // Trained further as before
+        mc.pageOut(File.createTempFile("nlcmd", ".chain"));
+        mc.train(Arrays.asList("the", "quick", "cat"));
+        MarkovChain resident = createFoxChainW1();
+        resident.train(Arrays.asList("the", "quick", "cat"));
+        assertEquals(resident.match(phrase), mc.match(phrase), 0.0001);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void markov_decayDisabled() {
+
+        MarkovChain mc = new MarkovChain(MarkovChainTest._ORDER);
+        mc.advance(1.0);
+    }
+
     @Test
     public void markov_testLabel() {
 
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2019 Robert Staudinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ktm_technologies.nlcmd;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MatchSessionTest {
+
+    @Test
+    public void session_pushMatchesScan() {
+
+        for (ScoreMode mode : new ScoreMode[]{ ScoreMode.HIGHEST_AVG, ScoreMode.LONGEST_AVG_REL }) {
+
+            CommandSet cs = createNavigation(mode);
+            String[] phrases = {
+                "load route to Munderfing",
+                "please add waypoint in Munderfing now",
+                "skip next waypoint",
+                "please ignore upcoming waypoint",
+            };
+            for (String phrase : phrases) {
+                List<String> words = Arrays.asList(phrase.split(" "));
+                MatchSession session = cs.createSession(1.0);
+                for (String word : words) {
+                    session.push(word);
+                }
+                assertEquals(phrase, cs.scan(words, null, null), session.finish());
+            }
+        }
+    }
+
+    @Test
+    public void session_everyStart() {
+
+        CommandSet cs = new CommandSet(1, ScoreMode.LONGEST_AVG_REL, Locale.getDefault());
+        cs.put("skip", new String[]{ "skip next waypoint", "ignore upcoming waypoint" });
+        cs.put("home", new String[]{ "go to home now" });
+
+        // Greedy scan stops at the first word, which has no edges, the session doesn't
+        List<String> words = Arrays.asList("waypoint skip next waypoint".split(" "));
+        MatchSession session = cs.createSession(1.0);
+        for (String word : words) {
+            session.push(word);
+        }
+        assertNull(cs.scan(words, null, null));
+        assertEquals("skip", session.finish());
+    }
+
+    @Test
+    public void session_confident() {
+
+        CommandSet cs = createNavigation(ScoreMode.HIGHEST_AVG);
+        MatchSession session = cs.createSession(1.0);
+
+        assertNull(session.push("load"));
+        assertFalse(session.isConfident());
+        assertEquals("destination", session.push("route"));
+        assertEquals("destination", session.push("to"));
+        assertTrue(session.isConfident());
+        assertEquals(1.0, session.getScore(), 0.0001);
+    }
+
+    @Test
+    public void session_update() {
+
+        CommandSet cs = createNavigation(ScoreMode.LONGEST_AVG_REL);
+        MatchSession session = cs.createSession(1.0);
+
+        assertNull(session.update("skip"));
+        assertEquals("skip", session.update("skip next"));
+        // Revised partial result
+        assertEquals("destination", session.update("set destination"));
+        assertEquals("destination", session.update("set destination Munderfing"));
+
+        HashMap<List<String>, Double> matches = new HashMap<>();
+        HashMap<String, List<String>> placeholders = new HashMap<>();
+        session.getDetails(matches, placeholders);
+        assertEquals(1, matches.size());
+        assertEquals(Arrays.asList("set", "destination", "Munderfing"), matches.keySet().iterator().next());
+        assertEquals(Arrays.asList("Munderfing"), placeholders.get("<location>"));
+    }
+
+    @Test
+    public void session_rewrite() {
+
+        CommandSet cs = new CommandSet(1, ScoreMode.HIGHEST_AVG, Locale.getDefault());
+        cs.addRewrite("dashboard menu", "menu");
+        cs.addStopwords("bitte");
+        cs.put("menu", new String[]{ "öffne menu" });
+        cs.put("dashboard", new String[]{ "öffne dashboard" });
+
+        MatchSession session = cs.createSession(1.0);
+        session.push("bitte");
+        session.push("öffne");
+        // Held back until the rewrite rule is decided
+        assertNull(session.push("dashboard"));
+        assertEquals("menu", session.push("menu"));
+
+        session.reset();
+        session.push("öffne");
+        session.push("dashboard");
+        assertEquals("dashboard", session.finish());
+    }
+
+    private static CommandSet createNavigation(ScoreMode mode) {
+
+        CommandSet cs = new CommandSet(1, mode, Locale.getDefault());
+        cs.put("destination", new String[]{
+            "set destination <location>",
+            "load route to <location>",
+            "go to <location>",
+        });
+        cs.put("waypoint", new String[]{
+            "add waypoint in <location>",
+            "go via <location>",
+        });
+        cs.put("skip", new String[]{
+            "skip next waypoint",
+            "ignore upcoming waypoint",
+        });
+        return cs;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2019 Robert Staudinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ktm_technologies.nlcmd;
+
+import org.junit.Test;
+
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class MorphologyTest {
+
+    @Test
+    public void morphology_german() {
+
+        Morphology m = Morphology.forLocale(Locale.GERMAN);
+        assertEquals(m.stem("starte"), m.stem("starten"));
+        assertEquals(m.stem("starte"), m.stem("startet"));
+        assertEquals(m.stem("Karte"), m.stem("Karten"));
+        assertEquals("Kart", m.stem("Karten"));
+        // Irregular forms
+        assertEquals(m.stem("fahren"), m.stem("f\u00e4hrt"));
+        assertEquals(m.stem("gehen"), m.stem("ging"));
+        // Short words and placeholders are kept
+        assertEquals("die", m.stem("die"));
+        assertEquals("<location>", m.stem("<location>"));
+    }
+
+    @Test
+    public void morphology_english() {
+
+        Morphology m = Morphology.forLocale(Locale.ENGLISH);
+        assertEquals("rout", m.stem("routes"));
+        assertEquals("rout", m.stem("routing"));
+        assertEquals("stop", m.stem("stopped"));
+        assertEquals("stop", m.stem("stopping"));
+        assertEquals("city", m.stem("cities"));
+        assertEquals("pass", m.stem("passes"));
+        assertEquals("go", m.stem("went"));
+        assertEquals("see", m.stem("saw"));
+        assertEquals("Show", m.stem("Showing"));
+    }
+
+    @Test
+    public void morphology_other() {
+
+        Morphology m = Morphology.forLocale(Locale.ITALIAN);
+        assertEquals("strade", m.stem("strade"));
+        assertSame(m, Morphology.forLocale(Locale.ITALIAN));
+    }
+}
@@ -20,11 +20,20 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import java.text.BreakIterator;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static org.junit.Assert.*;
 import static org.junit.Assert.assertArrayEquals;
@@ -309,4 +318,165 @@ public class NlcmdTest {
         assertTrue(_nlcmd_scanTriple3);
         _nlcmd_scanTriple3 = false;
     }
+
+    @Test
+    public void nlcmd_executor() throws Exception {
+
+        Nlcmd.reset();
+        Nlcmd.setOrder(1);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final CountDownLatch release = new CountDownLatch(1);
+        final ArrayList<Object> finished = new ArrayList<>();
+        final CountDownLatch listened = new CountDownLatch(2);
+        final boolean[] ran = new boolean[2];
+
+        MatchLambda slow = new MatchLambda() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                ran[0] = true;
+            }
+        };
+        Nlcmd.action(new String[] { "a b c" }, slow);
+        Nlcmd.action(new String[] { "x y z" }, new ScanLambda() {
+            @Override
+            public void run(HashMap<List<String>, Double> matches,
+                            HashMap<String, List<String>> placeholders) {
+                ran[1] = true;
+            }
+        });
+
+        Nlcmd.setExecutor(executor);
+        Nlcmd.setListener(new DispatchListener() {
+            @Override
+            public void finished(Object action, Throwable error) {
+                synchronized (finished) {
+                    finished.add(action);
+                }
+                listened.countDown();
+            }
+        });
+        try {
+            // Matching doesn't wait for the slow action
+            Future<?> f1 = Nlcmd.match("a b c");
+            assertFalse(f1.isDone());
+            assertNull(Nlcmd.match("q r s"));
+            Future<?> f2 = Nlcmd.scan("x y z");
+
+            release.countDown();
+            f1.get(5, TimeUnit.SECONDS);
+            f2.get(5, TimeUnit.SECONDS);
+            assertTrue(ran[0]);
+            assertTrue(ran[1]);
+            // Listener runs after waiters have been released
+            assertTrue(listened.await(5, TimeUnit.SECONDS));
+            synchronized (finished) {
+                assertEquals(slow, finished.get(0));
+            }
+        } finally {
+            Nlcmd.setExecutor(null);
+            Nlcmd.setListener(null);
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void nlcmd_timeout() throws Exception {
+
+        Nlcmd.reset();
+        Nlcmd.setOrder(1);
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        final CountDownLatch done = new CountDownLatch(2);
+        final Throwable[] errors = new Throwable[2];
+
+        MatchLambda hanging = new MatchLambda() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(60000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        final MatchLambda failing = new MatchLambda() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("failed");
+            }
+        };
+        Nlcmd.action(new String[] { "a b c" }, hanging, 50);
+        Nlcmd.action(new String[] { "x y z" }, failing);
+
+        Nlcmd.setExecutor(executor);
+        Nlcmd.setTimeout(60000);
+        Nlcmd.setListener(new DispatchListener() {
+            @Override
+            public void finished(Object action, Throwable error) {
+                errors[action == failing ? 1 : 0] = error;
+                done.countDown();
+            }
+        });
+        try {
+            Future<?> f = Nlcmd.match("a b c");
+            Nlcmd.match("x y z");
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertTrue(f.isCancelled());
+            assertTrue(errors[0] instanceof TimeoutException);
+            assertTrue(errors[1] instanceof IllegalStateException);
+        } finally {
+            Nlcmd.setExecutor(null);
+            Nlcmd.setListener(null);
+            Nlcmd.setTimeout(0);
+            executor.shutdownNow();
+        }
+
+        // Without executor, actions run and fail on the calling thread
+        try {
+            Nlcmd.match("x y z");
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("failed", e.getMessage());
+        }
+    }
+
+    @Test
+    public void nlcmd_rejected() throws Exception {
+
+        Nlcmd.reset();
+        Nlcmd.setOrder(1);
+        final CountDownLatch finished = new CountDownLatch(1);
+        Nlcmd.action(new String[] { "a b c" }, new MatchLambda() {
+            @Override
+            public void run() {
+            }
+        }, 50);
+
+        Nlcmd.setExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                throw new RejectedExecutionException("rejected");
+            }
+        });
+        Nlcmd.setListener(new DispatchListener() {
+            @Override
+            public void finished(Object action, Throwable error) {
+                finished.countDown();
+            }
+        });
+        try {
+            Nlcmd.match("a b c");
+            fail();
+        } catch (RejectedExecutionException e) {
+            // The timeout of an action that never ran doesn't fire
+            assertFalse(finished.await(200, TimeUnit.MILLISECONDS));
+        } finally {
+            Nlcmd.setExecutor(null);
+            Nlcmd.setListener(null);
+        }
+    }
 }
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2019 Robert Staudinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ktm_technologies.nlcmd;
+
+import org.junit.Test;
+
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+public class PhoneticIndexTest {
+
+    @Test
+    public void phonetic_cologne() {
+
+        assertEquals("3412", PhoneticIndex.cologne("Wikipedia"));
+        assertEquals("65752682", PhoneticIndex.cologne("M\u00fcller-L\u00fcdenscheidt"));
+        assertEquals(PhoneticIndex.cologne("Meier"), PhoneticIndex.cologne("Mayr"));
+        assertEquals(PhoneticIndex.cologne("Motorkontrollleuchte"), PhoneticIndex.cologne("Motorkontrolleuchte"));
+        assertNotEquals(PhoneticIndex.cologne("Motorkontrollleuchte"), PhoneticIndex.cologne("Motorleuchte"));
+    }
+
+    @Test
+    public void phonetic_metaphone() {
+
+        assertEquals("FN", PhoneticIndex.metaphone("phone"));
+        assertEquals(PhoneticIndex.metaphone("phone"), PhoneticIndex.metaphone("fone"));
+        assertEquals(PhoneticIndex.metaphone("write"), PhoneticIndex.metaphone("rite"));
+        assertEquals(PhoneticIndex.metaphone("Smith"), PhoneticIndex.metaphone("Smyth"));
+        assertEquals("NT", PhoneticIndex.metaphone("knight"));
+        assertEquals("0RTL", PhoneticIndex.metaphone("throttle"));
+    }
+
+    @Test
+    public void phonetic_resolve() {
+
+        PhoneticIndex index = new PhoneticIndex(Locale.GERMAN);
+        index.add("Motorkontrollleuchte", "Motorkontrollleuchte");
+        index.add("Motorkontrolllampe", "Motorkontrollleuchte");
+        index.add("<location>", "<location>");
+        index.add("an", "an");
+
+        assertEquals("Motorkontrollleuchte", index.resolve("Motorkontrolleuchte"));
+        assertEquals("Motorkontrollleuchte", index.resolve("Motorkontrollampe"));
+        assertNull(index.resolve("Navigation"));
+        // Short tokens and placeholders are not indexed
+        assertNull(index.resolve("ahn"));
+        assertNull(index.resolve("<lokation>"));
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2019 Robert Staudinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ktm_technologies.nlcmd;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PhraseStoreTest {
+
+    @Test
+    public void store_add() {
+
+        PhraseStore store = new PhraseStore();
+        List<String> p1 = Arrays.asList("set route to <location>".split(" "));
+        List<String> p2 = Arrays.asList("go to <location>".split(" "));
+        assertEquals(0, store.add(p1));
+        assertEquals(1, store.add(p2));
+        assertEquals(2, store.size());
+        assertEquals(p1, store.get(0));
+        assertEquals(p2, store.get(1));
+        assertEquals(4, store.getLength(0));
+        assertEquals(3, store.getLength(1));
+
+        // Tokens are shared via the vocabulary
+        assertEquals(5, store.getVocabulary().size());
+    }
+
+    @Test
+    public void store_deduplicate() {
+
+        PhraseStore store = new PhraseStore();
+        assertEquals(0, store.add(Arrays.asList("go to <location>".split(" "))));
+        assertEquals(1, store.add(Arrays.asList("go to".split(" "))));
+        assertEquals(0, store.add(new ArrayList<>(Arrays.asList("go to <location>".split(" ")))));
+        assertEquals(2, store.size());
+        // Duplicate isn't kept in the buffer
+        assertEquals(5, store.getOffset(1) + store.getLength(1));
+    }
+
+    @Test
+    public void store_grow() {
+
+        PhraseStore store = new PhraseStore();
+        for (int i = 0; i < 1000; i++) {
+            store.add(Arrays.asList("phrase", String.valueOf(i), "end"));
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, store.add(Arrays.asList("phrase", String.valueOf(i), "end")));
+        }
+        assertEquals(1000, store.size());
+        assertEquals(Arrays.asList("phrase", "999", "end"), store.get(999));
+    }
+
+    @Test
+    public void store_remove() {
+
+        PhraseStore store = new PhraseStore();
+        List<String> phrase = Arrays.asList("go to <location>".split(" "));
+        assertEquals(0, store.add(phrase));
+        assertEquals(0, store.add(phrase));
+        assertEquals(2.0, store.getCount(0), 0.0);
+        assertTrue(store.remove(phrase, 1.0));
+        assertTrue(store.remove(phrase, 1.0));
+        assertFalse(store.remove(phrase, 1.0));
+        assertFalse(store.remove(Arrays.asList("go to".split(" ")), 1.0));
+        assertEquals(0.0, store.getCount(0), 0.0);
+        assertEquals(1, store.size());
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2019 Robert Staudinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ktm_technologies.nlcmd;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class PreprocessorTest {
+
+    @Test
+    public void preprocessor_empty() {
+
+        Preprocessor pp = new Preprocessor();
+        assertEquals(words("a b c"), process(pp, "a b c"));
+        assertEquals(words(""), process(pp, ""));
+    }
+
+    @Test
+    public void preprocessor_stopwords() {
+
+        Preprocessor pp = new Preprocessor();
+        pp.addStopword(words("und"));
+        pp.addStopword(words("ähm"));
+        assertEquals(words("starte Navigation zeige Karte"),
+                     process(pp, "ähm starte Navigation und zeige ähm Karte und"));
+    }
+
+    @Test
+    public void preprocessor_rewrite() {
+
+        Preprocessor pp = new Preprocessor();
+        pp.addRewrite(words("Menü"), words("menu"));
+        pp.addRewrite(words("Motor Kontrollleuchte"), words("Motorkontrollleuchte"));
+        assertEquals(words("öffne menu zeige Motorkontrollleuchte"),
+                     process(pp, "öffne Menü zeige Motor Kontrollleuchte"));
+    }
+
+    @Test
+    public void preprocessor_longest() {
+
+        Preprocessor pp = new Preprocessor();
+        pp.addRewrite(words("dashboard"), words("board"));
+        pp.addRewrite(words("dashboard menu"), words("menu"));
+        assertEquals(words("x menu y board"), process(pp, "x dashboard menu y dashboard"));
+    }
+
+    @Test
+    public void preprocessor_leftmost() {
+
+        Preprocessor pp = new Preprocessor();
+        pp.addRewrite(words("a b"), words("x"));
+        pp.addRewrite(words("b c d"), words("y"));
+        pp.addRewrite(words("c d e"), words("z"));
+        assertEquals(words("x c d"), process(pp, "a b c d"));
+        assertEquals(words("x z"), process(pp, "a b c d e"));
+        assertEquals(words("y e"), process(pp, "b c d e"));
+    }
+
+    @Test
+    public void preprocessor_failureLinks() {
+
+        Preprocessor pp = new Preprocessor();
+        pp.addRewrite(words("a b c d"), words("x"));
+        pp.addRewrite(words("b c"), words("y"));
+        assertEquals(words("a y e"), process(pp, "a b c e"));
+        assertEquals(words("x"), process(pp, "a b c d"));
+    }
+
+    @Test
+    public void preprocessor_suffixRule() {
+
+        Preprocessor pp = new Preprocessor();
+        pp.addRewrite(words("c c"), words("X"));
+        pp.addRewrite(words("c"), words("Y"));
+        assertEquals(words("X X"), process(pp, "c c c c"));
+        assertEquals(words("X Y"), process(pp, "c c c"));
+
+        pp = new Preprocessor();
+        pp.addStopword(words("d"));
+        pp.addStopword(words("d d c"));
+        assertEquals(words("a"), process(pp, "a d d c"));
+    }
+
+    @Test
+    public void preprocessor_matchesReference() {
+
+        Random random = new Random(42);
+        for (int n = 0; n < 500; n++) {
+            Preprocessor pp = new Preprocessor();
+            List<List<String>> patterns = new ArrayList<>();
+            List<List<String>> replacements = new ArrayList<>();
+            int nRules = 1 + random.nextInt(5);
+            for (int r = 0; r < nRules; r++) {
+                List<String> pattern = randomWords(random, 1 + random.nextInt(3));
+                List<String> replacement = randomWords(random, random.nextInt(2));
+                for (int k = 0; k < replacement.size(); k++) {
+                    replacement.set(k, replacement.get(k).toUpperCase());
+                }
+                if (!patterns.contains(pattern)) {
+                    patterns.add(pattern);
+                    replacements.add(replacement);
+                    pp.addRewrite(pattern, replacement);
+                }
+            }
+
+            List<String> phrase = randomWords(random, random.nextInt(10));
+            List<String> out = new ArrayList<>();
+            pp.process(phrase, out);
+            assertEquals(phrase.toString(), reference(patterns, replacements, phrase), out);
+        }
+    }
+
+    /**
+     * Leftmost-longest rewriting by trying all rules at every position.
+     */
+    private static List<String> reference(List<List<String>>    patterns,
+                                          List<List<String>>    replacements,
+                                          List<String>          phrase) {
+
+        List<String> out = new ArrayList<>();
+        int i = 0;
+        while (i < phrase.size()) {
+            int best = -1;
+            for (int r = 0; r < patterns.size(); r++) {
+                List<String> pattern = patterns.get(r);
+                if (i + pattern.size() <= phrase.size() &&
+                    phrase.subList(i, i + pattern.size()).equals(pattern) &&
+                    (best < 0 || pattern.size() > patterns.get(best).size())) {
+                    best = r;
+                }
+            }
+            if (best < 0) {
+                out.add(phrase.get(i++));
+            } else {
+                out.addAll(replacements.get(best));
+                i += patterns.get(best).size();
+            }
+        }
+        return out;
+    }
+
+    private static List<String> randomWords(Random random, int n) {
+
+        List<String> l = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            l.add(String.valueOf((char) ('a' + random.nextInt(3))));
+        }
+        return l;
+    }
+
+    private static List<String> words(String phrase) {
+
+        return new LinkedList<>(Arrays.asList(phrase.isEmpty() ? new String[0] : phrase.split(" ")));
+    }
+
+    private static List<String> process(Preprocessor pp, String phrase) {
+
+        List<String> out = new ArrayList<>();
+        pp.process(words(phrase), out);
+        return out;
+    }
+}
@@ -22,10 +22,12 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Example local unit test, which will execute on the development machine (host).
@@ -91,6 +93,84 @@ public class ReadWriteTests {
         mc.traverse(writer);
     }
 
+    @Test
+    public void writeNodesDot() throws Exception {
+
+        MarkovChain mc = MarkovChainTest.createFoxChainW2();
+        ByteArrayOutputStream edges = new ByteArrayOutputStream();
+        mc.traverse(new DotWriter("Fox", edges));
+        ByteArrayOutputStream nodes = new ByteArrayOutputStream();
+        mc.traverseNodes(new DotWriter("Fox", nodes), 1);
+        assertEquals(edges.toString("UTF-8"), nodes.toString("UTF-8"));
+
+        // Same lines in any order
+        ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+        mc.traverseNodes(new DotWriter("Fox", parallel), 4);
+        List<String> expected = Arrays.asList(edges.toString("UTF-8").split(System.lineSeparator()));
+        List<String> actual = Arrays.asList(parallel.toString("UTF-8").split(System.lineSeparator()));
+        Collections.sort(expected);
+        Collections.sort(actual);
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void writeDotSubgraph() throws Exception {
+
+        MarkovChain mc = MarkovChainTest.createFoxChainW1();
+        List<List<String>> labels = new LinkedList<>();
+        labels.add(Collections.singletonList("fox"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        mc.traverseNeighbourhood(new DotWriter("Fox", out), labels, 1);
+        assertEquals("digraph Fox {\n" +
+                     "  \"fox\" -> \"jumps\" [ label=\"1.00\" ];\n" +
+                     "  \"brown\" -> \"fox\" [ label=\"1.00\" ];\n" +
+                     "}\n", out.toString("UTF-8"));
+
+        // "the" is followed by "quick" and "lazy"
+        DotWriter writer = new DotWriter("Fox", out = new ByteArrayOutputStream());
+        writer.setThreshold(0.6);
+        mc.traverse(writer);
+        assertEquals(-1, out.toString("UTF-8").indexOf("\"the\" ->"));
+
+        writer = new DotWriter("Fox", out = new ByteArrayOutputStream());
+        writer.setTopK(1);
+        mc.traverseNodes(writer, 1);
+        String dot = out.toString("UTF-8");
+        int from = dot.indexOf("\"the\" ->");
+        assertTrue(from >= 0);
+        assertEquals(-1, dot.indexOf("\"the\" ->", from + 1));
+    }
+
+    @Test
+    public void writeDotProbability() {
+
+        StringBuilder sb = new StringBuilder();
+        DotWriter.appendProbability(sb, 0.5);
+        sb.append(' ');
+        DotWriter.appendProbability(sb, 1.0);
+        sb.append(' ');
+        DotWriter.appendProbability(sb, 1.0 / 3);
+        sb.append(' ');
+        DotWriter.appendProbability(sb, 0.005);
+        sb.append(' ');
+        DotWriter.appendProbability(sb, 12.346);
+        assertEquals("0.50 1.00 0.33 0.01 12.35", sb.toString());
+    }
+
+    @Test
+    public void roundtripNodesJson() throws Exception {
+
+        MarkovChain mc1 = MarkovChainTest.createFoxChainW1();
+        List<String> phrase = Arrays.asList("over", "the", "lazy", "dog");
+        double result1 = mc1.scan(phrase, new Result());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        mc1.traverseNodes(new JsonWriter("Fox", out), 3);
+        MarkovChain mc2 = JsonReader.read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(result1, mc2.scan(phrase, new Result()), 0.0001);
+        assertEquals(mc1.match(phrase), mc2.match(phrase), 0.0001);
+    }
+
     static void writeDot(String tag, MarkovChain mc) throws Exception {
 
         DotWriter writer = new DotWriter(tag, new PrintStream(System.out));
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2019 Robert Staudinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ktm_technologies.nlcmd;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class SuffixAutomatonTest {
+
+    @Test
+    public void automaton_empty() {
+
+        SuffixAutomaton sa = new SuffixAutomaton();
+        Vocabulary vocabulary = new Vocabulary();
+        vocabulary.add("a");
+        assertEquals(0.0, sa.prefixRatio(Arrays.asList("a", "b"), vocabulary), 0.0001);
+        assertEquals(0.0, sa.prefixRatio(new ArrayList<String>(), vocabulary), 0.0001);
+    }
+
+    @Test
+    public void automaton_prefix() {
+
+        Indexed sa = new Indexed();
+        sa.add(Arrays.asList("set route to <location>".split(" ")));
+        sa.add(Arrays.asList("load route to <location> now".split(" ")));
+        assertEquals(2, sa.size());
+
+        // Run occurs in both phrases, the first one counts
+        assertEquals(0.75, sa.prefixRatio(Arrays.asList("route to <location> please".split(" "))), 0.0001);
+        // Only in the second phrase
+        assertEquals(0.4, sa.prefixRatio(Arrays.asList("<location> now".split(" "))), 0.0001);
+        // Only prefixes count
+        assertEquals(0.0, sa.prefixRatio(Arrays.asList("please route to".split(" "))), 0.0001);
+    }
+
+    @Test
+    public void automaton_repeatedTokens() {
+
+        Indexed sa = new Indexed();
+        sa.add(Arrays.asList("a", "a", "a", "b"));
+        assertEquals(0.75, sa.prefixRatio(Arrays.asList("a", "a", "b")), 0.0001);
+    }
+
+    @Test
+    public void automaton_matchesBruteForce() {
+
+        Random random = new Random(42);
+        for (int round = 0; round < 50; round++) {
+
+            Indexed sa = new Indexed();
+            List<List<String>> phrases = new ArrayList<>();
+            int nPhrases = 1 + random.nextInt(8);
+            for (int i = 0; i < nPhrases; i++) {
+                List<String> phrase = randomPhrase(random, 1 + random.nextInt(10));
+                phrases.add(phrase);
+                sa.add(phrase);
+            }
+
+            for (int i = 0; i < 20; i++) {
+                List<String> query = randomPhrase(random, 1 + random.nextInt(6));
+                assertEquals(query.toString(), bruteForce(phrases, query), sa.prefixRatio(query), 0.0001);
+            }
+        }
+    }
+
+    /**
+     * Automaton over phrases from a store.
+     */
+    private static class Indexed {
+
+        final PhraseStore       store = new PhraseStore();
+        final SuffixAutomaton   automaton = new SuffixAutomaton();
+
+        void add(List<String> phrase) {
+
+            int size = store.size();
+            int index = store.add(phrase);
+            if (index == size) {
+                automaton.add(store.getTokens(), store.getOffset(index), store.getLength(index));
+            }
+        }
+
+        int size() {
+            return automaton.size();
+        }
+
+        double prefixRatio(List<String> query) {
+            return automaton.prefixRatio(query, store.getVocabulary());
+        }
+    }
+
+    private static List<String> randomPhrase(Random random, int length) {
+
+        List<String> phrase = new ArrayList<>();
+        for (int i = 0; i < length; i++) {
+            phrase.add(String.valueOf((char) ('a' + random.nextInt(3))));
+        }
+        return phrase;
+    }
+
+    private static double bruteForce(List<List<String>> phrases, List<String> query) {
+
+        int best = 0;
+        int first = -1;
+        for (int n = 0; n < phrases.size(); n++) {
+            List<String> phrase = phrases.get(n);
+            for (int start = 0; start < phrase.size(); start++) {
+                int length = 0;
+                while (length < query.size() &&
+                       start + length < phrase.size() &&
+                       phrase.get(start + length).equals(query.get(length))) {
+                    length++;
+                }
+                if (length > best) {
+                    best = length;
+                    first = n;
+                }
+            }
+        }
+        return best == 0 ? 0.0 : (double) best / phrases.get(first).size();
+    }
+}
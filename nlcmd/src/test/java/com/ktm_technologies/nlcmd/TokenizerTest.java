@@ -0,0 +1,134 @@
+/*
+ * Copyright 2019 Robert Staudinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ktm_technologies.nlcmd;
+
+import org.junit.Test;
+
+import java.text.BreakIterator;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class TokenizerTest {
+
+    private Locale _locale = Locale.GERMAN;
+
+    @Test
+    public void tokenizer_simpleMatchesBreakIterator() {
+
+        String alphabet = "ab Z9 .,!?()/*+=@[]{}\t-'_:;\"";
+        Random random = new Random(42);
+        Tokenizer tokenizer = new Tokenizer(_locale);
+        for (int i = 0; i < 20000; i++) {
+            StringBuilder sb = new StringBuilder();
+            int n = random.nextInt(16);
+            for (int j = 0; j < n; j++) {
+                sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            String phrase = sb.toString();
+            assertEquals(phrase, breakIteratorWords(phrase), tokenizer.words(phrase));
+        }
+    }
+
+    @Test
+    public void tokenizer_placeholders() {
+
+        Tokenizer tokenizer = new Tokenizer(_locale);
+        assertEquals(Arrays.asList("go", "to", "<my location>", "now"),
+                     tokenizer.words("go to <my location> now"));
+        assertEquals(Arrays.asList("füge", "<ort>", "ein"),
+                     tokenizer.words("füge <ort> ein"));
+    }
+
+    @Test(expected = StringIndexOutOfBoundsException.class)
+    public void tokenizer_unclosedPlaceholder() {
+
+        new Tokenizer(_locale).words("go to <location");
+    }
+
+    @Test
+    public void tokenizer_foldCase() {
+
+        Tokenizer tokenizer = new Tokenizer(_locale);
+        tokenizer.setFoldCase(true);
+        assertEquals(Arrays.asList("öffne", "das", "menü"), tokenizer.words("Öffne das MENÜ"));
+        assertEquals("straße", tokenizer.transform("Straße"));
+    }
+
+    @Test
+    public void tokenizer_normalize() {
+
+        Tokenizer tokenizer = new Tokenizer(_locale);
+        tokenizer.setNormalize(true);
+        // Decomposed u + combining diaeresis
+        assertEquals(Arrays.asList("Men\u00fc"), tokenizer.words("Menu\u0308"));
+        assertEquals("Men\u00fc", tokenizer.transform("Menu\u0308"));
+    }
+
+    @Test
+    public void tokenizer_vocabularyIds() {
+
+        Vocabulary vocabulary = new Vocabulary();
+        vocabulary.addEquivalence(new String[]{ "der", "die", "das" });
+        int start = vocabulary.add("starte");
+        int navigation = vocabulary.add("navigation");
+
+        Tokenizer tokenizer = new Tokenizer(_locale);
+        tokenizer.setFoldCase(true);
+        TokenBuffer buffer = new TokenBuffer();
+        tokenizer.tokenize("Starte die Navigation nach Munderfing", vocabulary, buffer);
+
+        assertEquals(Arrays.asList("starte", "die", "navigation", "nach", "munderfing"), buffer);
+        int[] ids = buffer.getIds();
+        assertEquals(start, ids[0]);
+        assertEquals(vocabulary.lookup("der"), ids[1]);
+        assertEquals(navigation, ids[2]);
+        assertEquals(-1, ids[3]);
+        assertEquals(-1, ids[4]);
+        // Known words are not copied
+        assertSame(vocabulary.getToken(navigation), buffer.get(2));
+
+        // Buffer is reused
+        tokenizer.tokenize("die", vocabulary, buffer);
+        assertEquals(1, buffer.size());
+    }
+
+    /**
+     * Reference implementation, as used before the simple scan was added.
+     */
+    private List<String> breakIteratorWords(String phrase) {
+
+        BreakIterator iter = BreakIterator.getWordInstance(_locale);
+        iter.setText(phrase);
+        List<String> l = new LinkedList<>();
+        int start = iter.first();
+        int end = iter.next();
+        while (end != BreakIterator.DONE) {
+            if (Character.isLetterOrDigit(phrase.charAt(start))) {
+                l.add(phrase.substring(start, end));
+            }
+            start = end;
+            end = iter.following(end);
+        }
+        return l;
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2019 Robert Staudinger
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ktm_technologies.nlcmd;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class TransitionCountsTest {
+
+    private final static int _ORDER = 2;
+
+    @Test
+    public void counts_add() {
+
+        TransitionCounts counts = new TransitionCounts(_ORDER);
+        counts.add(Arrays.asList("go to <location>".split(" ")));
+        counts.add(Arrays.asList("go to <location>".split(" ")));
+        counts.add(Arrays.asList("go to".split(" ")));
+
+        List<TransitionCounts.Entry> entries = new ArrayList<>(counts.getEntries());
+        assertEquals(2, entries.size());
+        assertEquals("go to", entries.get(0).label.toString());
+        TransitionCounts.Count count = entries.get(0).transitions.get(entries.get(1).label);
+        assertEquals(2.0, count.value, 0.0);
+    }
+
+    @Test
+    public void counts_merge() {
+
+        List<List<String>> phrases = new ArrayList<>();
+        phrases.add(Arrays.asList("set route to <location>".split(" ")));
+        phrases.add(Arrays.asList("go to <location>".split(" ")));
+        phrases.add(Arrays.asList("set route via <location>".split(" ")));
+        phrases.add(Arrays.asList("set route to <location>".split(" ")));
+
+        TransitionCounts first = new TransitionCounts(_ORDER);
+        first.add(phrases.get(0));
+        first.add(phrases.get(1));
+        TransitionCounts second = new TransitionCounts(_ORDER);
+        second.add(phrases.get(2));
+        second.add(phrases.get(3));
+        first.merge(second);
+
+        MarkovChain merged = new MarkovChain(_ORDER);
+        merged.train(phrases, new double[] { 1.0, 1.0, 1.0, 1.0 }, first);
+        MarkovChain sequential = new MarkovChain(_ORDER);
+        for (List<String> phrase : phrases) {
+            sequential.train(phrase);
+        }
+
+        List<String> phrase = Arrays.asList("set route to <location>".split(" "));
+        assertEquals(sequential.match(phrase), merged.match(phrase), 0.0);
+        assertEquals(5.0 / 6, merged.match(phrase), 0.0001);
+        assertEquals(1.0, merged.matchingFaktor(phrase), 0.0);
+    }
+}